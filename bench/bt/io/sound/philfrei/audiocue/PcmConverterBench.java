@@ -0,0 +1,105 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.util.Random;
+
+/**
+ * Measures the conversion time of a {@code PcmConverter} per
+ * sample for every sample size and dither mode, next to the
+ * unclamped, truncating loop that {@code AudioCue} used
+ * before.
+ * <p>
+ * The benchmark is not part of the build. Run it against the
+ * compiled classes, e.g.
+ * <pre>
+ * javac -cp target/classes -d target/bench bench/bt/io/sound/philfrei/audiocue/*.java
+ * java -cp target/classes:target/bench bt.io.sound.philfrei.audiocue.PcmConverterBench
+ * </pre>
+ * Each case is repeated and the fastest run is reported, after
+ * a warm-up that lets the JIT compile the loops.
+ *
+ * @author &#8904
+ */
+public class PcmConverterBench
+{
+    private static final int SAMPLES = 16384;
+    private static final int CALLS = 200;
+    private static final int RUNS = 30;
+    private static final int BUFFER_FRAMES = 8192;
+
+    public static void main(String[] args)
+    {
+        float[] source = new float[SAMPLES];
+        Random random = new Random(1);
+
+        for (int i = 0; i < SAMPLES; i++)
+        {
+            source[i] = (float)(random.nextGaussian() * 0.3);
+        }
+
+        float[] copy = new float[SAMPLES];
+        byte[] bytes = new byte[SAMPLES * 3];
+
+        double baseline = measure(() ->
+        {
+            System.arraycopy(source, 0, copy, 0, SAMPLES);
+            truncate(copy, bytes);
+        });
+        print("16 bit, unclamped loop", baseline);
+
+        for (int bits : new int[] { 16, 24 })
+        {
+            for (PcmConverter.Dither dither : PcmConverter.Dither.values())
+            {
+                PcmConverter converter = new PcmConverter(bits, 2, dither);
+                double time = measure(() -> converter.convert(source, SAMPLES, bytes));
+                print(bits + " bit, " + dither, time);
+            }
+        }
+
+        print("flushDenormals", measure(() -> PcmConverter.flushDenormals(copy, SAMPLES)));
+    }
+
+    /**
+     * The conversion of AudioCue before the PcmConverter, which
+     * scales the buffer in place and truncates towards zero.
+     */
+    private static void truncate(float[] buffer, byte[] audioBytes)
+    {
+        for (int i = 0; i < buffer.length; i++)
+        {
+            buffer[i] *= 32767;
+            audioBytes[i * 2] = (byte)buffer[i];
+            audioBytes[i * 2 + 1] = (byte)((int)buffer[i] >> 8);
+        }
+    }
+
+    /**
+     * Returns the fastest time per sample in nanoseconds.
+     */
+    private static double measure(Runnable conversion)
+    {
+        long best = Long.MAX_VALUE;
+
+        for (int run = 0; run < RUNS; run++)
+        {
+            long start = System.nanoTime();
+
+            for (int call = 0; call < CALLS; call++)
+            {
+                conversion.run();
+            }
+
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best / (double)CALLS / SAMPLES;
+    }
+
+    private static void print(String name, double nanosPerSample)
+    {
+        // a stereo buffer of the default mixer size
+        double microsPerBuffer = nanosPerSample * BUFFER_FRAMES * 2 / 1000;
+        System.out.printf("%-28s %6.2f ns/sample %8.1f us per %d-frame stereo buffer%n",
+                          name, nanosPerSample, microsPerBuffer, BUFFER_FRAMES);
+    }
+}
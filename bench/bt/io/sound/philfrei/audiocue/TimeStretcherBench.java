@@ -0,0 +1,96 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures the mixing time of an {@code AudioCue} per voice and
+ * frame, for plain voices and for voices that are time
+ * stretched via {@code setTempo}, and derives how many of them
+ * one core renders in real time.
+ * <p>
+ * The benchmark is not part of the build, see
+ * {@code PcmConverterBench} for how to run it. All voices loop
+ * over three seconds of noise, the stretched ones each with a
+ * different tempo. The track is read directly, so only the
+ * mixing of the cue is measured. Each case is repeated and the
+ * fastest run is reported.
+ *
+ * @author &#8904
+ */
+public class TimeStretcherBench
+{
+    private static final int RATE = 44100;
+    private static final int VOICES = 64;
+    private static final int BUFFER_FRAMES = 1024;
+    private static final int WARM_UP_BUFFERS = 300;
+    private static final int BUFFERS = 50;
+    private static final int RUNS = 10;
+
+    public static void main(String[] args) throws IOException
+    {
+        int frames = RATE * 3;
+        float[] noise = new float[frames * 2];
+        Random random = new Random(1);
+
+        for (int i = 0; i < noise.length; i++)
+        {
+            noise[i] = (float)(random.nextGaussian() * 0.1);
+        }
+
+        for (boolean stretched : new boolean[] { false, true })
+        {
+            double nanos = measure(noise, stretched);
+            System.out.printf("%-9s %6.1f ns per voice-frame, %5.0f voices per core in real time%n",
+                              stretched ? "stretched" : "plain", nanos, 1e9 / (nanos * RATE));
+        }
+    }
+
+    /**
+     * Returns the fastest time per voice and frame in
+     * nanoseconds.
+     */
+    private static double measure(float[] data, boolean stretched) throws IOException
+    {
+        AudioCue cue = AudioCue.makeStereoCue(data, "bench", VOICES);
+        AudioMixer mixer = new AudioMixer(null, BUFFER_FRAMES, Thread.NORM_PRIORITY);
+        cue.open(mixer);
+
+        for (int v = 0; v < VOICES; v++)
+        {
+            int hook = cue.obtainInstance();
+            cue.setVolume(hook, 0.01);
+            cue.setLooping(hook, -1);
+
+            if (stretched)
+            {
+                cue.setTempo(hook, 0.7 + 0.01 * v);
+            }
+
+            cue.start(hook);
+        }
+
+        for (int b = 0; b < WARM_UP_BUFFERS; b++)
+        {
+            cue.readTrack();
+        }
+
+        long best = Long.MAX_VALUE;
+
+        for (int run = 0; run < RUNS; run++)
+        {
+            long start = System.nanoTime();
+
+            for (int b = 0; b < BUFFERS; b++)
+            {
+                cue.readTrack();
+            }
+
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        cue.close();
+
+        return best / ((double)BUFFERS * BUFFER_FRAMES * VOICES);
+    }
+}
@@ -0,0 +1,288 @@
+package bt.io.files;
+
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Combines the events of a {@link FileObserver} per file until no new event arrived for that file for a quiet period.
+ *
+ * <p>
+ * Every file with pending events has one entry, which is placed on a hashed timer wheel at the tick in which its
+ * quiet period ends. New events for the file only move the deadline of the entry, the entry itself is moved to its new
+ * slot once the wheel reaches the old one. Entries of other files are not affected, so their events are dispatched as
+ * soon as their own quiet period ended.
+ * </p>
+ *
+ * <p>
+ * The combined event has the sum of the counts of all combined events. Its kind reflects the change over the whole
+ * burst: a created file that was modified is reported as created, a deleted file that was created again as modified,
+ * and a file that was created and deleted again is not reported at all.
+ * </p>
+ *
+ * <p>
+ * Entries are reused once they were dispatched, so a steady stream of bursts does not allocate new entries.
+ * </p>
+ *
+ * <p>
+ * Instances are not thread safe, they are only used by the observing thread.
+ * </p>
+ *
+ * @author &#8904
+ */
+final class Debouncer
+{
+    /** The number of slots of the wheel, a power of two. */
+    private static final int SLOTS = 256;
+
+    /** The number of ticks per quiet period, i.e. the precision of the deadlines. */
+    private static final int TICKS_PER_DELAY = 8;
+
+    private final long delay;
+    private final long tickLength;
+    private final long origin;
+    private final Pending[] wheel = new Pending[SLOTS];
+    private final Map<Path, Pending> pending = new HashMap<>();
+    private final Target target;
+    private long currentTick;
+    private Pending free;
+
+    /**
+     * Receives the combined events.
+     */
+    interface Target
+    {
+        void dispatch(WatchEvent<Path> event, Path observedPath, Path path);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param delayMillis
+     *            The quiet period in milliseconds.
+     * @param target
+     *            Receives the combined events.
+     */
+    Debouncer(long delayMillis, Target target)
+    {
+        this.delay = delayMillis * 1000000;
+        this.tickLength = Math.max(1000000, this.delay / TICKS_PER_DELAY);
+        this.origin = System.nanoTime();
+        this.target = target;
+    }
+
+    long getDelayMillis()
+    {
+        return this.delay / 1000000;
+    }
+
+    boolean isEmpty()
+    {
+        return this.pending.isEmpty();
+    }
+
+    /**
+     * Adds an event for the given file inside the observed directory, received at the given time.
+     */
+    void add(WatchEvent<Path> event, Path observedPath, Path path, long now)
+    {
+        Pending entry = this.pending.get(path);
+
+        if (entry == null)
+        {
+            entry = this.free;
+
+            if (entry != null)
+            {
+                this.free = entry.next;
+                entry.next = null;
+            }
+            else
+            {
+                entry = new Pending();
+            }
+
+            entry.kind = event.kind();
+            entry.name = event.context();
+            entry.observedPath = observedPath;
+            entry.path = path;
+            entry.count = event.count();
+            this.pending.put(path, entry);
+            entry.deadline = tick(now + this.delay) + 1;
+            schedule(entry);
+            return;
+        }
+
+        entry.kind = combine(entry.kind, event.kind());
+
+        if (entry.kind == null)
+        {
+            // created and deleted again, the entry is skipped and released once the wheel reaches it
+            this.pending.remove(path);
+            return;
+        }
+
+        entry.count += event.count();
+        entry.deadline = tick(now + this.delay) + 1;
+    }
+
+    private static WatchEvent.Kind<Path> combine(WatchEvent.Kind<Path> previous, WatchEvent.Kind<Path> next)
+    {
+        if (previous == StandardWatchEventKinds.ENTRY_CREATE)
+        {
+            return next == StandardWatchEventKinds.ENTRY_DELETE ? null : previous;
+        }
+
+        if (previous == StandardWatchEventKinds.ENTRY_DELETE && next == StandardWatchEventKinds.ENTRY_CREATE)
+        {
+            return StandardWatchEventKinds.ENTRY_MODIFY;
+        }
+
+        return next;
+    }
+
+    /**
+     * Returns the nanoseconds until the next tick of the wheel, the time to wait for new events while entries are
+     * pending.
+     */
+    long nanosToNextTick(long now)
+    {
+        return Math.max(0, this.origin + this.currentTick * this.tickLength - now);
+    }
+
+    /**
+     * Moves the wheel to the given time and dispatches all entries whose quiet period ended.
+     */
+    void advance(long now)
+    {
+        long last = tick(now);
+
+        // every slot is visited at most once, entries of skipped ticks are due anyway
+        if (last - this.currentTick >= SLOTS)
+        {
+            this.currentTick = last - SLOTS + 1;
+        }
+
+        for (; this.currentTick <= last; this.currentTick++)
+        {
+            int slot = (int)(this.currentTick & (SLOTS - 1));
+            Pending entry = this.wheel[slot];
+            this.wheel[slot] = null;
+
+            while (entry != null)
+            {
+                Pending next = entry.next;
+                entry.next = null;
+
+                if (entry.kind == null)
+                {
+                    release(entry);
+                }
+                else if (entry.deadline > this.currentTick)
+                {
+                    schedule(entry);
+                }
+                else
+                {
+                    expire(entry);
+                }
+
+                entry = next;
+            }
+        }
+    }
+
+    /**
+     * Dispatches all pending entries immediately.
+     */
+    void flush()
+    {
+        for (int slot = 0; slot < SLOTS; slot++)
+        {
+            Pending entry = this.wheel[slot];
+            this.wheel[slot] = null;
+
+            while (entry != null)
+            {
+                Pending next = entry.next;
+                entry.next = null;
+
+                if (entry.kind == null)
+                {
+                    release(entry);
+                }
+                else
+                {
+                    expire(entry);
+                }
+
+                entry = next;
+            }
+        }
+    }
+
+    private void expire(Pending entry)
+    {
+        this.pending.remove(entry.path);
+
+        // the dispatched event copies the values, so the entry can be reused right away
+        this.target.dispatch(entry, entry.observedPath, entry.path);
+        release(entry);
+    }
+
+    private void release(Pending entry)
+    {
+        entry.kind = null;
+        entry.name = null;
+        entry.observedPath = null;
+        entry.path = null;
+        entry.next = this.free;
+        this.free = entry;
+    }
+
+    private void schedule(Pending entry)
+    {
+        int slot = (int)(entry.deadline & (SLOTS - 1));
+        entry.next = this.wheel[slot];
+        this.wheel[slot] = entry;
+    }
+
+    private long tick(long nanos)
+    {
+        return (nanos - this.origin) / this.tickLength;
+    }
+
+    /**
+     * The combined events of one file.
+     */
+    private static class Pending implements WatchEvent<Path>
+    {
+        private WatchEvent.Kind<Path> kind;
+        private Path name;
+        private Path observedPath;
+        private Path path;
+        private int count;
+        private long deadline;
+        private Pending next;
+
+        @Override
+        public WatchEvent.Kind<Path> kind()
+        {
+            return this.kind;
+        }
+
+        @Override
+        public int count()
+        {
+            return this.count;
+        }
+
+        @Override
+        public Path context()
+        {
+            return this.name;
+        }
+    }
+}
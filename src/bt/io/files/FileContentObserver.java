@@ -6,8 +6,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.stream.Stream;
 
@@ -34,7 +34,7 @@ import bt.utils.Null;
  */
 public class FileContentObserver extends FileObserver
 {
-    private Map<File, Long> fileSizes;
+    private Map<File, Long> fileSizes = new ConcurrentHashMap<>();
 
     /**
      * Creates a new instance.
@@ -204,7 +204,8 @@ public class FileContentObserver extends FileObserver
 
         if (file.isDirectory())
         {
-            Stream.of(file.listFiles())
+            // the directory may have been deleted meanwhile
+            Stream.of(Null.nullValue(file.listFiles(), new File[0]))
                   .filter(File::isFile)
                   .forEach(f ->
                   {
@@ -241,7 +242,6 @@ public class FileContentObserver extends FileObserver
             }
         }
 
-        this.fileSizes = Null.nullValue(this.fileSizes, new HashMap<File, Long>());
         this.fileSizes.put(file, length);
 
         Log.exit();
@@ -264,7 +264,7 @@ public class FileContentObserver extends FileObserver
         {
             this.fileSizes.remove(file);
         }
-        else if (e instanceof FileModifyEvent)
+        else if (e instanceof FileModifyEvent && !file.isDirectory())
         {
             String content = null;
             long nonTextLength = 0;
@@ -287,13 +287,13 @@ public class FileContentObserver extends FileObserver
                 }
             }
 
-            long oldSize = this.fileSizes.get(file);
+            long oldSize = this.fileSizes.getOrDefault(file, 0L);
             long newSize = content != null ? content.length() : nonTextLength;
             this.fileSizes.put(file, newSize);
 
             if (oldSize != newSize)
             {
-                var event = new FileContentEvent(e, e.observedPath());
+                var event = new FileContentEvent(e, e.observedPath(), e.fullContext());
                 event.setOldSize(oldSize);
                 event.setNewSize(newSize);
 
@@ -2,19 +2,33 @@ package bt.io.files;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.HashMap;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import bt.io.files.evnt.FileCreateEvent;
@@ -34,6 +48,11 @@ import bt.utils.Null;
  * A simple wrapper for a {@link WatchService} to allow listening to single files, subscribe to specific events specify
  * regex patterns for files that should trigger an event.
  *
+ * <p>
+ * Directories can also be registered recursively via {@link #registerRecursive(Path, String...)}, in which case the
+ * whole tree below them is observed, including directories that are created later on.
+ * </p>
+ *
  * @author &#8904
  * @param <T>
  */
@@ -41,12 +60,17 @@ public class FileObserver implements Killable
 {
     protected WatchService watchService;
     protected boolean observe;
-    protected long pollingDelay = 0;
-    protected Map<WatchKey, Path> paths;
-    protected Map<WatchKey, Pattern[]> filters;
-    protected Map<WatchKey, File> observedFiles;
+    protected volatile long pollingDelay = 0;
+    protected Map<WatchKey, Path> paths = new ConcurrentHashMap<>();
+    protected Map<WatchKey, Pattern[]> filters = new ConcurrentHashMap<>();
+    protected Map<WatchKey, Set<Path>> observedFiles = new ConcurrentHashMap<>();
+    protected Map<WatchKey, Map<Path, Pattern[]>> fileFilters = new ConcurrentHashMap<>();
+    protected Set<WatchKey> recursiveKeys = ConcurrentHashMap.newKeySet();
     protected Dispatcher eventDispatcher;
 
+    /** Reusable matchers for the filters, only used by the observing thread. */
+    private final Map<Pattern[], Matcher[]> matchers = new WeakHashMap<>();
+
     /**
      * Creates a new instance.
      *
@@ -179,16 +203,24 @@ public class FileObserver implements Killable
     }
 
     /**
-     * Sets the delay for each iteration before the events of a registered path are polled.
+     * Sets the quiet period after which the combined events of a file are fired.
      *
      * <p>
      * A delay can prevent the firing of multiple events in short succession. Usually 2 events would be fired for the
-     * content change of a file, one for the content and one for the timestamp. A delay will cause these events to be
-     * combined into one. {@link FileObserverEvent#count()} will tell whether it is a combined event (count > 1) or not.
+     * content change of a file, one for the content and one for the timestamp. With a delay, all events for the same
+     * file are combined into one until no new event arrived for that file for the given time.
+     * {@link FileObserverEvent#count()} will tell whether it is a combined event (count > 1) or not. Events of other
+     * files are not delayed by this.
+     * </p>
+     *
+     * <p>
+     * The combined event describes the change over the whole burst, e.g. a file that was created and then modified is
+     * reported as created, a file that was deleted and created again as modified and a file that was created and
+     * deleted again is not reported at all.
      * </p>
      *
      * @param millis
-     *            The delay in milliseconds.
+     *            The delay in milliseconds, 0 to fire every event immediately.
      */
     public void setPollingDelay(long millis)
     {
@@ -199,10 +231,16 @@ public class FileObserver implements Killable
     {
         Log.entry(key, file);
 
-        if (!file.isDirectory())
+        if (file.isDirectory())
+        {
+            // the whole directory is observed, which includes all single files inside it
+            this.observedFiles.remove(key);
+        }
+        else if (!this.paths.containsKey(key) || this.observedFiles.containsKey(key))
         {
-            this.observedFiles = Null.nullValue(this.observedFiles, new HashMap<WatchKey, File>());
-            this.observedFiles.put(key, file);
+            // single files share the key of their directory, their names are compared with the relative paths of events
+            this.observedFiles.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
+                              .add(file.toPath().getFileName());
         }
 
         Log.exit();
@@ -221,6 +259,18 @@ public class FileObserver implements Killable
      * modifications.
      * </p>
      *
+     * <p>
+     * Any number of single files inside the same directory can be registered, they share the {@link WatchKey} of the
+     * directory. Once the directory itself is registered, all of its files are observed.
+     * </p>
+     *
+     * <p>
+     * The regular expressions apply to the registered path only. Every single file keeps its own expressions, so files
+     * of the same directory can be registered with different ones. Registering a path again replaces its expressions,
+     * registering it without any removes them. Registering the directory replaces the expressions of its single files,
+     * while single files registered after their whole directory use the expressions of the directory.
+     * </p>
+     *
      * @param path
      *            The path to the file or directory that should be observed.
      * @param regex
@@ -253,22 +303,45 @@ public class FileObserver implements Killable
             observePath = pathFile.getParentFile().toPath();
         }
 
-        // register directory to observe
-        WatchKey key = observePath.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        Pattern[] patterns = compile(regex);
+        WatchKey key;
 
-        this.paths = Null.nullValue(this.paths, new HashMap<WatchKey, Path>());
-        this.paths.put(key, observePath);
+        // registrations are serialized, the observing thread only reads
+        synchronized (this)
+        {
+            // register directory to observe
+            key = observePath.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
 
-        // save single file if the desired observe object is not a directory
-        setFile(key, pathFile);
+            boolean single = !pathFile.isDirectory()
+                             && (!this.paths.containsKey(key) || this.observedFiles.containsKey(key));
 
-        // compile regex patterns
-        if (regex != null && regex.length != 0)
-        {
-            this.filters = Null.nullValue(this.filters, new HashMap<WatchKey, Pattern[]>());
-            this.filters.put(key, Stream.of(regex)
-                                        .map(Pattern::compile)
-                                        .toArray(Pattern[]::new));
+            if (single)
+            {
+                // the patterns are set before the name is added, so the observing thread never sees the name unfiltered
+                Path name = pathFile.toPath().getFileName();
+                Map<Path, Pattern[]> names = this.fileFilters.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+
+                if (patterns != null)
+                {
+                    names.put(name, patterns);
+                }
+                else
+                {
+                    names.remove(name);
+                }
+            }
+
+            // save single file if the desired observe object is not a directory
+            setFile(key, pathFile);
+
+            if (pathFile.isDirectory())
+            {
+                this.fileFilters.remove(key);
+                setFilter(key, patterns);
+            }
+
+            // the path publishes the registration to the observing thread, so it is put last
+            this.paths.put(key, observePath);
         }
 
         Log.exit(key);
@@ -276,6 +349,36 @@ public class FileObserver implements Killable
         return key;
     }
 
+    /**
+     * Sets the patterns that apply to all files of the given key, null removes them.
+     */
+    private void setFilter(WatchKey key, Pattern[] patterns)
+    {
+        if (patterns != null)
+        {
+            this.filters.put(key, patterns);
+        }
+        else
+        {
+            this.filters.remove(key);
+        }
+    }
+
+    /**
+     * Compiles the given regular expressions, returns null if there are none.
+     */
+    private Pattern[] compile(String... regex)
+    {
+        if (regex == null || regex.length == 0)
+        {
+            return null;
+        }
+
+        return Stream.of(regex)
+                     .map(Pattern::compile)
+                     .toArray(Pattern[]::new);
+    }
+
     /**
      * Registers the file or directory to the {@link WatchService}.
      *
@@ -341,94 +444,422 @@ public class FileObserver implements Killable
     }
 
     /**
-     * Starts observing the registered paths.
+     * Registers the directory for the given path and all directories below it to the {@link WatchService}.
      *
      * <p>
-     * This method blocks until {@link #kill()} is called.
+     * The tree is walked once, the sub-trees of the given directory in parallel. Directories which are created later
+     * on inside the tree are registered automatically as soon as their creation is observed. Entries which were
+     * created inside such a directory before it was registered are reported via {@link FileCreateEvent}s as well, an
+     * entry that is created while the directory is registered may be reported twice.
+     * </p>
+     *
+     * <p>
+     * Regular expressions can be passed to limit the files that will trigger events. They apply to every directory of
+     * the tree, including directories that are created later on.
      * </p>
+     *
+     * @param path
+     *            The path to the directory that should be observed.
+     * @param regex
+     *            An array of regular expressions of which at least one has to match the simple file name + file
+     *            extension ('example.txt') so that an event will be fired for that file.
+     * @return The {@link WatchKey} for the given directory.
+     * @throws IOException
      */
-    public void observeBlocking()
+    public WatchKey registerRecursive(Path path, String... regex) throws IOException
     {
-        Log.entry();
+        Log.entry(path, regex);
 
-        this.observe = true;
+        // cant register if watchservice creation failed
+        if (this.watchService == null)
+        {
+            throw new NullPointerException("No WatchService was created.");
+        }
 
-        while (this.observe)
+        if (!Files.isDirectory(path))
         {
-            try
+            throw new NotDirectoryException(path.toString());
+        }
+
+        WatchKey key = registerTree(path, compile(regex), null);
+
+        Log.exit(key);
+
+        return key;
+    }
+
+    /**
+     * Registers the directory and all directories below it to the {@link WatchService}.
+     *
+     * <p>
+     * Regular expressions can be passed to limit the files that will trigger events. They apply to every directory of
+     * the tree, including directories that are created later on.
+     * </p>
+     *
+     * @param file
+     *            The directory that should be observed.
+     * @param regex
+     *            An array of regular expressions of which at least one has to match the simple file name + file
+     *            extension ('example.txt') so that an event will be fired for that file.
+     * @return The {@link WatchKey} for the given directory.
+     * @throws IOException
+     * @see #registerRecursive(Path, String...)
+     */
+    public WatchKey registerRecursive(File file, String... regex) throws IOException
+    {
+        Log.entry(file, regex);
+
+        WatchKey key = registerRecursive(Path.of(file.getAbsolutePath()), regex);
+
+        Log.exit(key);
+
+        return key;
+    }
+
+    /**
+     * Registers the directory for the given path and all directories below it to the {@link WatchService}.
+     *
+     * <p>
+     * Regular expressions can be passed to limit the files that will trigger events. They apply to every directory of
+     * the tree, including directories that are created later on.
+     * </p>
+     *
+     * @param filePath
+     *            The path to the directory that should be observed.
+     * @param regex
+     *            An array of regular expressions of which at least one has to match the simple file name + file
+     *            extension ('example.txt') so that an event will be fired for that file.
+     * @return The {@link WatchKey} for the given directory.
+     * @throws IOException
+     * @see #registerRecursive(Path, String...)
+     */
+    public WatchKey registerRecursive(String filePath, String... regex) throws IOException
+    {
+        Log.entry(filePath, regex);
+
+        WatchKey key = registerRecursive(Path.of(filePath), regex);
+
+        Log.exit(key);
+
+        return key;
+    }
+
+    /**
+     * Stops observing the directory of the given {@link WatchKey}, including all single files registered inside it, and
+     * cancels the key.
+     *
+     * <p>
+     * This can be called while this instance is observing, events which were already received for the key are
+     * dropped.
+     * </p>
+     *
+     * @param key
+     *            The key returned by one of the register methods.
+     */
+    public void unregister(WatchKey key)
+    {
+        Log.entry(key);
+
+        synchronized (this)
+        {
+            removeKey(key);
+            key.cancel();
+        }
+
+        Log.exit();
+    }
+
+    /**
+     * Stops observing the given file or directory.
+     *
+     * <p>
+     * If the directory was registered recursively, all directories below it are no longer observed either. The
+     * {@link WatchKey} of a single file is only cancelled once no other file of its directory is registered.
+     * </p>
+     *
+     * <p>
+     * This can be called while this instance is observing, events which were already received for the path are
+     * dropped.
+     * </p>
+     *
+     * @param path
+     *            The path to the file or directory that should no longer be observed.
+     * @return true if the path was registered.
+     */
+    public boolean unregister(Path path)
+    {
+        Log.entry(path);
+
+        Path absolute = path.toAbsolutePath();
+        boolean removed = false;
+
+        synchronized (this)
+        {
+            boolean tree = false;
+
+            for (var entry : this.paths.entrySet())
             {
-                WatchKey key;
-                while ((key = this.watchService.take()) != null)
+                if (entry.getValue().toAbsolutePath().equals(absolute) && this.recursiveKeys.contains(entry.getKey()))
                 {
-                    if (this.pollingDelay > 0)
-                    {
-                        Thread.sleep(this.pollingDelay);
-                    }
+                    tree = true;
+                }
+            }
 
-                    for (WatchEvent event : key.pollEvents())
+            for (var entry : this.paths.entrySet())
+            {
+                WatchKey key = entry.getKey();
+                Path observed = entry.getValue().toAbsolutePath();
+                Set<Path> names = this.observedFiles.get(key);
+
+                // a single file, the key is kept for the other files of the directory
+                if (names != null && observed.equals(absolute.getParent()))
+                {
+                    if (names.remove(absolute.getFileName()))
                     {
-                        boolean dispatch = true;
-                        File concernedFile = resolveFile(event, this.paths.get(key));
+                        Map<Path, Pattern[]> nameFilters = this.fileFilters.get(key);
 
-                        // check if the file matches any of the files that should be observed
-                        if (this.observedFiles != null)
+                        if (nameFilters != null)
                         {
-                            File keyFile = this.observedFiles.get(key);
-
-                            if (keyFile != null)
-                            {
-                                if (!keyFile.getAbsolutePath().equals(concernedFile.getAbsolutePath()))
-                                {
-                                    dispatch = false;
-                                }
-                            }
+                            nameFilters.remove(absolute.getFileName());
                         }
 
-                        // checks if the file name matches at least one of the defined regular expressions
-                        if (this.filters != null && dispatch)
-                        {
-                            Pattern[] regexArr = this.filters.get(key);
-
-                            if (regexArr != null)
-                            {
-                                String fileName = concernedFile.getName();
-
-                                for (Pattern regex : regexArr)
-                                {
-                                    Matcher matcher = regex.matcher(fileName);
-
-                                    if (matcher.matches())
-                                    {
-                                        dispatch = true;
-                                        break;
-                                    }
-                                    else
-                                    {
-                                        dispatch = false;
-                                    }
-                                }
-                            }
-                        }
+                        removed = true;
 
-                        // dispatches an event based on the observed change
-                        if (dispatch)
+                        if (names.isEmpty())
                         {
-                            if (event.kind().equals(StandardWatchEventKinds.ENTRY_CREATE))
-                            {
-                                dispatchEvent(new FileCreateEvent(event, this.paths.get(key)));
-                            }
-                            else if (event.kind().equals(StandardWatchEventKinds.ENTRY_DELETE))
-                            {
-                                dispatchEvent(new FileDeleteEvent(event, this.paths.get(key)));
-                            }
-                            else if (event.kind().equals(StandardWatchEventKinds.ENTRY_MODIFY))
-                            {
-                                dispatchEvent(new FileModifyEvent(event, this.paths.get(key)));
-                            }
+                            removeKey(key);
+                            key.cancel();
                         }
                     }
 
-                    key.reset();
+                    continue;
+                }
+
+                boolean match;
+
+                if (tree && this.recursiveKeys.contains(key))
+                {
+                    match = observed.startsWith(absolute);
+                }
+                else
+                {
+                    match = observed.equals(absolute);
+                }
+
+                if (match)
+                {
+                    removeKey(key);
+                    key.cancel();
+                    removed = true;
+                }
+            }
+        }
+
+        Log.exit(removed);
+
+        return removed;
+    }
+
+    /**
+     * Stops observing the given file or directory.
+     *
+     * @param file
+     *            The file or directory that should no longer be observed.
+     * @return true if the file was registered.
+     * @see #unregister(Path)
+     */
+    public boolean unregister(File file)
+    {
+        Log.entry(file);
+
+        boolean removed = unregister(Path.of(file.getAbsolutePath()));
+
+        Log.exit(removed);
+
+        return removed;
+    }
+
+    /**
+     * Stops observing the file or directory for the given path.
+     *
+     * @param filePath
+     *            The path to the file or directory that should no longer be observed.
+     * @return true if the path was registered.
+     * @see #unregister(Path)
+     */
+    public boolean unregister(String filePath)
+    {
+        Log.entry(filePath);
+
+        boolean removed = unregister(Path.of(filePath));
+
+        Log.exit(removed);
+
+        return removed;
+    }
+
+    /**
+     * Registers the given directory and walks the entries inside it in parallel, registering every directory that is
+     * found with the same filters.
+     *
+     * <p>
+     * A directory is registered before its entries are listed, so a sub-directory created at any point is either found
+     * by the walk or reported by the {@link WatchService}. If a queue is given, all entries found below the root are
+     * added to it.
+     * </p>
+     */
+    private WatchKey registerTree(Path root, Pattern[] patterns, Queue<Path> found) throws IOException
+    {
+        WatchKey key = registerDirectory(root, patterns);
+        var visitor = new TreeRegistration(patterns, found);
+        List<Path> entries;
+
+        try (Stream<Path> list = Files.list(root))
+        {
+            entries = list.collect(Collectors.toList());
+        }
+
+        try
+        {
+            entries.parallelStream()
+                   .forEach(entry ->
+                   {
+                       try
+                       {
+                           Files.walkFileTree(entry, visitor);
+                       }
+                       catch (IOException e)
+                       {
+                           throw new UncheckedIOException(e);
+                       }
+                   });
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+
+        return key;
+    }
+
+    private WatchKey registerDirectory(Path directory, Pattern[] patterns) throws IOException
+    {
+        synchronized (this)
+        {
+            WatchKey key = directory.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+            this.recursiveKeys.add(key);
+
+            setFile(key, directory.toFile());
+
+            // all directories of a tree share the same patterns
+            this.fileFilters.remove(key);
+            setFilter(key, patterns);
+
+            this.paths.put(key, directory);
+
+            return key;
+        }
+    }
+
+    /**
+     * Registers every visited directory, used by all threads of a parallel walk.
+     */
+    private class TreeRegistration extends SimpleFileVisitor<Path>
+    {
+        private final Pattern[] patterns;
+        private final Queue<Path> found;
+
+        private TreeRegistration(Pattern[] patterns, Queue<Path> found)
+        {
+            this.patterns = patterns;
+            this.found = found;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+        {
+            try
+            {
+                registerDirectory(dir, this.patterns);
+            }
+            catch (NoSuchFileException e)
+            {
+                // deleted during the walk
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            add(dir);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+        {
+            add(file);
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException
+        {
+            // deleted during the walk
+            if (e instanceof NoSuchFileException)
+            {
+                return FileVisitResult.CONTINUE;
+            }
+
+            throw e;
+        }
+
+        private void add(Path entry)
+        {
+            if (this.found != null)
+            {
+                this.found.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Starts observing the registered paths.
+     *
+     * <p>
+     * This method blocks until {@link #kill()} is called.
+     * </p>
+     */
+    public void observeBlocking()
+    {
+        Log.entry();
+
+        this.observe = true;
+        Debouncer debouncer = null;
+
+        while (this.observe)
+        {
+            try
+            {
+                debouncer = updateDebouncer(debouncer);
+                WatchKey key;
+
+                // only wait until the next tick of the debouncer while events are pending
+                if (debouncer == null || debouncer.isEmpty())
+                {
+                    key = this.watchService.take();
+                }
+                else
+                {
+                    key = this.watchService.poll(debouncer.nanosToNextTick(System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+
+                if (key != null)
+                {
+                    processEvents(key, debouncer);
+                }
+
+                if (debouncer != null)
+                {
+                    debouncer.advance(System.nanoTime());
                 }
             }
             catch (InterruptedException | ClosedWatchServiceException e)
@@ -440,9 +871,263 @@ public class FileObserver implements Killable
         Log.exit();
     }
 
-    private File resolveFile(WatchEvent e, Path observedPath)
+    /**
+     * Returns a debouncer for the current polling delay, dispatching the events of the previous one if the delay was
+     * changed.
+     */
+    private Debouncer updateDebouncer(Debouncer debouncer)
+    {
+        long delay = this.pollingDelay;
+
+        if (debouncer != null && debouncer.getDelayMillis() == delay)
+        {
+            return debouncer;
+        }
+
+        if (debouncer != null)
+        {
+            debouncer.flush();
+        }
+
+        return delay > 0 ? new Debouncer(delay, this::dispatchEvent) : null;
+    }
+
+    private void processEvents(WatchKey key, Debouncer debouncer)
+    {
+        Path observedPath = this.paths.get(key);
+
+        if (observedPath == null)
+        {
+            // the key can be signalled before its registration was published, which then is still in progress
+            synchronized (this)
+            {
+                observedPath = this.paths.get(key);
+            }
+
+            // unregistered meanwhile
+            if (observedPath == null)
+            {
+                return;
+            }
+        }
+
+        // the path is published last, so the other values of the key are complete
+        Set<Path> names = this.observedFiles.get(key);
+        Map<Path, Pattern[]> nameFilters = this.fileFilters.get(key);
+        Pattern[] regexArr = this.filters.get(key);
+        boolean recursive = this.recursiveKeys.contains(key);
+
+        long now = System.nanoTime();
+
+        for (WatchEvent<?> raw : key.pollEvents())
+        {
+            @SuppressWarnings("unchecked")
+            WatchEvent<Path> event = (WatchEvent<Path>)raw;
+
+            if (raw.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                // events were lost, directories created meanwhile still need to be registered
+                if (recursive)
+                {
+                    registerCreated(observedPath, regexArr, null, false);
+                }
+
+                continue;
+            }
+
+            // the context is the name of the file inside the observed directory
+            Path name = event.context();
+
+            // check if the file matches any of the files that should be observed, then whether the file name matches
+            // at least one of the defined regular expressions, single files have their own
+            boolean dispatch;
+
+            if (names == null)
+            {
+                dispatch = regexArr == null || matches(regexArr, name.toString());
+            }
+            else
+            {
+                Pattern[] nameArr = nameFilters == null ? null : nameFilters.get(name);
+                dispatch = names.contains(name) && (nameArr == null || matches(nameArr, name.toString()));
+            }
+
+            boolean created = recursive && event.kind() == StandardWatchEventKinds.ENTRY_CREATE;
+
+            // the full path is only resolved for events that are used
+            if (!dispatch && !created)
+            {
+                continue;
+            }
+
+            Path path = observedPath.resolve(name);
+
+            if (dispatch)
+            {
+                if (debouncer != null)
+                {
+                    debouncer.add(event, observedPath, path, now);
+                }
+                else
+                {
+                    dispatchEvent(event, observedPath, path);
+                }
+            }
+
+            // new directories inside a recursively observed tree are observed as well
+            if (created && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS))
+            {
+                registerCreated(path, regexArr, debouncer, true);
+            }
+        }
+
+        // the key is invalid once its directory was deleted
+        if (!key.reset())
+        {
+            removeKey(key);
+        }
+    }
+
+    /**
+     * Dispatches an event based on the observed change.
+     */
+    private void dispatchEvent(WatchEvent<Path> event, Path observedPath, Path path)
+    {
+        WatchEvent.Kind<Path> kind = event.kind();
+
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE)
+        {
+            dispatchEvent(new FileCreateEvent(event, observedPath, path));
+        }
+        else if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+        {
+            dispatchEvent(new FileDeleteEvent(event, observedPath, path));
+        }
+        else if (kind == StandardWatchEventKinds.ENTRY_MODIFY)
+        {
+            dispatchEvent(new FileModifyEvent(event, observedPath, path));
+        }
+    }
+
+    /**
+     * Checks whether the file name matches at least one of the given regular expressions, reusing one matcher per
+     * expression.
+     */
+    private boolean matches(Pattern[] regexArr, CharSequence fileName)
     {
-        return Paths.get(observedPath.toString(), e.context().toString()).toFile();
+        if (regexArr == null)
+        {
+            return true;
+        }
+
+        Matcher[] matcherArr = this.matchers.get(regexArr);
+
+        if (matcherArr == null)
+        {
+            matcherArr = Stream.of(regexArr)
+                               .map(regex -> regex.matcher(""))
+                               .toArray(Matcher[]::new);
+            this.matchers.put(regexArr, matcherArr);
+        }
+
+        for (Matcher matcher : matcherArr)
+        {
+            if (matcher.reset(fileName).matches())
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Registers a directory of a recursively observed tree that was created after the tree was registered.
+     *
+     * <p>
+     * Entries inside the directory may have been created before it was registered, in which case no events were fired
+     * for them. If requested, create events are dispatched for all of them.
+     * </p>
+     */
+    private void registerCreated(Path directory, Pattern[] patterns, Debouncer debouncer, boolean dispatchFound)
+    {
+        Queue<Path> found = new ConcurrentLinkedQueue<>();
+
+        try
+        {
+            registerTree(directory, patterns, found);
+        }
+        catch (NoSuchFileException e)
+        {
+            // deleted again before it could be registered
+        }
+        catch (IOException e)
+        {
+            Log.error("Failed to register created directory " + directory, e);
+        }
+
+        if (dispatchFound)
+        {
+            long now = System.nanoTime();
+
+            for (Path entry : found)
+            {
+                Path name = entry.getFileName();
+
+                if (matches(patterns, name.toString()))
+                {
+                    if (debouncer != null)
+                    {
+                        debouncer.add(new FoundEntry(name), entry.getParent(), entry, now);
+                    }
+                    else
+                    {
+                        dispatchEvent(new FoundEntry(name), entry.getParent(), entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private void removeKey(WatchKey key)
+    {
+        // the path is removed first, so the observing thread ignores the key from now on
+        this.paths.remove(key);
+        this.filters.remove(key);
+        this.observedFiles.remove(key);
+        this.fileFilters.remove(key);
+        this.recursiveKeys.remove(key);
+    }
+
+    /**
+     * A create event for an entry that was found inside a new directory before it was registered.
+     */
+    private static class FoundEntry implements WatchEvent<Path>
+    {
+        private final Path name;
+
+        private FoundEntry(Path name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Kind<Path> kind()
+        {
+            return StandardWatchEventKinds.ENTRY_CREATE;
+        }
+
+        @Override
+        public int count()
+        {
+            return 1;
+        }
+
+        @Override
+        public Path context()
+        {
+            return this.name;
+        }
     }
 
     /**
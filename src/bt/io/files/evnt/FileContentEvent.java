@@ -23,6 +23,11 @@ public class FileContentEvent extends FileObserverEvent
         super(e, observerPath);
     }
 
+    public FileContentEvent(WatchEvent<Path> e, Path observerPath, Path path)
+    {
+        super(e, observerPath, path);
+    }
+
     /**
      * Gets the added content.
      *
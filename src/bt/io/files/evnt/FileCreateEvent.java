@@ -18,4 +18,9 @@ public class FileCreateEvent extends FileObserverEvent
     {
         super(e, observerPath);
     }
+
+    public FileCreateEvent(WatchEvent<Path> e, Path observerPath, Path path)
+    {
+        super(e, observerPath, path);
+    }
 }
\ No newline at end of file
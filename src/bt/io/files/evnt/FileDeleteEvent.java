@@ -18,4 +18,9 @@ public class FileDeleteEvent extends FileObserverEvent
     {
         super(e, observerPath);
     }
+
+    public FileDeleteEvent(WatchEvent<Path> e, Path observerPath, Path path)
+    {
+        super(e, observerPath, path);
+    }
 }
\ No newline at end of file
@@ -1,7 +1,6 @@
 package bt.io.files.evnt;
 
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 
@@ -27,7 +26,7 @@ public class FileObserverEvent implements WatchEvent<Path>
 
         if (observerPath != null)
         {
-            this.path = Paths.get(observerPath.toString(), e.context().toString());
+            this.path = observerPath.resolve(e.context());
         }
         else
         {
@@ -38,6 +37,25 @@ public class FileObserverEvent implements WatchEvent<Path>
         this.observedPath = observerPath;
     }
 
+    /**
+     * Creates an event for a path that was already resolved against the observed path.
+     *
+     * @param e
+     *            The original event.
+     * @param observerPath
+     *            The path that was observed.
+     * @param path
+     *            The full path to the concerned file.
+     */
+    public FileObserverEvent(WatchEvent<Path> e, Path observerPath, Path path)
+    {
+        this.kind = e.kind();
+        this.count = e.count();
+        this.path = path;
+        this.relativePath = e.context();
+        this.observedPath = observerPath;
+    }
+
     public FileObserverEvent(WatchEvent<Path> e)
     {
         this(e, null);
@@ -0,0 +1,92 @@
+package bt.io.sound;
+
+/**
+ * Curves that determine how the gain of a {@link SpatialEmitter} decreases with its distance to the
+ * {@link SpatialListener}.
+ *
+ * <p>
+ * Every curve returns full gain up to the minimum distance and no gain beyond the maximum distance.
+ * </p>
+ *
+ * @author &#8904
+ */
+public enum AttenuationCurve
+{
+    /**
+     * The gain does not depend on the distance, only the maximum distance is taken into account.
+     */
+    NONE
+    {
+        @Override
+        protected float attenuate(float distance, float minDistance, float maxDistance)
+        {
+            return 1;
+        }
+    },
+
+    /**
+     * The gain decreases linearly from 1 at the minimum distance to 0 at the maximum distance.
+     */
+    LINEAR
+    {
+        @Override
+        protected float attenuate(float distance, float minDistance, float maxDistance)
+        {
+            return 1 - (distance - minDistance) / (maxDistance - minDistance);
+        }
+    },
+
+    /**
+     * The gain is inversely proportional to the distance (-6 dB per doubling of the distance), which matches the
+     * behavior of a point source in a free field.
+     */
+    INVERSE
+    {
+        @Override
+        protected float attenuate(float distance, float minDistance, float maxDistance)
+        {
+            return minDistance / distance;
+        }
+    },
+
+    /**
+     * The gain is inversely proportional to the squared distance (-12 dB per doubling of the distance).
+     */
+    INVERSE_SQUARE
+    {
+        @Override
+        protected float attenuate(float distance, float minDistance, float maxDistance)
+        {
+            float ratio = minDistance / distance;
+            return ratio * ratio;
+        }
+    };
+
+    /**
+     * Calculates the gain for the given distance.
+     *
+     * @param distance
+     *            The distance between emitter and listener.
+     * @param minDistance
+     *            The distance up to which the gain is 1.
+     * @param maxDistance
+     *            The distance beyond which the gain is 0.
+     * @return The gain in the range [0, 1].
+     */
+    public float gain(float distance, float minDistance, float maxDistance)
+    {
+        if (distance <= minDistance)
+        {
+            return 1;
+        }
+
+        if (distance >= maxDistance)
+        {
+            return 0;
+        }
+
+        return Math.max(0, Math.min(1, attenuate(distance, minDistance, maxDistance)));
+    }
+
+    protected abstract float attenuate(float distance, float minDistance, float maxDistance);
+}
@@ -27,5 +27,15 @@ public interface LineStopListener extends AudioCueListener
         }
     }
 
+    @Override
+    public default void instanceEventOccurred(AudioCueInstanceEvent.Type type, AudioCue source, int instanceID, double frame)
+    {
+        // no event object is needed to dispatch stops
+        if (type == AudioCueInstanceEvent.Type.STOP_INSTANCE)
+        {
+            onStop(instanceID);
+        }
+    }
+
     public void onStop(int instanceHandle);
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package bt.io.sound;
+
+import bt.io.sound.philfrei.audiocue.AudioCue;
+import bt.io.sound.philfrei.audiocue.LoudnessAnalyzer;
+import bt.log.Log;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * A sidecar file which stores the integrated loudness of audio content, so that it only has to be measured once.
+ *
+ * <p>
+ * Entries are keyed by a hash of the decoded sample data, see {@link AudioCue#getContentHash()}. Renamed or copied
+ * assets therefore reuse their entry, while changed assets are measured again. The file is a plain properties file and
+ * is only written by {@link #save()}, which replaces it atomically, so an interrupted save never leaves a corrupt
+ * cache behind.
+ * </p>
+ *
+ * @author &#8904
+ * @see SoundSupplier#normalizeLoudness(LoudnessCache, double)
+ */
+public class LoudnessCache
+{
+    // part of every key, so changes to the measurement invalidate old entries
+    private static final String KEY_PREFIX = "r128.1.";
+
+    private final Path path;
+    private final Properties entries;
+    private boolean modified;
+
+    /**
+     * Creates a cache backed by the given file and loads its entries. A missing or unreadable file results in an empty
+     * cache.
+     *
+     * @param path
+     *            The path of the cache file.
+     */
+    public LoudnessCache(Path path)
+    {
+        this.path = path;
+        this.entries = new Properties();
+
+        if (Files.exists(path))
+        {
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+            {
+                this.entries.load(reader);
+            }
+            catch (IOException | IllegalArgumentException e)
+            {
+                Log.error("Failed to read loudness cache " + path, e);
+                this.entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Gets the integrated loudness of the given cue, measuring it if it is not cached yet.
+     *
+     * @param cue
+     *            The cue to look up.
+     * @return The loudness in LUFS or {@link LoudnessAnalyzer#SILENCE}.
+     */
+    public double getLoudness(AudioCue cue)
+    {
+        String key = KEY_PREFIX + cue.getContentHash();
+
+        synchronized (this)
+        {
+            String value = this.entries.getProperty(key);
+
+            if (value != null)
+            {
+                try
+                {
+                    return Double.parseDouble(value);
+                }
+                catch (NumberFormatException e)
+                {
+                    Log.warn("Ignoring invalid loudness cache entry " + key + "=" + value);
+                }
+            }
+        }
+
+        // measured outside of the lock, so several cues can be analysed at once
+        double loudness = cue.measureLoudness();
+
+        synchronized (this)
+        {
+            this.entries.setProperty(key, Double.toString(loudness));
+            this.modified = true;
+        }
+
+        return loudness;
+    }
+
+    /**
+     * Gets the number of cached entries.
+     *
+     * @return The number of entries.
+     */
+    public synchronized int size()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Writes the cache to its file if entries have been added since it was loaded or last saved.
+     *
+     * @throws IOException
+     *             If the file can not be written.
+     */
+    public synchronized void save() throws IOException
+    {
+        if (!this.modified)
+        {
+            return;
+        }
+
+        Path dir = this.path.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(dir, this.path.getFileName().toString(), ".tmp");
+
+        try
+        {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+            {
+                this.entries.store(writer, "Integrated loudness in LUFS by content hash");
+            }
+
+            Files.move(temp, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+
+        this.modified = false;
+    }
+
+    /**
+     * Gets the path of the cache file.
+     *
+     * @return The path.
+     */
+    public Path getPath()
+    {
+        return this.path;
+    }
+}
@@ -0,0 +1,580 @@
+package bt.io.sound;
+
+import bt.io.sound.philfrei.audiocue.AudioCue;
+import bt.io.sound.philfrei.audiocue.AudioMixer;
+import bt.io.sound.philfrei.audiocue.AudioMixerTrack;
+import bt.io.sound.philfrei.audiocue.ChannelLayout;
+import bt.log.Log;
+import bt.scheduler.Threads;
+import bt.types.Killable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * An {@link AudioMixerTrack} which streams a list of sound files back to back.
+ *
+ * <p>
+ * Items are decoded on a background thread into a ring buffer that holds {@link #getPrefetchFrames()} frames, so the
+ * next item is already decoded while the current one is still playing. The mixer thread only copies from that buffer
+ * and never waits for the decoder. If the decoder falls behind, silence is played and counted as an underrun.
+ * </p>
+ *
+ * <p>
+ * Without a crossfade, items follow each other without a gap. With a crossfade of n frames, the last n frames of an
+ * item are mixed with the first n frames of the next one using equal-power (sine/cosine) curves. Because the decoder
+ * does the mixing, the crossfade is sample-accurate and does not depend on the mixer buffer size.
+ * </p>
+ *
+ * <p>
+ * The decoded audio is converted to the sample rate and {@link ChannelLayout} of the mixer by the decoder as well,
+ * using linear interpolation. Stereo items are routed to the front left and right speakers.
+ * </p>
+ *
+ * @author &#8904
+ */
+public class Playlist implements AudioMixerTrack, Killable
+{
+    private static final int CHUNK_FRAMES = 4096;
+
+    private final List<URL> items = new ArrayList<>();
+    private int itemIndex;
+    private volatile boolean looping;
+    private volatile int crossfadeFrames;
+    private volatile boolean skip;
+    private volatile float volume = 1;
+
+    // single producer (decoder), single consumer (mixer thread)
+    private final int prefetchFrames;
+    private float[] ring;
+    private volatile long writePos;
+    private volatile long readPos;
+
+    private AudioMixer mixer;
+    private float[] readBuffer;
+    private volatile boolean open;
+    private volatile boolean running;
+    private volatile boolean idle = true;
+    private volatile Thread decoderThread;
+    private volatile long underruns;
+
+    // decoder state, only accessed by the decoder thread
+    private float[] hold = new float[0];
+    private int holdStart;
+    private int holdCount;
+    private int holdFrames;
+    private float[] tail = new float[0];
+    private float[] nextTail = new float[0];
+    private int tailLength;
+    private int tailPos;
+    private float[] out;
+    private int outCount;
+    private ChannelLayout layout;
+    private float step;
+    private float phase;
+    private float lastLeft;
+    private float lastRight;
+
+    /**
+     * Creates a new playlist which prefetches half a second of audio.
+     */
+    public Playlist()
+    {
+        this((int)AudioCue.audioFormat.getFrameRate() / 2);
+    }
+
+    /**
+     * Creates a new playlist.
+     *
+     * @param prefetchFrames
+     *            The number of frames that the decoder may run ahead of playback.
+     */
+    public Playlist(int prefetchFrames)
+    {
+        if (prefetchFrames <= 0)
+        {
+            throw new IllegalArgumentException("Prefetch must be at least one frame.");
+        }
+
+        this.prefetchFrames = prefetchFrames;
+    }
+
+    /**
+     * Appends the given file to the end of the playlist.
+     *
+     * @param file
+     *            The sound file.
+     */
+    public void add(File file) throws MalformedURLException
+    {
+        add(file.toURI().toURL());
+    }
+
+    /**
+     * Appends the given URL to the end of the playlist.
+     *
+     * @param url
+     *            The sound url.
+     */
+    public void add(URL url)
+    {
+        synchronized (this.items)
+        {
+            this.items.add(url);
+        }
+
+        LockSupport.unpark(this.decoderThread);
+    }
+
+    /**
+     * Removes all items that have not started decoding yet. The current item and audio that has already been
+     * prefetched keep playing.
+     */
+    public void clear()
+    {
+        synchronized (this.items)
+        {
+            this.items.clear();
+            this.itemIndex = 0;
+        }
+    }
+
+    /**
+     * Sets whether the playlist starts over with its first item after the last one.
+     *
+     * @param looping
+     */
+    public void setLooping(boolean looping)
+    {
+        this.looping = looping;
+        LockSupport.unpark(this.decoderThread);
+    }
+
+    public boolean isLooping()
+    {
+        return this.looping;
+    }
+
+    /**
+     * Sets the length of the crossfade between two items. A length of 0 plays items back to back without a gap. The
+     * change applies from the next item that starts decoding.
+     *
+     * @param frames
+     *            The crossfade length in frames.
+     */
+    public void setCrossfadeFrames(int frames)
+    {
+        this.crossfadeFrames = Math.max(0, frames);
+    }
+
+    public int getCrossfadeFrames()
+    {
+        return this.crossfadeFrames;
+    }
+
+    /**
+     * Ends decoding of the current item and continues with the next one, crossfading if a crossfade is set. Audio
+     * that has already been prefetched is still played, so the change is heard with a delay of at most
+     * {@link #getPrefetchFrames()} frames.
+     */
+    public void skip()
+    {
+        this.skip = true;
+    }
+
+    /**
+     * Sets the volume that is applied to the whole playlist.
+     *
+     * @param volume
+     *            A value between 0 and 1.
+     */
+    public void setVolume(float volume)
+    {
+        this.volume = Math.max(0, Math.min(1, volume));
+    }
+
+    public float getVolume()
+    {
+        return this.volume;
+    }
+
+    public int getPrefetchFrames()
+    {
+        return this.prefetchFrames;
+    }
+
+    /**
+     * Gets the number of mixer buffers that could not be filled completely because the decoder fell behind.
+     *
+     * @return The underrun count.
+     */
+    public long getUnderruns()
+    {
+        return this.underruns;
+    }
+
+    /**
+     * Adds this playlist as a track to the given mixer and starts decoding.
+     *
+     * @param mixer
+     *            The mixer to play through.
+     */
+    public void open(AudioMixer mixer)
+    {
+        open(mixer, null);
+    }
+
+    /**
+     * Adds this playlist as a track to the given bus of the mixer and starts decoding.
+     *
+     * @param mixer
+     *            The mixer to play through.
+     * @param bus
+     *            The name of the bus or null for the master output.
+     */
+    public synchronized void open(AudioMixer mixer, String bus)
+    {
+        if (this.open)
+        {
+            throw new IllegalStateException("Already open.");
+        }
+
+        this.mixer = mixer;
+        this.readBuffer = new float[mixer.readBufferSize];
+        this.layout = mixer.getChannelLayout();
+        this.ring = new float[this.prefetchFrames * this.layout.getChannels()];
+        this.out = new float[CHUNK_FRAMES * this.layout.getChannels()];
+        this.step = AudioCue.audioFormat.getSampleRate() / mixer.getSampleRate();
+        this.readPos = 0;
+        this.writePos = 0;
+        this.phase = 1;
+        this.open = true;
+        this.running = true;
+
+        Threads.get().executeCachedDaemon(this::decode);
+
+        mixer.addTrack(this, bus);
+        mixer.updateTracks();
+    }
+
+    /**
+     * Removes this playlist from its mixer and stops decoding.
+     */
+    public synchronized void close()
+    {
+        if (!this.open)
+        {
+            throw new IllegalStateException("Already closed.");
+        }
+
+        this.open = false;
+        this.running = false;
+        LockSupport.unpark(this.decoderThread);
+
+        this.mixer.removeTrack(this);
+        this.mixer.updateTracks();
+        this.mixer = null;
+    }
+
+    @Override
+    public void kill()
+    {
+        if (this.open)
+        {
+            close();
+        }
+    }
+
+    @Override
+    public boolean isRunning()
+    {
+        return this.running;
+    }
+
+    /**
+     * Pauses (false) or resumes (true) playback. Decoding continues until the prefetch buffer is full.
+     */
+    @Override
+    public void setRunning(boolean running)
+    {
+        this.running = running && this.open;
+    }
+
+    /*
+     * Mixer thread. Copies what the decoder has produced and never blocks.
+     */
+    @Override
+    public float[] readTrack() throws IOException
+    {
+        float[] buffer = this.readBuffer;
+        long read = this.readPos;
+        int count = (int)Math.min(this.writePos - read, buffer.length);
+        int start = (int)(read % this.ring.length);
+        int first = Math.min(count, this.ring.length - start);
+        float gain = this.volume;
+
+        for (int i = 0; i < first; i++)
+        {
+            buffer[i] = this.ring[start + i] * gain;
+        }
+
+        for (int i = first; i < count; i++)
+        {
+            buffer[i] = this.ring[i - first] * gain;
+        }
+
+        for (int i = count; i < buffer.length; i++)
+        {
+            buffer[i] = 0;
+        }
+
+        this.readPos = read + count;
+
+        if (count < buffer.length && !this.idle)
+        {
+            this.underruns++;
+        }
+
+        return buffer;
+    }
+
+    private URL nextItem()
+    {
+        synchronized (this.items)
+        {
+            if (this.itemIndex >= this.items.size() && this.looping)
+            {
+                this.itemIndex = 0;
+            }
+
+            return this.itemIndex < this.items.size() ? this.items.get(this.itemIndex++) : null;
+        }
+    }
+
+    private void decode()
+    {
+        this.decoderThread = Thread.currentThread();
+        byte[] bytes = new byte[CHUNK_FRAMES * 4];
+
+        while (this.open)
+        {
+            URL item = nextItem();
+
+            if (item == null)
+            {
+                // nothing follows, let the end of the last item play out
+                emitTail();
+                flush();
+                this.idle = true;
+                LockSupport.parkNanos(this, 10_000_000L);
+                continue;
+            }
+
+            this.idle = false;
+            beginItem();
+
+            try (AudioInputStream ais = openStream(item))
+            {
+                int read;
+
+                while (this.open && !this.skip && (read = ais.read(bytes)) > 0)
+                {
+                    // AudioInputStream only reads whole frames
+                    for (int i = 0; i < read; i += 4)
+                    {
+                        float left = ((bytes[i] & 0xff) | (bytes[i + 1] << 8)) / 32767f;
+                        float right = ((bytes[i + 2] & 0xff) | (bytes[i + 3] << 8)) / 32767f;
+                        process(left, right);
+                    }
+                }
+            }
+            catch (IOException | UnsupportedAudioFileException e)
+            {
+                Log.error("Failed to decode playlist item " + item, e);
+            }
+
+            this.skip = false;
+            endItem();
+        }
+
+        this.decoderThread = null;
+    }
+
+    private AudioInputStream openStream(URL url) throws IOException, UnsupportedAudioFileException
+    {
+        AudioInputStream ais = AudioSystem.getAudioInputStream(url);
+
+        if (!ais.getFormat().matches(AudioCue.audioFormat))
+        {
+            ais = AudioSystem.getAudioInputStream(AudioCue.audioFormat, ais);
+        }
+
+        return ais;
+    }
+
+    private void beginItem()
+    {
+        this.holdFrames = this.crossfadeFrames;
+
+        if (this.hold.length < this.holdFrames * 2)
+        {
+            this.hold = new float[this.holdFrames * 2];
+        }
+
+        this.holdStart = 0;
+        this.holdCount = 0;
+    }
+
+    /*
+     * Fades the frame in over the tail of the previous item and delays it by the crossfade length, so the end of
+     * the item is still available when the next item starts.
+     */
+    private void process(float left, float right)
+    {
+        if (this.tailPos < this.tailLength)
+        {
+            double t = (this.tailPos + 0.5) / this.tailLength * Math.PI / 2;
+            float fadeOut = (float)Math.cos(t);
+            float fadeIn = (float)Math.sin(t);
+            left = this.tail[this.tailPos * 2] * fadeOut + left * fadeIn;
+            right = this.tail[this.tailPos * 2 + 1] * fadeOut + right * fadeIn;
+            this.tailPos++;
+        }
+
+        if (this.holdFrames == 0)
+        {
+            emit(left, right);
+            return;
+        }
+
+        int idx = (this.holdStart + this.holdCount) % this.holdFrames;
+
+        if (this.holdCount == this.holdFrames)
+        {
+            emit(this.hold[idx * 2], this.hold[idx * 2 + 1]);
+            this.holdStart = (this.holdStart + 1) % this.holdFrames;
+        }
+        else
+        {
+            this.holdCount++;
+        }
+
+        this.hold[idx * 2] = left;
+        this.hold[idx * 2 + 1] = right;
+    }
+
+    /*
+     * The held back end of the item becomes the tail that the next item fades in over. If the item was shorter than
+     * the previous crossfade, the rest of the previous tail continues behind it.
+     */
+    private void endItem()
+    {
+        int rest = this.tailLength - this.tailPos;
+        int length = this.holdCount + rest;
+
+        if (this.nextTail.length < length * 2)
+        {
+            this.nextTail = new float[length * 2];
+        }
+
+        for (int i = 0; i < this.holdCount; i++)
+        {
+            int idx = (this.holdStart + i) % this.holdFrames;
+            this.nextTail[i * 2] = this.hold[idx * 2];
+            this.nextTail[i * 2 + 1] = this.hold[idx * 2 + 1];
+        }
+
+        for (int i = 0; i < rest; i++)
+        {
+            int src = this.tailPos + i;
+            float fadeOut = (float)Math.cos((src + 0.5) / this.tailLength * Math.PI / 2);
+            this.nextTail[(this.holdCount + i) * 2] = this.tail[src * 2] * fadeOut;
+            this.nextTail[(this.holdCount + i) * 2 + 1] = this.tail[src * 2 + 1] * fadeOut;
+        }
+
+        float[] swap = this.tail;
+        this.tail = this.nextTail;
+        this.nextTail = swap;
+        this.tailLength = length;
+        this.tailPos = 0;
+        this.holdCount = 0;
+    }
+
+    private void emitTail()
+    {
+        for (; this.tailPos < this.tailLength; this.tailPos++)
+        {
+            emit(this.tail[this.tailPos * 2], this.tail[this.tailPos * 2 + 1]);
+        }
+
+        this.tailLength = 0;
+        this.tailPos = 0;
+    }
+
+    /*
+     * Converts the frame to the rate and layout of the mixer.
+     */
+    private void emit(float left, float right)
+    {
+        // outputs lie between the last and this frame, phase 1 is this frame
+        while (this.phase <= 1)
+        {
+            this.layout.addStereoFrame(this.lastLeft + (left - this.lastLeft) * this.phase,
+                                       this.lastRight + (right - this.lastRight) * this.phase,
+                                       this.out,
+                                       this.outCount);
+            this.outCount += this.layout.getChannels();
+            this.phase += this.step;
+
+            if (this.outCount == this.out.length)
+            {
+                flush();
+            }
+        }
+
+        this.phase -= 1;
+        this.lastLeft = left;
+        this.lastRight = right;
+    }
+
+    /*
+     * Decoder thread. Waits while the ring is full.
+     */
+    private void flush()
+    {
+        int offset = 0;
+
+        while (offset < this.outCount && this.open)
+        {
+            long write = this.writePos;
+            int free = (int)(this.ring.length - (write - this.readPos));
+
+            if (free == 0)
+            {
+                LockSupport.parkNanos(this, 1_000_000L);
+                continue;
+            }
+
+            int count = Math.min(free, this.outCount - offset);
+            int start = (int)(write % this.ring.length);
+            int first = Math.min(count, this.ring.length - start);
+            System.arraycopy(this.out, offset, this.ring, start, first);
+            System.arraycopy(this.out, offset + first, this.ring, 0, count - first);
+            this.writePos = write + count;
+            offset += count;
+        }
+
+        Arrays.fill(this.out, 0, this.outCount, 0);
+        this.outCount = 0;
+    }
+}
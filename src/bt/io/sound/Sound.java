@@ -2,6 +2,8 @@ package bt.io.sound;
 
 import javax.sound.sampled.Clip;
 
+import bt.io.sound.philfrei.audiocue.AudioCue;
+import bt.io.sound.philfrei.audiocue.AudioMixer;
 import bt.scheduler.Threads;
 import bt.utils.Exceptions;
 import bt.utils.NumberUtils;
@@ -16,9 +18,15 @@ public class Sound implements LineStopListener
 {
     public static final String MASTER_CATEGORY = "master";
     protected static Map<String, SoundCategory> soundCategories = new ConcurrentHashMap<>();
+    private static volatile AudioMixer mixer;
     private SoundSupplier supplier;
     private float volume = 1;
+    private int priority = 0;
+    private SpatialEmitter emitter;
     private int instanceHandle = -1;
+    private SoundCategory category;
+    private int masterSlot = -1;
+    private int categorySlot = -1;
     private boolean running = false;
     private boolean isPaused = false;
     private Object lock = new Object();
@@ -43,6 +51,28 @@ public class Sound implements LineStopListener
         soundCategories.get(soundCategory).resumeAll();
     }
 
+    /**
+     * Sets a shared {@link AudioMixer} which all {@link SoundSupplier}s that are created afterwards will play through.
+     *
+     * <p>
+     * Each sound category other than the master category is mapped to a bus of the same name, which allows levels
+     * to be measured per category via {@link SoundCategory#getLevelMeter()}. Without a shared mixer every supplier
+     * opens its own output line. The mixer has to be started by the caller.
+     * </p>
+     *
+     * @param mixer
+     *            The mixer to use or null to let suppliers open their own output lines.
+     */
+    public static void setMixer(AudioMixer mixer)
+    {
+        Sound.mixer = mixer;
+    }
+
+    public static AudioMixer getMixer()
+    {
+        return Sound.mixer;
+    }
+
     public static synchronized void createSoundCategoryIfNotExist(String name)
     {
         name = name.toLowerCase();
@@ -98,7 +128,8 @@ public class Sound implements LineStopListener
      * Sets the volume of the sound.
      *
      * <p>
-     * The given volume will be multiplied with the {@link #getMasterVolume() master volume}.
+     * The volumes of the master category and the category of the supplier are applied to the underlying cue as a
+     * whole and multiply with this volume.
      * </p>
      *
      * @param volume
@@ -110,29 +141,83 @@ public class Sound implements LineStopListener
         volume = NumberUtils.clamp(volume, 0, 1);
         this.volume = volume;
 
-        float actualVolume = volume;
+        if (this.instanceHandle != -1)
+        {
+            this.supplier.getAudioCue().setVolume(this.instanceHandle, volume);
+        }
+    }
+
+    /**
+     * Gets the volume of this sound.
+     *
+     * @return A volume value between 0 (no volume) and 1 (highest volume).
+     */
+    public float getVolume()
+    {
+        return this.volume;
+    }
+
+    /**
+     * Sets the priority of the sound.
+     *
+     * <p>
+     * If all concurrent plays of the supplier are in use, the {@link AudioCue.VoiceStealing voice stealing} policy of
+     * the underlying {@link AudioCue} may stop a playing sound with a lower or equal priority to play this one.
+     * </p>
+     *
+     * @param priority
+     *            Higher values denote more important sounds. The default is 0.
+     */
+    public void setPriority(int priority)
+    {
+        this.priority = priority;
 
-        if (this.supplier.getSoundCategory() != null)
+        if (this.instanceHandle != -1)
         {
-            actualVolume *= Sound.soundCategories.get(this.supplier.getSoundCategory()).getVolume();
+            this.supplier.getAudioCue().setPriority(this.instanceHandle, priority);
         }
+    }
+
+    /**
+     * Gets the priority of this sound.
+     *
+     * @return The priority.
+     */
+    public int getPriority()
+    {
+        return this.priority;
+    }
 
-        actualVolume *= Sound.soundCategories.get(Sound.MASTER_CATEGORY).getVolume();
+    /**
+     * Positions this sound in space.
+     *
+     * <p>
+     * While an emitter is set, gain and pan of the sound are computed by the audio thread once per buffer from the
+     * positions of the emitter and its {@link SpatialListener}. The gain is applied in addition to the volume of this
+     * sound.
+     * </p>
+     *
+     * @param emitter
+     *            The emitter or null to remove the positioning.
+     */
+    public void setEmitter(SpatialEmitter emitter)
+    {
+        this.emitter = emitter;
 
         if (this.instanceHandle != -1)
         {
-            this.supplier.getAudioCue().setVolume(this.instanceHandle, actualVolume);
+            this.supplier.getAudioCue().setSpatializer(this.instanceHandle, emitter);
         }
     }
 
     /**
-     * Gets the volume of this sound.
+     * Gets the emitter that positions this sound.
      *
-     * @return A volume value between 0 (no volume) and 1 (highest volume).
+     * @return The emitter or null.
      */
-    public float getVolume()
+    public SpatialEmitter getEmitter()
     {
-        return this.volume;
+        return this.emitter;
     }
 
     /**
@@ -141,14 +226,31 @@ public class Sound implements LineStopListener
      * <p>
      * If an old clip exists it will be stopped.
      * </p>
+     *
+     * @return true if a clip could be obtained, false if all concurrent plays are in use.
      */
-    private void setupClip()
+    private boolean setupClip()
     {
         this.isPaused = false;
         stop();
 
-        this.instanceHandle = this.supplier.getAudioCue().obtainInstance();
+        this.instanceHandle = this.supplier.obtainInstance(this.priority);
+
+        if (this.instanceHandle == -1)
+        {
+            return false;
+        }
+
+        this.supplier.bind(this.instanceHandle, this);
+        addToCategories(this.category);
         setVolume(this.volume);
+
+        if (this.emitter != null)
+        {
+            this.supplier.getAudioCue().setSpatializer(this.instanceHandle, this.emitter);
+        }
+
+        return true;
     }
 
     /**
@@ -156,9 +258,11 @@ public class Sound implements LineStopListener
      */
     public void start()
     {
-        setupClip();
+        if (!setupClip())
+        {
+            return;
+        }
 
-        this.supplier.getAudioCue().addAudioCueListener(this);
         this.supplier.getAudioCue().start(this.instanceHandle);
         this.running = true;
     }
@@ -174,6 +278,11 @@ public class Sound implements LineStopListener
     {
         start();
 
+        if (!this.running)
+        {
+            return;
+        }
+
         synchronized (lock)
         {
             Exceptions.uncheck(() -> lock.wait());
@@ -195,9 +304,11 @@ public class Sound implements LineStopListener
      */
     public void loop(int count)
     {
-        setupClip();
+        if (!setupClip())
+        {
+            return;
+        }
 
-        this.supplier.getAudioCue().addAudioCueListener(this);
         this.supplier.getAudioCue().setLooping(this.instanceHandle, count);
         this.supplier.getAudioCue().start(this.instanceHandle);
         this.running = true;
@@ -212,9 +323,11 @@ public class Sound implements LineStopListener
      */
     public void loopAndWait(int count)
     {
-        setupClip();
+        if (!setupClip())
+        {
+            return;
+        }
 
-        this.supplier.getAudioCue().addAudioCueListener(this);
         this.supplier.getAudioCue().setLooping(this.instanceHandle, count);
         this.supplier.getAudioCue().start(this.instanceHandle);
         this.running = true;
@@ -404,6 +517,56 @@ public class Sound implements LineStopListener
         }
     }
 
+    /**
+     * Adds this sound to the master category and the given one. Adding a sound that is already a member has no effect.
+     *
+     * @param category
+     *            The category of the supplier or null.
+     */
+    void addToCategories(SoundCategory category)
+    {
+        this.category = category;
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).addSound(this);
+
+        if (category != null)
+        {
+            category.addSound(this);
+        }
+    }
+
+    private void removeFromCategories()
+    {
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).removeSound(this);
+
+        if (this.category != null)
+        {
+            this.category.removeSound(this);
+        }
+    }
+
+    /**
+     * Gets the position of this sound in the lists of the given category, -1 if it is no member.
+     */
+    int getSlot(SoundCategory category)
+    {
+        return category.isMaster() ? this.masterSlot : this.categorySlot;
+    }
+
+    void setSlot(SoundCategory category, int slot)
+    {
+        if (category.isMaster())
+        {
+            this.masterSlot = slot;
+        }
+        else
+        {
+            this.categorySlot = slot;
+        }
+    }
+
+    /**
+     * Called by the supplier when the instance of this sound has stopped.
+     */
     @Override
     public void onStop(int instanceHandle)
     {
@@ -414,15 +577,10 @@ public class Sound implements LineStopListener
                 this.lock.notifyAll();
             }
 
-            Sound.soundCategories.get(Sound.MASTER_CATEGORY).removeSound(this);
-
-            if (this.supplier.getSoundCategory() != null)
-            {
-                Sound.soundCategories.get(this.supplier.getSoundCategory()).removeSound(this);
-            }
+            removeFromCategories();
 
+            this.supplier.unbind(this.instanceHandle);
             this.supplier.getAudioCue().releaseInstance(this.instanceHandle);
-            this.supplier.getAudioCue().removeAudioCueListener(this);
 
             this.instanceHandle = -1;
             this.running = false;
@@ -0,0 +1,255 @@
+package bt.io.sound;
+
+import bt.io.sound.philfrei.audiocue.AudioCue;
+import bt.log.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only collection of pre-converted audio cues which are stored in a single memory-mapped file.
+ *
+ * <p>
+ * Sound banks are created via {@link SoundBankBuilder}. Opening a bank only parses its index, the sample data itself
+ * is never copied onto the Java heap. {@link AudioCue} instances created via {@link #createCue(String, int)} read
+ * directly from slices of the mapping, so the data lives in the page cache of the operating system.
+ * </p>
+ *
+ * <p>
+ * File layout (all values little-endian):
+ *
+ * <pre>
+ * int    magic ('BTSB')
+ * int    version
+ * int    sample rate
+ * int    channels
+ * int    entry count
+ * entry count times:
+ *     short  name length in bytes
+ *     byte[] UTF-8 name
+ *     long   byte offset of the sample data
+ *     int    frame count
+ * sample data as 32-bit floats, each entry aligned to {@link #ALIGNMENT} bytes
+ * </pre>
+ * </p>
+ *
+ * @author &#8904
+ */
+public class SoundBank
+{
+    public static final int MAGIC = 0x42545342;
+    public static final int VERSION = 1;
+    public static final int ALIGNMENT = 64;
+
+    private static final int HEADER_SIZE = 5 * Integer.BYTES;
+    private static final int MIN_ENTRY_SIZE = Short.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final Path path;
+    private final int sampleRate;
+    private final int channels;
+    private final Map<String, FloatBuffer> cues;
+
+    /**
+     * Opens and maps the sound bank at the given path.
+     *
+     * @param path
+     *            The path of the sound bank file.
+     * @return The opened sound bank.
+     * @throws IOException
+     *             If the file can not be read, is not a valid sound bank or is not stored in the format of
+     *             {@link AudioCue#audioFormat}.
+     */
+    public static SoundBank open(Path path) throws IOException
+    {
+        Log.entry(path);
+
+        MappedByteBuffer mapping;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Sound bank " + path + " exceeds the maximum mappable size of 2 GB.");
+            }
+
+            // the mapping stays valid after the channel has been closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        SoundBank bank = new SoundBank(path, mapping);
+
+        Log.exit(bank);
+
+        return bank;
+    }
+
+    private SoundBank(Path path, MappedByteBuffer mapping) throws IOException
+    {
+        this.path = path;
+        ByteBuffer data = mapping.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC)
+        {
+            throw new IOException(path + " is not a sound bank.");
+        }
+
+        int version = data.getInt();
+
+        if (version != VERSION)
+        {
+            throw new IOException("Unsupported sound bank version " + version + " in " + path + ".");
+        }
+
+        this.sampleRate = data.getInt();
+        this.channels = data.getInt();
+
+        if (this.sampleRate != (int)AudioCue.audioFormat.getSampleRate()
+            || this.channels != AudioCue.audioFormat.getChannels())
+        {
+            throw new IOException("Sound bank " + path + " is stored with " + this.sampleRate + " Hz and "
+                                  + this.channels + " channels, but AudioCue plays " + AudioCue.audioFormat + ".");
+        }
+
+        int count = data.getInt();
+
+        // every entry needs at least its fixed size in the index
+        if (count < 0 || count > data.remaining() / MIN_ENTRY_SIZE)
+        {
+            throw new IOException("Invalid entry count " + count + " in " + path + ".");
+        }
+
+        this.cues = new HashMap<>(count * 2);
+
+        for (int i = 0; i < count; i++)
+        {
+            require(data, Short.BYTES, path);
+            byte[] nameBytes = new byte[data.getShort() & 0xFFFF];
+            require(data, nameBytes.length + Long.BYTES + Integer.BYTES, path);
+            data.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            long offset = data.getLong();
+            int frames = data.getInt();
+            long end = offset + (long)frames * this.channels * Float.BYTES;
+
+            if (frames < 0 || offset < 0 || end > data.limit())
+            {
+                throw new IOException("Entry '" + name + "' of " + path + " lies outside of the file.");
+            }
+
+            ByteBuffer slice = data.duplicate();
+            slice.position((int)offset);
+            slice.limit((int)end);
+            this.cues.put(name, slice.slice()
+                                     .order(ByteOrder.LITTLE_ENDIAN)
+                                     .asFloatBuffer());
+        }
+    }
+
+    private static void require(ByteBuffer data, int bytes, Path path) throws IOException
+    {
+        if (data.remaining() < bytes)
+        {
+            throw new IOException("The index of sound bank " + path + " is truncated.");
+        }
+    }
+
+    /**
+     * Gets the path of the mapped file.
+     *
+     * @return The path.
+     */
+    public Path getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * Gets the sample rate that the data of all entries is stored in.
+     *
+     * @return The sample rate in frames per second.
+     */
+    public int getSampleRate()
+    {
+        return this.sampleRate;
+    }
+
+    /**
+     * Gets the number of interleaved channels per frame.
+     *
+     * @return The channel count.
+     */
+    public int getChannels()
+    {
+        return this.channels;
+    }
+
+    /**
+     * Gets the names of all entries of this bank.
+     *
+     * @return An unmodifiable set of names.
+     */
+    public Set<String> getNames()
+    {
+        return Collections.unmodifiableSet(this.cues.keySet());
+    }
+
+    /**
+     * Checks whether this bank contains an entry with the given name.
+     *
+     * @param name
+     *            The name of the entry.
+     * @return true if the entry exists.
+     */
+    public boolean contains(String name)
+    {
+        return this.cues.containsKey(name);
+    }
+
+    /**
+     * Gets a read-only view of the mapped sample data of the given entry.
+     *
+     * @param name
+     *            The name of the entry.
+     * @return A new buffer view of the samples, the mapping is shared and not copied.
+     * @throws IllegalArgumentException
+     *             If there is no entry with the given name.
+     */
+    public FloatBuffer getSamples(String name)
+    {
+        FloatBuffer samples = this.cues.get(name);
+
+        if (samples == null)
+        {
+            throw new IllegalArgumentException("Sound bank " + this.path + " does not contain '" + name + "'.");
+        }
+
+        return samples.duplicate();
+    }
+
+    /**
+     * Creates a new {@link AudioCue} which reads directly from the mapped data of the given entry.
+     *
+     * @param name
+     *            The name of the entry.
+     * @param polyphony
+     *            The maximum number of concurrent plays.
+     * @return The new cue.
+     * @throws IllegalArgumentException
+     *             If there is no entry with the given name.
+     */
+    public AudioCue createCue(String name, int polyphony)
+    {
+        return AudioCue.makeStereoCue(getSamples(name), name, polyphony);
+    }
+}
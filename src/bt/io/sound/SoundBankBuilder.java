@@ -0,0 +1,221 @@
+package bt.io.sound;
+
+import bt.io.sound.philfrei.audiocue.AudioCue;
+import bt.log.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Packs the decoded PCM data of many sounds into a single {@link SoundBank} file.
+ *
+ * <p>
+ * Every added sound is converted to the format of {@link AudioCue#audioFormat} and stored as normalized 32-bit
+ * floats, so that no decoding or conversion is necessary when the bank is loaded.
+ * </p>
+ *
+ * <p>
+ * The builder can also be used from the command line:
+ *
+ * <pre>
+ * java bt.io.sound.SoundBankBuilder &lt;target file&gt; &lt;sound file or directory&gt;...
+ * </pre>
+ *
+ * Entries are named after their file names including the extension.
+ * </p>
+ *
+ * @author &#8904
+ */
+public class SoundBankBuilder
+{
+    private Map<String, float[]> entries = new LinkedHashMap<>();
+
+    /**
+     * Adds the sound from the given file.
+     *
+     * @param name
+     *            The name under which the sound will be stored.
+     * @param file
+     *            The sound file.
+     * @return This instance for chaining.
+     */
+    public SoundBankBuilder add(String name, File file) throws IOException, UnsupportedAudioFileException
+    {
+        return add(name, file.toURI().toURL());
+    }
+
+    /**
+     * Adds the sound from the given URL.
+     *
+     * @param name
+     *            The name under which the sound will be stored.
+     * @param url
+     *            The sound url.
+     * @return This instance for chaining.
+     */
+    public SoundBankBuilder add(String name, URL url) throws IOException, UnsupportedAudioFileException
+    {
+        try (AudioInputStream ais = AudioSystem.getAudioInputStream(url))
+        {
+            return add(name, ais);
+        }
+    }
+
+    /**
+     * Adds the sound from the given stream. The stream is converted to {@link AudioCue#audioFormat} if necessary.
+     *
+     * @param name
+     *            The name under which the sound will be stored.
+     * @param ais
+     *            The sound stream.
+     * @return This instance for chaining.
+     */
+    public SoundBankBuilder add(String name, AudioInputStream ais) throws IOException, UnsupportedAudioFileException
+    {
+        if (!ais.getFormat().matches(AudioCue.audioFormat))
+        {
+            ais = AudioSystem.getAudioInputStream(AudioCue.audioFormat, ais);
+        }
+
+        return add(name, AudioCue.loadAudio(ais));
+    }
+
+    /**
+     * Adds already decoded sample data.
+     *
+     * @param name
+     *            The name under which the sound will be stored.
+     * @param samples
+     *            Interleaved stereo samples in the range [-1, 1].
+     * @return This instance for chaining.
+     */
+    public SoundBankBuilder add(String name, float[] samples)
+    {
+        if (name.getBytes(StandardCharsets.UTF_8).length > 0xFFFF)
+        {
+            throw new IllegalArgumentException("Name is too long: " + name);
+        }
+
+        this.entries.put(name, samples);
+        return this;
+    }
+
+    /**
+     * Writes all added sounds to the given file, replacing it if it exists.
+     *
+     * @param target
+     *            The path of the sound bank file.
+     */
+    public void write(Path target) throws IOException
+    {
+        Log.entry(target);
+
+        int channels = AudioCue.audioFormat.getChannels();
+        int indexSize = 20;
+
+        for (String name : this.entries.keySet())
+        {
+            indexSize += 2 + name.getBytes(StandardCharsets.UTF_8).length + 8 + 4;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(indexSize).order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(SoundBank.MAGIC);
+        index.putInt(SoundBank.VERSION);
+        index.putInt((int)AudioCue.audioFormat.getSampleRate());
+        index.putInt(channels);
+        index.putInt(this.entries.size());
+
+        long offset = align(indexSize);
+
+        for (var entry : this.entries.entrySet())
+        {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            index.putShort((short)name.length);
+            index.put(name);
+            index.putLong(offset);
+            index.putInt(entry.getValue().length / channels);
+            offset = align(offset + (long)entry.getValue().length * Float.BYTES);
+        }
+
+        if (offset > Integer.MAX_VALUE)
+        {
+            throw new IOException("Sound bank would exceed the maximum mappable size of 2 GB.");
+        }
+
+        try (FileChannel channel = FileChannel.open(target,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            index.flip();
+
+            while (index.hasRemaining())
+            {
+                channel.write(index);
+            }
+
+            long position = align(indexSize);
+
+            for (float[] samples : this.entries.values())
+            {
+                ByteBuffer data = ByteBuffer.allocate(samples.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                data.asFloatBuffer().put(samples);
+
+                // positional writes may be partial as well
+                while (data.hasRemaining())
+                {
+                    channel.write(data, position + data.position());
+                }
+
+                position = align(position + data.capacity());
+            }
+
+            channel.truncate(position);
+        }
+
+        Log.info("Wrote {} sounds to sound bank {}", this.entries.size(), target);
+        Log.exit();
+    }
+
+    private static long align(long position)
+    {
+        return (position + SoundBank.ALIGNMENT - 1) / SoundBank.ALIGNMENT * SoundBank.ALIGNMENT;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: SoundBankBuilder <target file> <sound file or directory>...");
+            System.exit(1);
+        }
+
+        SoundBankBuilder builder = new SoundBankBuilder();
+
+        for (int i = 1; i < args.length; i++)
+        {
+            File source = new File(args[i]);
+            File[] files = source.isDirectory() ? source.listFiles(File::isFile) : new File[] { source };
+
+            for (File file : files)
+            {
+                builder.add(file.getName(), file);
+            }
+        }
+
+        builder.write(Path.of(args[0]));
+    }
+}
@@ -1,31 +1,93 @@
 package bt.io.sound;
 
+import bt.io.sound.philfrei.audiocue.AudioMixer;
+import bt.io.sound.philfrei.audiocue.AudioMixerOutput;
+import bt.io.sound.philfrei.audiocue.LevelMeter;
 import bt.utils.NumberUtils;
 
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * A named group of sounds which share a volume and can be paused and resumed together.
+ *
+ * <p>
+ * The volume is applied once per {@link SoundSupplier} of the category instead of once per playing sound. Sounds and
+ * suppliers remember their position in the lists of the category, so adding and removing them takes constant time.
+ * </p>
+ *
+ * @author &#8904
+ */
 public class SoundCategory
 {
     private String name;
-    private float volume;
+    private volatile float volume;
     private List<Sound> sounds;
+    private List<SoundSupplier> suppliers;
 
     public SoundCategory(String name)
     {
         this.name = name;
         this.volume = 1;
         this.sounds = new ArrayList<>();
+        this.suppliers = new ArrayList<>();
     }
 
     public synchronized void addSound(Sound sound)
     {
-        this.sounds.add(sound);
+        if (sound.getSlot(this) == -1)
+        {
+            sound.setSlot(this, this.sounds.size());
+            this.sounds.add(sound);
+        }
     }
 
+    /**
+     * Removes the sound by moving the last sound into its place.
+     */
     public synchronized void removeSound(Sound sound)
     {
-        this.sounds.remove(sound);
+        int slot = sound.getSlot(this);
+
+        if (slot != -1)
+        {
+            Sound last = this.sounds.remove(this.sounds.size() - 1);
+
+            if (last != sound)
+            {
+                this.sounds.set(slot, last);
+                last.setSlot(this, slot);
+            }
+
+            sound.setSlot(this, -1);
+        }
+    }
+
+    synchronized void addSupplier(SoundSupplier supplier)
+    {
+        if (supplier.getSlot(this) == -1)
+        {
+            supplier.setSlot(this, this.suppliers.size());
+            this.suppliers.add(supplier);
+        }
+    }
+
+    synchronized void removeSupplier(SoundSupplier supplier)
+    {
+        int slot = supplier.getSlot(this);
+
+        if (slot != -1)
+        {
+            SoundSupplier last = this.suppliers.remove(this.suppliers.size() - 1);
+
+            if (last != supplier)
+            {
+                this.suppliers.set(slot, last);
+                last.setSlot(this, slot);
+            }
+
+            supplier.setSlot(this, -1);
+        }
     }
 
     public String getName()
@@ -33,14 +95,18 @@ public class SoundCategory
         return name;
     }
 
+    boolean isMaster()
+    {
+        return Sound.MASTER_CATEGORY.equals(this.name);
+    }
+
     public synchronized void applyVolume(float volume)
     {
         this.volume = NumberUtils.clamp(volume, 0, 1);
 
-        for (var sound : this.sounds)
+        for (var supplier : this.suppliers)
         {
-            // apply volume change by making the sound recalculating its own volume
-            sound.setVolume(sound.getVolume());
+            supplier.updateVolume();
         }
     }
 
@@ -49,6 +115,128 @@ public class SoundCategory
         return volume;
     }
 
+    /**
+     * Gets the level meter of this category.
+     *
+     * <p>
+     * Levels are only measured if the sounds play through a shared mixer set via {@link Sound#setMixer(AudioMixer)}.
+     * The master category returns the meter of the mixer output, every other category the meter of its bus.
+     * </p>
+     *
+     * @return The meter or null if no shared mixer is set.
+     */
+    public LevelMeter getLevelMeter()
+    {
+        AudioMixer mixer = Sound.getMixer();
+
+        if (mixer == null)
+        {
+            return null;
+        }
+
+        return isMaster() ? mixer.getMasterMeter() : mixer.getBus(this.name).getLevelMeter();
+    }
+
+    /**
+     * Makes this category duck whenever the given sidechain category is loud, e.g. to lower music while dialogue
+     * plays.
+     *
+     * <p>
+     * The envelope of the sidechain is followed on the mixer thread, so no polling by the application is needed.
+     * Above the threshold, every dB the sidechain rises lowers this category by {@code 1 - 1 / ratio} dB. Requires a
+     * shared mixer set via {@link Sound#setMixer(AudioMixer)}. Replaces any previous ducking of this category.
+     * </p>
+     *
+     * @param sidechain
+     *            The category whose level controls this category.
+     * @param thresholdDb
+     *            The peak level of the sidechain in dBFS at which ducking starts, e.g. -30.
+     * @param ratio
+     *            At least 1, larger values duck harder.
+     * @param attackMillis
+     *            The time for the envelope to follow a rising sidechain level.
+     * @param releaseMillis
+     *            The time for the envelope to follow a falling sidechain level.
+     * @throws IllegalStateException
+     *             If no shared mixer is set.
+     * @throws IllegalArgumentException
+     *             If either category is the master category or both are the same.
+     */
+    public void duck(SoundCategory sidechain, float thresholdDb, float ratio, float attackMillis, float releaseMillis)
+    {
+        AudioMixer mixer = Sound.getMixer();
+
+        if (mixer == null)
+        {
+            throw new IllegalStateException("Ducking requires a shared mixer.");
+        }
+
+        if (isMaster() || sidechain.isMaster())
+        {
+            throw new IllegalArgumentException("The master category can not be ducked or duck another category.");
+        }
+
+        mixer.getBus(this.name).setDucking(mixer.getBus(sidechain.getName()),
+                                           thresholdDb,
+                                           ratio,
+                                           attackMillis,
+                                           releaseMillis);
+        mixer.updateTracks();
+    }
+
+    /**
+     * Removes the ducking of this category set via {@link #duck(SoundCategory, float, float, float, float)}.
+     */
+    public void stopDucking()
+    {
+        AudioMixer mixer = Sound.getMixer();
+
+        if (mixer != null && !isMaster())
+        {
+            mixer.getBus(this.name).clearDucking();
+        }
+    }
+
+    /**
+     * Plays this category on a further output device of the shared mixer, e.g. voice chat on a headset while music
+     * plays through the speakers.
+     *
+     * <p>
+     * The device is added via {@link AudioMixer#addOutput(javax.sound.sampled.Mixer)}. Its clock is kept in step with
+     * the shared mixer, so sounds of different categories stay in sync. Requires a shared mixer set via
+     * {@link Sound#setMixer(AudioMixer)}.
+     * </p>
+     *
+     * @param output
+     *            An output of the shared mixer, or null to play this category through the mixer again.
+     * @throws IllegalStateException
+     *             If no shared mixer is set.
+     * @throws IllegalArgumentException
+     *             If this is the master category or the output does not belong to the shared mixer.
+     */
+    public void routeTo(AudioMixerOutput output)
+    {
+        AudioMixer mixer = Sound.getMixer();
+
+        if (mixer == null)
+        {
+            throw new IllegalStateException("Routing requires a shared mixer.");
+        }
+
+        if (isMaster())
+        {
+            throw new IllegalArgumentException("The master category can not be routed.");
+        }
+
+        mixer.setBusOutput(this.name, output);
+        mixer.updateTracks();
+    }
+
+    /**
+     * Gets the sounds of this category. The order changes when sounds are removed.
+     *
+     * @return The sounds.
+     */
     public List<Sound> getSounds()
     {
         return sounds;
@@ -60,6 +248,11 @@ public class SoundCategory
         {
             sound.pause();
         }
+
+        for (var supplier : this.suppliers)
+        {
+            supplier.pauseVoices();
+        }
     }
 
     public synchronized void resumeAll()
@@ -68,5 +261,10 @@ public class SoundCategory
         {
             sound.resume();
         }
+
+        for (var supplier : this.suppliers)
+        {
+            supplier.resumeVoices();
+        }
     }
-}
\ No newline at end of file
+}
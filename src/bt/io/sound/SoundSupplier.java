@@ -1,26 +1,52 @@
 package bt.io.sound;
 
 import bt.io.sound.philfrei.audiocue.AudioCue;
+import bt.io.sound.philfrei.audiocue.AudioMixer;
+import bt.io.sound.philfrei.audiocue.LoudnessAnalyzer;
 import bt.log.Log;
 import bt.types.Killable;
+import bt.utils.NumberUtils;
 import bt.utils.StringID;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 
 import javax.sound.sampled.*;
 
 /**
  * A class which holds sound data and supplies Sound instances on demand.
  *
+ * <p>
+ * Besides {@link Sound} objects, a supplier can play fire-and-forget voices via {@link #play()}, which return a
+ * <i>handle</i> instead of an object. A handle combines the instance hook of the underlying {@link AudioCue} with the
+ * generation of the instance, so a handle whose play has ended and whose instance has been reused is recognized as
+ * stale and ignored. Playing a voice this way creates no objects and registers no listener.
+ * </p>
+ *
  * @author &#8904
  */
 public class SoundSupplier implements Killable
 {
+    /**
+     * The largest boost in dB applied by {@link #normalizeLoudness(LoudnessCache, double)}, so that very quiet assets
+     * do not have their noise floor raised excessively.
+     */
+    public static final double MAX_NORMALIZATION_GAIN_DB = 12;
+
     private float volume = 1;
     private String soundCategory;
     private AudioCue audioCue;
+    private AudioMixer mixer;
+    private int masterSlot = -1;
+    private int categorySlot = -1;
+
+    // Sound objects and the handles of paused handle voices (-1 if none), indexed by instance hook
+    private volatile Sound[] owners = new Sound[0];
+    private volatile long[] pausedVoices = new long[0];
+    private volatile boolean listening;
+    private final LineStopListener stopListener = this::dispatchStop;
 
     /**
      * Creates a new instance and loads the audio from the given file.
@@ -47,7 +73,9 @@ public class SoundSupplier implements Killable
     {
         Sound.createSoundCategoryIfNotExist(Sound.MASTER_CATEGORY);
         this.audioCue = AudioCue.makeStereoCue(url, concurrentPlays);
-        this.audioCue.open();
+        openCue();
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).addSupplier(this);
+        updateVolume();
     }
 
     /**
@@ -77,7 +105,65 @@ public class SoundSupplier implements Killable
     {
         Sound.createSoundCategoryIfNotExist(Sound.MASTER_CATEGORY);
         this.audioCue = AudioCue.makeStereoCue(ais, StringID.uniqueID(), concurrentPlays);
-        this.audioCue.open();
+        openCue();
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).addSupplier(this);
+        updateVolume();
+    }
+
+    /**
+     * Creates a new instance which plays the given entry of a memory-mapped {@link SoundBank}.
+     *
+     * <p>
+     * The sample data is read directly from the mapping and is not copied onto the heap.
+     * </p>
+     *
+     * @param bank
+     *            The sound bank that contains the sound.
+     * @param name
+     *            The name of the entry inside the bank.
+     * @param concurrentPlays
+     *            The number of sounds from this supplier that can be played concurrently.
+     */
+    public SoundSupplier(SoundBank bank, String name, int concurrentPlays) throws LineUnavailableException
+    {
+        Sound.createSoundCategoryIfNotExist(Sound.MASTER_CATEGORY);
+        this.audioCue = bank.createCue(name, concurrentPlays);
+        openCue();
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).addSupplier(this);
+        updateVolume();
+    }
+
+    /**
+     * Creates a new instance which plays the given cue. The cue must not be opened yet.
+     *
+     * @param audioCue
+     *            The cue that holds the sound data.
+     */
+    protected SoundSupplier(AudioCue audioCue) throws LineUnavailableException
+    {
+        Sound.createSoundCategoryIfNotExist(Sound.MASTER_CATEGORY);
+        this.audioCue = audioCue;
+        openCue();
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).addSupplier(this);
+        updateVolume();
+    }
+
+    /**
+     * Opens the cue on the shared mixer set via {@link Sound#setMixer(AudioMixer)} or on its own output line if
+     * there is none.
+     */
+    private void openCue() throws LineUnavailableException
+    {
+        this.mixer = Sound.getMixer();
+
+        if (this.mixer == null)
+        {
+            this.audioCue.open();
+        }
+        else
+        {
+            this.audioCue.open(this.mixer);
+        }
     }
 
     public void setName(String name)
@@ -105,8 +191,21 @@ public class SoundSupplier implements Killable
      */
     public void setSoundCategory(String soundCategory)
     {
+        if (this.soundCategory != null && !Sound.MASTER_CATEGORY.equals(this.soundCategory))
+        {
+            Sound.soundCategories.get(this.soundCategory).removeSupplier(this);
+        }
+
         this.soundCategory = soundCategory.toLowerCase();
         Sound.createSoundCategoryIfNotExist(this.soundCategory);
+        Sound.soundCategories.get(this.soundCategory).addSupplier(this);
+        updateVolume();
+
+        if (this.mixer != null)
+        {
+            this.mixer.setTrackBus(this.audioCue, Sound.MASTER_CATEGORY.equals(this.soundCategory) ? null : this.soundCategory);
+            this.mixer.updateTracks();
+        }
     }
 
     public String getSoundCategory()
@@ -133,21 +232,375 @@ public class SoundSupplier implements Killable
     {
         Sound sound = new Sound(this);
         sound.setVolume(this.volume);
-        Sound.soundCategories.get(Sound.MASTER_CATEGORY).addSound(sound);
+        sound.addToCategories(this.soundCategory == null ? null : Sound.soundCategories.get(this.soundCategory));
 
+        return sound;
+    }
+
+    /**
+     * Plays a voice once with the volume of this supplier.
+     *
+     * @return The handle of the voice or -1 if all concurrent plays are in use.
+     */
+    public long play()
+    {
+        return play(this.volume, 0, 1, 0, 0);
+    }
+
+    /**
+     * Plays a voice.
+     *
+     * <p>
+     * The instance of the voice is released automatically when it ends or when it is stopped via
+     * {@link #stop(long)}. Afterwards the handle is stale and all methods taking it have no effect.
+     * </p>
+     *
+     * @param volume
+     *            A value between 0 and 1.
+     * @param pan
+     *            A value between -1 (left) and 1 (right).
+     * @param speed
+     *            The play speed, 1 is the original speed.
+     * @param loop
+     *            The number of repetitions, -1 to loop until stopped.
+     * @param priority
+     *            The priority used for voice stealing.
+     * @return The handle of the voice or -1 if all concurrent plays are in use.
+     */
+    public long play(float volume, float pan, float speed, int loop, int priority)
+    {
+        int hook = obtainInstance(priority);
 
-        if (this.soundCategory != null)
+        if (hook == -1)
         {
-            Sound.soundCategories.get(this.soundCategory).addSound(sound);
+            return -1;
         }
 
-        return sound;
+        this.audioCue.setVolume(hook, volume);
+        this.audioCue.setPan(hook, pan);
+        this.audioCue.setSpeed(hook, speed);
+        this.audioCue.setLooping(hook, loop);
+        this.audioCue.setRecycleWhenDone(hook, true);
+        this.audioCue.start(hook);
+
+        return ((long)this.audioCue.getGeneration(hook) << 32) | hook;
+    }
+
+    /**
+     * Obtains an instance of the cue for a new play and prepares it via {@link #prepareInstance(int)}.
+     *
+     * @return The hook of the instance or -1 if all concurrent plays are in use.
+     */
+    int obtainInstance(int priority)
+    {
+        int hook = this.audioCue.obtainInstance(priority);
+
+        if (hook != -1)
+        {
+            prepareInstance(hook);
+        }
+
+        return hook;
+    }
+
+    /**
+     * Called for every obtained instance before it is started. Does nothing by default.
+     *
+     * @param hook
+     *            The hook of the instance.
+     */
+    void prepareInstance(int hook)
+    {
+    }
+
+    /**
+     * Resolves a handle to the instance hook of the underlying cue.
+     *
+     * @return The hook or -1 if the handle is stale.
+     */
+    private int hookOf(long handle)
+    {
+        int hook = (int)handle;
+
+        if (handle == -1 || hook < 0 || hook >= this.audioCue.getAllocatedInstances())
+        {
+            return -1;
+        }
+
+        if (this.audioCue.getGeneration(hook) != (int)(handle >>> 32) || !this.audioCue.getIsActive(hook))
+        {
+            return -1;
+        }
+
+        return hook;
+    }
+
+    /**
+     * Checks whether the voice of the given handle is still playing.
+     *
+     * @param handle
+     * @return true if the voice is playing or paused.
+     */
+    public boolean isPlaying(long handle)
+    {
+        return hookOf(handle) != -1;
+    }
+
+    /**
+     * Stops the voice of the given handle and releases its instance.
+     *
+     * @param handle
+     */
+    public void stop(long handle)
+    {
+        int hook = hookOf(handle);
+
+        if (hook != -1)
+        {
+            long[] paused = this.pausedVoices;
+
+            // the instance may be reused by another owner before the voices are resumed
+            if (hook < paused.length)
+            {
+                paused[hook] = -1;
+            }
+
+            this.audioCue.stop(hook);
+            this.audioCue.releaseInstance(hook);
+        }
+    }
+
+    public void setVolume(long handle, float volume)
+    {
+        int hook = hookOf(handle);
+
+        if (hook != -1)
+        {
+            this.audioCue.setVolume(hook, NumberUtils.clamp(volume, 0, 1));
+        }
+    }
+
+    public void setPan(long handle, float pan)
+    {
+        int hook = hookOf(handle);
+
+        if (hook != -1)
+        {
+            this.audioCue.setPan(hook, pan);
+        }
+    }
+
+    public void setSpeed(long handle, float speed)
+    {
+        int hook = hookOf(handle);
+
+        if (hook != -1)
+        {
+            this.audioCue.setSpeed(hook, speed);
+        }
+    }
+
+    public void setEmitter(long handle, SpatialEmitter emitter)
+    {
+        int hook = hookOf(handle);
+
+        if (hook != -1)
+        {
+            this.audioCue.setSpatializer(hook, emitter);
+        }
+    }
+
+    /**
+     * Sets a gain on the cue which brings its integrated loudness to the given target, so that suppliers loaded from
+     * differently mastered assets play at consistent levels without tuning their volume by hand.
+     *
+     * <p>
+     * The loudness is taken from the cache if the content has been measured before, otherwise it is measured now and
+     * added to the cache. Call {@link LoudnessCache#save()} after loading to persist new entries. Boosts are limited
+     * to {@link #MAX_NORMALIZATION_GAIN_DB}, silent content is left unchanged. The gain is applied together with the
+     * category volumes and adds no cost during playback.
+     * </p>
+     *
+     * @param cache
+     *            The cache to use or null to always measure.
+     * @param targetLufs
+     *            The wanted integrated loudness, e.g. -23 for EBU R128 or -16 for louder game mixes.
+     * @return The measured loudness in LUFS.
+     */
+    public double normalizeLoudness(LoudnessCache cache, double targetLufs)
+    {
+        double loudness = cache == null ? this.audioCue.measureLoudness() : cache.getLoudness(this.audioCue);
+        this.audioCue.setNormalizationGain(LoudnessAnalyzer.normalizationGain(loudness,
+                                                                              targetLufs,
+                                                                              MAX_NORMALIZATION_GAIN_DB));
+        return loudness;
+    }
+
+    /**
+     * Gets the gain set by {@link #normalizeLoudness(LoudnessCache, double)}.
+     *
+     * @return The linear gain, 1 if the supplier has not been normalized.
+     */
+    public float getNormalizationGain()
+    {
+        return this.audioCue.getNormalizationGain();
+    }
+
+    /**
+     * Applies the volumes of the master category and the category of this supplier to the cue.
+     */
+    void updateVolume()
+    {
+        float volume = Sound.soundCategories.get(Sound.MASTER_CATEGORY).getVolume();
+
+        if (this.soundCategory != null && !Sound.MASTER_CATEGORY.equals(this.soundCategory))
+        {
+            volume *= Sound.soundCategories.get(this.soundCategory).getVolume();
+        }
+
+        this.audioCue.setCueVolume(volume);
+    }
+
+    /**
+     * Assigns the given sound to an instance, so it is notified when the instance stops.
+     */
+    void bind(int hook, Sound sound)
+    {
+        if (hook >= this.owners.length)
+        {
+            grow(hook + 1);
+        }
+
+        if (!this.listening)
+        {
+            synchronized (this)
+            {
+                if (!this.listening)
+                {
+                    this.audioCue.addAudioCueListener(this.stopListener);
+                    this.listening = true;
+                }
+            }
+        }
+
+        this.owners[hook] = sound;
+    }
+
+    void unbind(int hook)
+    {
+        Sound[] owners = this.owners;
+
+        if (hook < owners.length)
+        {
+            owners[hook] = null;
+        }
+    }
+
+    private synchronized void grow(int length)
+    {
+        length = Math.max(length, this.audioCue.getMaxPolyphony());
+
+        if (length > this.owners.length)
+        {
+            long[] paused = Arrays.copyOf(this.pausedVoices, length);
+            Arrays.fill(paused, this.pausedVoices.length, length, -1);
+            this.pausedVoices = paused;
+            this.owners = Arrays.copyOf(this.owners, length);
+        }
+    }
+
+    private void dispatchStop(int hook)
+    {
+        Sound[] owners = this.owners;
+        Sound owner = hook < owners.length ? owners[hook] : null;
+
+        if (owner != null)
+        {
+            owner.onStop(hook);
+        }
+    }
+
+    /**
+     * Pauses all playing handle voices. Sound objects are paused by their categories.
+     *
+     * <p>
+     * The handle of every paused voice is kept, so {@link #resumeVoices()} only restarts instances that still belong to
+     * the same play.
+     * </p>
+     */
+    synchronized void pauseVoices()
+    {
+        int count = this.audioCue.getAllocatedInstances();
+
+        if (count > this.pausedVoices.length)
+        {
+            grow(count);
+        }
+
+        for (int hook = 0; hook < count; hook++)
+        {
+            if (this.owners[hook] == null && this.audioCue.getIsActive(hook) && this.audioCue.getIsPlaying(hook))
+            {
+                this.audioCue.stop(hook);
+                this.pausedVoices[hook] = ((long)this.audioCue.getGeneration(hook) << 32) | hook;
+            }
+        }
+    }
+
+    synchronized void resumeVoices()
+    {
+        long[] paused = this.pausedVoices;
+        Sound[] owners = this.owners;
+
+        for (int hook = 0; hook < paused.length; hook++)
+        {
+            long handle = paused[hook];
+
+            if (handle != -1)
+            {
+                paused[hook] = -1;
+
+                // skips voices that were stopped meanwhile and instances that were obtained again since
+                if (hookOf(handle) == hook && owners[hook] == null && !this.audioCue.getIsPlaying(hook))
+                {
+                    this.audioCue.setRecycleWhenDone(hook, true);
+                    this.audioCue.start(hook);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the position of this supplier in the lists of the given category, -1 if it is no member.
+     */
+    int getSlot(SoundCategory category)
+    {
+        return category.isMaster() ? this.masterSlot : this.categorySlot;
+    }
+
+    void setSlot(SoundCategory category, int slot)
+    {
+        if (category.isMaster())
+        {
+            this.masterSlot = slot;
+        }
+        else
+        {
+            this.categorySlot = slot;
+        }
     }
 
     @Override
     public void kill()
     {
         Log.info("Closing sound '{}'", this.audioCue.getName());
+        Sound.soundCategories.get(Sound.MASTER_CATEGORY).removeSupplier(this);
+
+        if (this.soundCategory != null && !Sound.MASTER_CATEGORY.equals(this.soundCategory))
+        {
+            Sound.soundCategories.get(this.soundCategory).removeSupplier(this);
+        }
+
         this.audioCue.close();
     }
 }
\ No newline at end of file
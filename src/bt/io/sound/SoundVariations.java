@@ -0,0 +1,298 @@
+package bt.io.sound;
+
+import bt.io.sound.philfrei.audiocue.AudioCue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Random;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * A supplier which groups several variants of a sound, e.g. footsteps or impacts, and plays one of them for every
+ * {@link Sound} and every voice it supplies.
+ *
+ * <p>
+ * The variants are stored one after another in a single {@link AudioCue}, so the container needs only one cue, one
+ * mixer track and one set of instances, no matter how many variants it holds. Every play is restricted to the region
+ * of the chosen variant. On top of the selection, the volume and pitch of every play can be varied at random within
+ * the ranges set via {@link #setVariation(float, float)}; these are drawn by the mixer when the voice starts.
+ * </p>
+ *
+ * <p>
+ * All variants must be in the format supported by {@link AudioCue}.
+ * </p>
+ *
+ * @author &#8904
+ */
+public class SoundVariations extends SoundSupplier
+{
+    /**
+     * The ways a variant is chosen for a play.
+     */
+    public enum Selection
+    {
+        /**
+         * Any variant at random, but never the same one twice in a row.
+         */
+        RANDOM,
+
+        /**
+         * Every variant once in random order before any is repeated, without repeating the last variant of one round
+         * at the start of the next.
+         */
+        SHUFFLE
+    }
+
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] order;
+    private final Random random = new Random();
+    private Selection selection = Selection.SHUFFLE;
+    private int position;
+    private int last = -1;
+
+    /**
+     * Creates a new instance and loads the variants from the given files.
+     *
+     * @param files
+     *            The sound files of the variants.
+     * @param concurrentPlays
+     *            The number of sounds from this container that can be played concurrently.
+     */
+    public SoundVariations(File[] files, int concurrentPlays) throws IOException, UnsupportedAudioFileException, LineUnavailableException
+    {
+        this(toUrls(files), concurrentPlays);
+    }
+
+    /**
+     * Creates a new instance and loads the variants from the given URLs. The container is named after the first URL.
+     *
+     * @param urls
+     *            The sound urls of the variants.
+     * @param concurrentPlays
+     *            The number of sounds from this container that can be played concurrently.
+     */
+    public SoundVariations(URL[] urls, int concurrentPlays) throws IOException, UnsupportedAudioFileException, LineUnavailableException
+    {
+        this(nameOf(urls), load(urls), concurrentPlays);
+    }
+
+    /**
+     * Creates a new instance from decoded variants.
+     *
+     * @param name
+     *            The name that will be used for the underlying AudioCue instance.
+     * @param variants
+     *            The interleaved stereo samples of each variant, see {@link AudioCue#makeStereoCue(float[], String, int)}.
+     * @param concurrentPlays
+     *            The number of sounds from this container that can be played concurrently.
+     */
+    public SoundVariations(String name, float[][] variants, int concurrentPlays) throws LineUnavailableException
+    {
+        super(AudioCue.makeStereoCue(concatenate(variants), name, concurrentPlays));
+
+        this.starts = new int[variants.length];
+        this.ends = new int[variants.length];
+        this.order = new int[variants.length];
+
+        int frame = 0;
+
+        for (int i = 0; i < variants.length; i++)
+        {
+            this.starts[i] = frame;
+            frame += variants[i].length / 2;
+            this.ends[i] = frame - 1;
+            this.order[i] = i;
+        }
+
+        this.position = this.order.length;
+    }
+
+    private static URL[] toUrls(File[] files) throws IOException
+    {
+        URL[] urls = new URL[files.length];
+
+        for (int i = 0; i < files.length; i++)
+        {
+            urls[i] = files[i].toURI().toURL();
+        }
+
+        return urls;
+    }
+
+    private static String nameOf(URL[] urls)
+    {
+        if (urls.length == 0)
+        {
+            throw new IllegalArgumentException("At least one variant is required.");
+        }
+
+        String path = urls[0].getPath();
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static float[][] load(URL[] urls) throws IOException, UnsupportedAudioFileException
+    {
+        float[][] variants = new float[urls.length][];
+
+        for (int i = 0; i < urls.length; i++)
+        {
+            try (AudioInputStream ais = AudioSystem.getAudioInputStream(urls[i]))
+            {
+                variants[i] = AudioCue.loadAudio(ais);
+            }
+        }
+
+        return variants;
+    }
+
+    private static float[] concatenate(float[][] variants)
+    {
+        if (variants.length == 0)
+        {
+            throw new IllegalArgumentException("At least one variant is required.");
+        }
+
+        int length = 0;
+
+        for (float[] variant : variants)
+        {
+            // a region needs two frames to interpolate between
+            if (variant.length < 4)
+            {
+                throw new IllegalArgumentException("Variants must be at least two frames long.");
+            }
+
+            length += variant.length;
+        }
+
+        float[] data = new float[length];
+        int offset = 0;
+
+        for (float[] variant : variants)
+        {
+            System.arraycopy(variant, 0, data, offset, variant.length);
+            offset += variant.length;
+        }
+
+        return data;
+    }
+
+    /**
+     * Sets how the variant of each play is chosen. The default is {@link Selection#SHUFFLE}.
+     *
+     * @param selection
+     */
+    public synchronized void setSelection(Selection selection)
+    {
+        this.selection = selection;
+        this.position = this.order.length;
+    }
+
+    public synchronized Selection getSelection()
+    {
+        return this.selection;
+    }
+
+    /**
+     * Restarts the random selection from the given seed, so the same sequence of variants is chosen again.
+     *
+     * @param seed
+     */
+    public synchronized void setSeed(long seed)
+    {
+        this.random.setSeed(seed);
+        this.position = this.order.length;
+        this.last = -1;
+    }
+
+    /**
+     * Sets the ranges by which the volume and pitch of every play are varied at random.
+     *
+     * @param volumeDb
+     *            The largest attenuation in dB, 0 to keep the volume.
+     * @param pitchCents
+     *            The largest pitch shift up or down in cents, 0 to keep the pitch. 100 cents are a semitone.
+     */
+    public void setVariation(float volumeDb, float pitchCents)
+    {
+        getAudioCue().setStartVariation(volumeDb, pitchCents);
+    }
+
+    /**
+     * Gets the number of variants.
+     *
+     * @return The number of variants.
+     */
+    public int getVariantCount()
+    {
+        return this.starts.length;
+    }
+
+    @Override
+    void prepareInstance(int hook)
+    {
+        int variant = nextVariant();
+        getAudioCue().setRegion(hook, this.starts[variant], this.ends[variant]);
+    }
+
+    private synchronized int nextVariant()
+    {
+        int count = this.order.length;
+
+        if (count == 1)
+        {
+            return 0;
+        }
+
+        int variant;
+
+        if (this.selection == Selection.RANDOM)
+        {
+            // draw from all but the last variant
+            variant = this.random.nextInt(this.last < 0 ? count : count - 1);
+
+            if (this.last >= 0 && variant >= this.last)
+            {
+                variant++;
+            }
+        }
+        else
+        {
+            if (this.position == count)
+            {
+                shuffle();
+            }
+
+            variant = this.order[this.position++];
+        }
+
+        this.last = variant;
+        return variant;
+    }
+
+    private void shuffle()
+    {
+        for (int i = this.order.length - 1; i > 0; i--)
+        {
+            int j = this.random.nextInt(i + 1);
+            int swap = this.order[i];
+            this.order[i] = this.order[j];
+            this.order[j] = swap;
+        }
+
+        if (this.order[0] == this.last)
+        {
+            int j = 1 + this.random.nextInt(this.order.length - 1);
+            this.order[0] = this.order[j];
+            this.order[j] = this.last;
+        }
+
+        this.position = 0;
+    }
+}
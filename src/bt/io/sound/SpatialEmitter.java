@@ -0,0 +1,127 @@
+package bt.io.sound;
+
+import java.lang.invoke.VarHandle;
+
+import bt.io.sound.philfrei.audiocue.AudioCueSpatializer;
+
+/**
+ * A sound source in 2D or 3D space that is heard by a {@link SpatialListener}.
+ *
+ * <p>
+ * Assign an emitter to a {@link Sound} via {@link Sound#setEmitter(SpatialEmitter)}. Gain and pan of the sound are then
+ * computed by the audio thread once per buffer, based on the distance and direction from the listener and the
+ * {@link AttenuationCurve}. Setters may be called from any thread, they only store the new values.
+ * </p>
+ *
+ * <p>
+ * One emitter can be shared by multiple sounds that originate from the same object.
+ * </p>
+ *
+ * @author &#8904
+ */
+public class SpatialEmitter implements AudioCueSpatializer
+{
+    private final SpatialListener listener;
+
+    // seqlock, odd while a write is in progress
+    private volatile int version;
+
+    private float x;
+    private float y;
+    private float z;
+    private AttenuationCurve curve = AttenuationCurve.INVERSE;
+    private float minDistance = 1;
+    private float maxDistance = 100;
+
+    /**
+     * Creates a new emitter at the origin that is heard by the given listener.
+     *
+     * @param listener
+     */
+    public SpatialEmitter(SpatialListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the position of the emitter.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public synchronized void setPosition(float x, float y, float z)
+    {
+        this.version++;
+        VarHandle.storeStoreFence();
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.version++;
+    }
+
+    /**
+     * Sets the position of the emitter in the x/y plane.
+     *
+     * @param x
+     * @param y
+     */
+    public void setPosition(float x, float y)
+    {
+        setPosition(x, y, 0);
+    }
+
+    /**
+     * Sets how the gain of this emitter decreases with distance. The default is {@link AttenuationCurve#INVERSE}
+     * between 1 and 100.
+     *
+     * @param curve
+     *            The attenuation curve.
+     * @param minDistance
+     *            The distance up to which the emitter is heard at full gain.
+     * @param maxDistance
+     *            The distance beyond which the emitter is inaudible.
+     */
+    public synchronized void setAttenuation(AttenuationCurve curve, float minDistance, float maxDistance)
+    {
+        if (minDistance <= 0 || maxDistance <= minDistance)
+        {
+            throw new IllegalArgumentException("Distances must satisfy 0 < minDistance < maxDistance.");
+        }
+
+        this.version++;
+        VarHandle.storeStoreFence();
+        this.curve = curve;
+        this.minDistance = minDistance;
+        this.maxDistance = maxDistance;
+        this.version++;
+    }
+
+    public SpatialListener getListener()
+    {
+        return this.listener;
+    }
+
+    @Override
+    public void computeGainPan(float[] gainPan)
+    {
+        float ex, ey, ez, min, max;
+        AttenuationCurve c;
+        int v;
+
+        do
+        {
+            v = this.version;
+            ex = this.x;
+            ey = this.y;
+            ez = this.z;
+            c = this.curve;
+            min = this.minDistance;
+            max = this.maxDistance;
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != this.version);
+
+        this.listener.computeGainPan(ex, ey, ez, c, min, max, gainPan);
+    }
+}
@@ -0,0 +1,149 @@
+package bt.io.sound;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * The point in 2D or 3D space from which {@link SpatialEmitter}s are heard.
+ *
+ * <p>
+ * Position and orientation can be updated from any thread at any time. The audio threads read a consistent state of
+ * all values once per buffer without locking, so there is no need to call setters on individual sounds every frame.
+ * </p>
+ *
+ * <p>
+ * The default orientation looks along the negative z axis with the positive y axis pointing up, so that the positive x
+ * axis is to the right. For 2D scenes in the x/y plane, use {@link #setOrientation(float, float)}.
+ * </p>
+ *
+ * @author &#8904
+ */
+public class SpatialListener
+{
+    // seqlock, odd while a write is in progress
+    private volatile int version;
+
+    private float x;
+    private float y;
+    private float z;
+
+    private float rightX = 1;
+    private float rightY;
+    private float rightZ;
+
+    /**
+     * Sets the position of the listener.
+     *
+     * @param x
+     * @param y
+     * @param z
+     */
+    public synchronized void setPosition(float x, float y, float z)
+    {
+        this.version++;
+        VarHandle.storeStoreFence();
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.version++;
+    }
+
+    /**
+     * Sets the position of the listener in the x/y plane.
+     *
+     * @param x
+     * @param y
+     */
+    public void setPosition(float x, float y)
+    {
+        setPosition(x, y, 0);
+    }
+
+    /**
+     * Sets the orientation of the listener.
+     *
+     * @param forwardX
+     * @param forwardY
+     * @param forwardZ
+     *            The direction the listener is facing.
+     * @param upX
+     * @param upY
+     * @param upZ
+     *            The direction of the top of the listener's head.
+     * @throws IllegalArgumentException
+     *             If the vectors are parallel or of length zero.
+     */
+    public synchronized void setOrientation(float forwardX, float forwardY, float forwardZ,
+                                            float upX, float upY, float upZ)
+    {
+        // right = forward x up
+        float rx = forwardY * upZ - forwardZ * upY;
+        float ry = forwardZ * upX - forwardX * upZ;
+        float rz = forwardX * upY - forwardY * upX;
+        float length = (float)Math.sqrt(rx * rx + ry * ry + rz * rz);
+
+        if (length == 0 || Float.isNaN(length))
+        {
+            throw new IllegalArgumentException("Forward and up vectors must not be parallel or of length zero.");
+        }
+
+        this.version++;
+        VarHandle.storeStoreFence();
+        this.rightX = rx / length;
+        this.rightY = ry / length;
+        this.rightZ = rz / length;
+        this.version++;
+    }
+
+    /**
+     * Sets the facing direction of a listener in the x/y plane, whose up direction is the positive z axis.
+     *
+     * @param forwardX
+     * @param forwardY
+     */
+    public void setOrientation(float forwardX, float forwardY)
+    {
+        setOrientation(forwardX, forwardY, 0, 0, 0, 1);
+    }
+
+    /**
+     * Computes gain and pan for a source at the given position.
+     *
+     * @param ex
+     * @param ey
+     * @param ez
+     *            The position of the source.
+     * @param curve
+     *            The attenuation curve of the source.
+     * @param minDistance
+     *            The distance up to which the source is heard at full gain.
+     * @param maxDistance
+     *            The distance beyond which the source is inaudible.
+     * @param gainPan
+     *            Receives the gain at index 0 and the pan at index 1.
+     */
+    void computeGainPan(float ex, float ey, float ez,
+                        AttenuationCurve curve, float minDistance, float maxDistance,
+                        float[] gainPan)
+    {
+        float dx, dy, dz, rx, ry, rz;
+        int v;
+
+        do
+        {
+            v = this.version;
+            dx = ex - this.x;
+            dy = ey - this.y;
+            dz = ez - this.z;
+            rx = this.rightX;
+            ry = this.rightY;
+            rz = this.rightZ;
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != this.version);
+
+        float distance = (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+        gainPan[0] = curve.gain(distance, minDistance, maxDistance);
+        gainPan[1] = distance > 0 ? (dx * rx + dy * ry + dz * rz) / distance : 0;
+    }
+}
@@ -38,8 +38,12 @@ package bt.io.sound.philfrei.audiocue;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 
 import javax.sound.sampled.AudioFormat;
@@ -109,16 +113,71 @@ public class AudioCue implements AudioMixerTrack
     private final int SPEED_STEPS = 1024 * 4;
     private final int PAN_STEPS = 1024;
     private final int DEFAULT_BUFFER_FRAMES = 1024 ;
+    private final int STEAL_FADE_FRAMES = 64;
 
-    private final LinkedBlockingDeque<AudioCueCursor> availables;
-    private final float[] cue;
+    private final AvailableCursors availables;
+    private FloatBuffer cue;
     private final int cueFrameLength;
-    private final AudioCueCursor[] cursors;
+    // first frame held by cue, only > 0 after trimSilence
+    private int cueOffset;
+
+    // skippable silent ranges in frames, [start, end)
+    private int[] silenceStarts = new int[0];
+    private int[] silenceEnds = new int[0];
+    private int silenceCount;
+    private int leadingSilence;
+    private int trailingSilence;
+    private volatile AudioCueCursor[] cursors;
     private final int polyphony;
+    private volatile int maxPolyphony;
+    private volatile long idleShrinkNanos = 10_000_000_000L;
+
+    // written by any thread, drained by the audio thread
+    private final AtomicReference<AudioCueCursor> pendingCursors =
+            new AtomicReference<AudioCueCursor>();
+    // owned by the audio thread
+    private AudioCueCursor[] activeCursors;
+    private int activeCount;
+    private float[] gainScratch = new float[0];
+
+    private volatile float virtualThreshold = 0.0001f;
+    private volatile int maxRealVoices = Integer.MAX_VALUE;
+    private volatile int realVoiceCount;
+    private volatile int virtualVoiceCount;
+    private volatile LevelMeter levelMeter;
+    private volatile float cueVolume = 1;
+    private volatile float normalizationGain = 1;
+    private volatile float volumeVariation;
+    private volatile float pitchVariation;
+    // audio thread, xorshift state for start variations,
+    // restarted by a recording mixer
+    private int variationRandom = 0x2545F491;
+    private volatile PeakPyramid peakPyramid;
+    private float cueGain = 1;
+    private volatile boolean warmUp;
+    private volatile long warmUpNanos;
+    // voice states, written alternately by the audio thread
+    private final VoiceSnapshot[] voiceSlots = new VoiceSnapshot[2];
+    private volatile int voiceFront = -1;
+    // set by the first read, nothing is published before
+    private volatile boolean voicesRequested;
+    private long renderedBuffers;
+
+    // output format of the AudioMixer the cue is opened on
+    private volatile ChannelLayout outputLayout = ChannelLayout.STEREO;
+    private volatile float rateRatio = 1;
+    private float[] voiceBuffer;
+    private final float[] channelIncr =
+            new float[ChannelLayout.MAX_CHANNELS];
 
     private volatile boolean playerRunning;
     private float[] readBuffer;
 
+    private volatile VoiceStealing voiceStealing = VoiceStealing.NONE;
+    private final AtomicLong obtainCounter = new AtomicLong();
+    private final AtomicLong stealCount = new AtomicLong();
+    private final AtomicLong dropCount = new AtomicLong();
+
 
     private String name;
     /**
@@ -136,8 +195,13 @@ public class AudioCue implements AudioMixerTrack
 
     // only stored if AudioMixer is opened:
     private AudioMixer audioMixer;
+    // identifies the cue in the journal of a recording mixer
+    int journalId = -1;
 
     private CopyOnWriteArrayList<AudioCueListener> listeners;
+    // snapshot of the listeners, iterated without an iterator
+    private volatile AudioCueListener[] listenerArray =
+            new AudioCueListener[0];
 
     /**
      * Registers an {@code AudioCueListener} to receive
@@ -156,7 +220,12 @@ public class AudioCue implements AudioMixerTrack
      */
     public void addAudioCueListener(AudioCueListener listener)
     {
-        listeners.add(listener);
+        synchronized (listeners)
+        {
+            listeners.add(listener);
+            listenerArray = listeners.toArray(
+                    new AudioCueListener[0]);
+        }
     }
 
     /**
@@ -169,7 +238,12 @@ public class AudioCue implements AudioMixerTrack
      */
     public void removeAudioCueListener(AudioCueListener listener)
     {
-        listeners.remove(listener);
+        synchronized (listeners)
+        {
+            listeners.remove(listener);
+            listenerArray = listeners.toArray(
+                    new AudioCueListener[0]);
+        }
     }
 
     /**
@@ -243,6 +317,275 @@ public class AudioCue implements AudioMixerTrack
     private Function<Float, Float> panL;
     private Function<Float, Float> panR;
 
+    /**
+     * The {@code enum VoiceStealing} lists the policies that
+     * determine what happens when a new instance is requested
+     * while all instances are in use. With any policy other
+     * than {@code NONE}, a playing instance is selected as
+     * the <em>victim</em>: it receives a short fade out to
+     * prevent clicks, is stopped and released (broadcasting
+     * {@code STOP_INSTANCE} and {@code RELEASE_INSTANCE}),
+     * and is then handed out as the new instance.
+     * <p>
+     * Only playing instances whose priority is lower than
+     * or equal to the priority of the request are
+     * considered as victims. If no such instance exists the
+     * request is dropped. Ties are resolved in favor of
+     * stealing the oldest instance.
+     *
+     * @see AudioCue#setVoiceStealing(VoiceStealing)
+     * @see AudioCue#setPriority(int, int)
+     */
+    public static enum VoiceStealing
+    {
+        /**
+         * Never steal an instance. Requests that can not be
+         * served are dropped. This is the default.
+         */
+        NONE,
+        /**
+         * Steals the instance that has been obtained
+         * the longest time ago.
+         */
+        OLDEST,
+        /**
+         * Steals the instance with the lowest current volume.
+         */
+        QUIETEST,
+        /**
+         * Steals the instance with the lowest priority.
+         */
+        LOWEST_PRIORITY
+    }
+
+    /**
+     * Assigns the policy that is used when a new instance
+     * is requested while all instances are in use.
+     *
+     * @param voiceStealing a member of the {@code enum
+     * AudioCue.VoiceStealing}
+     * @see VoiceStealing
+     */
+    public void setVoiceStealing(VoiceStealing voiceStealing)
+    {
+        this.voiceStealing = voiceStealing;
+    }
+
+    /**
+     * Returns the policy that is used when a new instance
+     * is requested while all instances are in use.
+     *
+     * @return a member of the {@code enum AudioCue.VoiceStealing}
+     */
+    public VoiceStealing getVoiceStealing()
+    {
+        return voiceStealing;
+    }
+
+    /**
+     * Returns the number of instances that have been stolen
+     * to serve new requests since the {@code AudioCue} was
+     * created.
+     *
+     * @return the steal count as a {@code long}
+     */
+    public long getStealCount()
+    {
+        return stealCount.get();
+    }
+
+    /**
+     * Returns the number of requests for an instance that
+     * could not be served since the {@code AudioCue} was
+     * created.
+     *
+     * @return the drop count as a {@code long}
+     */
+    public long getDropCount()
+    {
+        return dropCount.get();
+    }
+
+    /**
+     * Sets the hard limit of concurrent instances. The pool
+     * of instances initially holds the number of instances
+     * given as {@code polyphony} when the {@code AudioCue}
+     * was created, which acts as a soft limit. If all
+     * instances are in use, the pool grows by one instance
+     * per request until the hard limit is reached. Instances
+     * above the soft limit are discarded again once they have
+     * been idle for the time set via
+     * {@code setIdleShrinkMillis}.
+     * <p>
+     * The audio thread only processes instances that are
+     * playing, so a high limit does not add any cost while
+     * the instances are not in use.
+     *
+     * @param maxPolyphony an {@code int} specifying the
+     * maximum number of concurrent instances, values below
+     * the initial polyphony are raised to it
+     */
+    public void setMaxPolyphony(int maxPolyphony)
+    {
+        this.maxPolyphony = Math.max(polyphony, maxPolyphony);
+    }
+
+    /**
+     * Returns the hard limit of concurrent instances.
+     *
+     * @return the maximum number of concurrent instances
+     */
+    public int getMaxPolyphony()
+    {
+        return maxPolyphony;
+    }
+
+    /**
+     * Returns the number of instances that are currently
+     * allocated in the pool, ranging from the initial
+     * polyphony up to the maximum polyphony.
+     *
+     * @return the number of allocated instances
+     */
+    public int getAllocatedInstances()
+    {
+        return cursors.length;
+    }
+
+    /**
+     * Sets the gain below which a playing instance becomes
+     * <em>virtual</em>. The gain is the product of the
+     * instance's volume, pan factor and spatial gain. A
+     * virtual instance keeps advancing its play position and
+     * loop state, but its data is not read or mixed. Once its
+     * gain rises above the threshold again, it continues from
+     * the position it would have reached anyway. The default
+     * is 0.0001 (-80 dB).
+     *
+     * @param threshold a {@code float} gain, 0 disables
+     * virtualization of silent instances
+     */
+    public void setVirtualizationThreshold(float threshold)
+    {
+        this.virtualThreshold = Math.max(0, threshold);
+    }
+
+    /**
+     * Returns the gain below which a playing instance becomes
+     * virtual.
+     *
+     * @return the threshold as a {@code float}
+     */
+    public float getVirtualizationThreshold()
+    {
+        return virtualThreshold;
+    }
+
+    /**
+     * Sets the maximum number of instances that are mixed
+     * per buffer. If more instances are audible, the quietest
+     * ones become virtual until the loudest ones finish. This
+     * bounds the processing cost of dense scenes. Instances
+     * that change between real and virtual are faded over the
+     * course of one buffer.
+     *
+     * @param maxRealVoices an {@code int} specifying the limit
+     */
+    public void setMaxRealVoices(int maxRealVoices)
+    {
+        this.maxRealVoices = Math.max(0, maxRealVoices);
+    }
+
+    /**
+     * Returns the maximum number of instances that are mixed
+     * per buffer.
+     *
+     * @return the limit as an {@code int}
+     */
+    public int getMaxRealVoices()
+    {
+        return maxRealVoices;
+    }
+
+    /**
+     * Returns the number of playing instances that were mixed
+     * in the last buffer.
+     *
+     * @return the number of real instances
+     */
+    public int getRealVoiceCount()
+    {
+        return realVoiceCount;
+    }
+
+    /**
+     * Returns the number of playing instances that were only
+     * advanced without mixing in the last buffer.
+     *
+     * @return the number of virtual instances
+     */
+    public int getVirtualVoiceCount()
+    {
+        return virtualVoiceCount;
+    }
+
+    /**
+     * Enables metering of the summed output of this
+     * {@code AudioCue}. The returned {@code LevelMeter}
+     * measures every buffer that is produced, before the
+     * output is limited to the range -1 to 1, so clipping
+     * caused by this cue can be detected. Calling this method
+     * while metering is already enabled returns the existing
+     * meter.
+     *
+     * @param windowFrames the number of frames over which
+     * the values are measured
+     * @return the {@code LevelMeter} of this {@code AudioCue}
+     */
+    public synchronized LevelMeter enableMetering(int windowFrames)
+    {
+        if (levelMeter == null)
+        {
+            levelMeter = new LevelMeter(outputLayout.getChannels(),
+                                        windowFrames);
+        }
+        return levelMeter;
+    }
+
+    /**
+     * Disables metering of the output of this
+     * {@code AudioCue}. A meter obtained previously keeps the
+     * values of its last window.
+     */
+    public synchronized void disableMetering()
+    {
+        levelMeter = null;
+    }
+
+    /**
+     * Returns the {@code LevelMeter} of this
+     * {@code AudioCue}, or {@code null} if metering is not
+     * enabled.
+     *
+     * @return the {@code LevelMeter} or {@code null}
+     */
+    public LevelMeter getLevelMeter()
+    {
+        return levelMeter;
+    }
+
+    /**
+     * Sets the time an instance above the initial polyphony
+     * has to stay unused before it is discarded from the
+     * pool. The default is 10 seconds.
+     *
+     * @param millis the idle time in milliseconds
+     */
+    public void setIdleShrinkMillis(long millis)
+    {
+        this.idleShrinkNanos = Math.max(0, millis) * 1_000_000L;
+    }
+
     /**
      * Assigns the type of panning to be used.
      *
@@ -264,10 +607,8 @@ public class AudioCue implements AudioMixerTrack
      * per second, 16-bit encoding, stereo, little-endian.
      * The maximum number of concurrent playing instances
      * is given as the {@code polyphony} argument.
-     * The {@code polyphony} value can not be changed.
-     * A large value may require additional buffering and
-     * result in noticeable lag in order to prevent
-     * drop outs.
+     * The pool of instances can be allowed to grow beyond
+     * this value via {@code setMaxPolyphony}.
      *
      * @param cue a {@code float} array of audio data
      * in "CD Quality" format, scaled to the range
@@ -281,7 +622,34 @@ public class AudioCue implements AudioMixerTrack
     public static AudioCue makeStereoCue(float[] cue,
                                          String name, int polyphony)
     {
-        return new AudioCue(cue, name, polyphony);
+        return new AudioCue(FloatBuffer.wrap(cue), name, polyphony);
+    }
+
+    /**
+     * Creates and returns a new AudioCue that reads its
+     * audio data directly from the given {@code FloatBuffer}.
+     * The data is <em>not</em> copied, which allows a slice
+     * of a memory-mapped file (see {@code SoundBank}) to be
+     * used as the sample source without occupying space on
+     * the Java heap. The data is presumed to conform to the
+     * "CD Quality" format: 44100 frames per second, stereo,
+     * interleaved, scaled to the range [-1, 1]. Only the
+     * elements between the buffer's position and limit are
+     * used, and the buffer's position is never modified.
+     *
+     * @param cue a {@code FloatBuffer} of audio data
+     * in "CD Quality" format, scaled to the range
+     * [-1, 1]
+     * @param name a {@code String} to be associated
+     * with the {@code AudioCue}
+     * @param polyphony an {@code int} specifying
+     * the maximum number of concurrent instances
+     * @return AudioCue
+     */
+    public static AudioCue makeStereoCue(FloatBuffer cue,
+                                         String name, int polyphony)
+    {
+        return new AudioCue(cue.slice(), name, polyphony);
     }
 
     /**
@@ -291,10 +659,9 @@ public class AudioCue implements AudioMixerTrack
      * supported: 44100 frames per second, 16-bit encoding,
      * stereo, little-endian. The maximum number of
      * concurrent playing instances is given as
-     * the {@code polyphony} argument. The {@code polyphony}
-     * value can not be changed. A large value may require
-     * additional buffering and result in noticeable lag
-     * in order to prevent drop outs.
+     * the {@code polyphony} argument. The pool of instances
+     * can be allowed to grow beyond this value via
+     * {@code setMaxPolyphony}.
      * <p>
      * The file name provided by the URL is automatically
      * used as the name for the {@code AudioCue}, but can
@@ -316,7 +683,7 @@ public class AudioCue implements AudioMixerTrack
         String name = urlName.substring(urlName.lastIndexOf("/") + 1, urlLen);
         float[] cue = AudioCue.loadURL(url);
 
-        return new AudioCue(cue, name, polyphony);
+        return new AudioCue(FloatBuffer.wrap(cue), name, polyphony);
     }
 
     public static AudioCue makeStereoCue(AudioInputStream ais, String name, int polyphony)
@@ -324,29 +691,30 @@ public class AudioCue implements AudioMixerTrack
     {
         float[] cue = AudioCue.loadAudio(ais);
 
-        return new AudioCue(cue, name, polyphony);
+        return new AudioCue(FloatBuffer.wrap(cue), name, polyphony);
     }
 
     /**
      * Private constructor, used internally.
      *
-     * @param cue a {@code float} array of audio data
+     * @param cue a {@code FloatBuffer} of audio data
      * in "CD Quality" format, scaled to the range [-1..1]
      * @param name a {@code String} to be associated
      * with the {@code AudioCue}
      * @param polyphony an {@code int} specifying
      * the maximum number of concurrent instances
      */
-    private AudioCue(float[] cue, String name, int polyphony)
+    private AudioCue(FloatBuffer cue, String name, int polyphony)
     {
         this.cue = cue;
-        this.cueFrameLength = cue.length / 2;
+        this.cueFrameLength = cue.limit() / 2;
         this.polyphony = polyphony;
+        this.maxPolyphony = polyphony;
         this.name = name;
 
-        availables =
-                new LinkedBlockingDeque<AudioCueCursor>(polyphony);
+        availables = new AvailableCursors();
         cursors = new AudioCueCursor[polyphony];
+        activeCursors = new AudioCueCursor[Math.max(1, polyphony)];
 
         for (int i = 0; i < polyphony; i++)
         {
@@ -361,7 +729,20 @@ public class AudioCue implements AudioMixerTrack
         listeners = new CopyOnWriteArrayList<AudioCueListener>();
     }
 
-    private static float[] loadAudio(AudioInputStream ais) throws
+    /**
+     * Reads the given stream into a {@code float} array of
+     * interleaved stereo samples scaled to the range [-1, 1].
+     * The stream is presumed to deliver "CD Quality" data:
+     * 44100 frames per second, 16-bit encoding, stereo,
+     * little-endian.
+     *
+     * @param ais the {@code AudioInputStream} to read
+     * @return the normalized sample data
+     * @throws UnsupportedAudioFileException if the media
+     * is not of "CD Quality"
+     * @throws IOException if unable to read the stream
+     */
+    public static float[] loadAudio(AudioInputStream ais) throws
                                             UnsupportedAudioFileException, IOException
     {
         int framesCount = 0;
@@ -415,56 +796,139 @@ public class AudioCue implements AudioMixerTrack
     }
 
     /**
-     * Allocates resources for media play, using default
-     * {@code Mixer}, thread priority and buffer size values. The
-     * {@code AudioCueListener} will broadcast a notification
-     * using the method {@code audioCueOpened}.
+     * Analyses the audio data for silence. Every frame whose
+     * samples on both channels do not exceed the threshold in
+     * magnitude is regarded as silent. Silence at the head and
+     * the tail of the cue, as well as every silent region of
+     * at least {@code minFrames} in between, is recorded.
+     * <p>
+     * While an instance plays through a recorded region, its
+     * play position advances in time as usual but no data is
+     * read or mixed. Frame positions and timing are identical
+     * to those of the unprocessed cue.
+     * <p>
+     * If the cue was trimmed via {@code trimSilence} before,
+     * the released frames of its head and tail count as silent.
+     * <p>
+     * This method must be called before the {@code AudioCue}
+     * is opened.
      *
-     * @throws IllegalStateException if the player is already
-     * open
-     * @throws LineUnavailableException if unable to obtain a
-     * {@code SourceDataLine} for the player
+     * @param threshold a {@code float} magnitude, samples
+     * at or below it count as silent
+     * @param minFrames an {@code int} specifying the minimum
+     * length of a silent region between non-silent data
+     * @throws IllegalStateException if the {@code AudioCue}
+     * is already open
      */
-    public void open() throws IllegalStateException, LineUnavailableException
+    public void analyzeSilence(float threshold, int minFrames)
+            throws IllegalStateException
     {
-        open(null, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+        if (playerRunning)
+        {
+            throw new IllegalStateException(
+                    "Already open.");
+        }
+
+        int head = 0;
+        while (head < cueFrameLength && isSilentFrame(head, threshold))
+        {
+            head++;
+        }
+
+        int tail = cueFrameLength;
+        while (tail > head && isSilentFrame(tail - 1, threshold))
+        {
+            tail--;
+        }
+
+        int[] starts = new int[4];
+        int[] ends = new int[4];
+        int count = 0;
+
+        // A LERP read at position p uses frames floor(p) and
+        // floor(p) + 1, so a run of silent frames [s, e) can
+        // only be skipped within [s, e - 1).
+        if (head > 1)
+        {
+            starts[0] = 0;
+            ends[0] = head - 1;
+            count++;
+        }
+
+        int runStart = -1;
+        for (int frame = head; frame < tail; frame++)
+        {
+            if (isSilentFrame(frame, threshold))
+            {
+                if (runStart < 0) runStart = frame;
+            }
+            else if (runStart >= 0)
+            {
+                if (frame - runStart >= Math.max(2, minFrames))
+                {
+                    if (count == starts.length)
+                    {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        ends = Arrays.copyOf(ends, count * 2);
+                    }
+                    starts[count] = runStart;
+                    ends[count] = frame - 1;
+                    count++;
+                }
+                runStart = -1;
+            }
+        }
+
+        if (tail < cueFrameLength - 1)
+        {
+            if (count == starts.length)
+            {
+                starts = Arrays.copyOf(starts, count + 1);
+                ends = Arrays.copyOf(ends, count + 1);
+            }
+            starts[count] = tail;
+            ends[count] = cueFrameLength;
+            count++;
+        }
+
+        silenceStarts = starts;
+        silenceEnds = ends;
+        silenceCount = count;
+        leadingSilence = head;
+        trailingSilence = cueFrameLength - tail;
     }
 
-    /**
-     * Allocates resources for media play, using the
-     * default {@code Mixer} and thread priority values, while
-     * setting the internal a custom buffer size. The
-     * {@code AudioCueListener} will broadcast a notification
-     * using the method {@code audioCueOpened}.
-     *
-     * @param bufferFrames number of stereo frames
-     * @throws IllegalStateException if the player is already
-     * open
-     * @throws LineUnavailableException if unable to obtain a
-     * {@code SourceDataLine} for the player
+    /*
+     * Frames released by trimSilence are no longer held, they
+     * were silent when they were trimmed.
      */
-    public void open(int bufferFrames) throws IllegalStateException, LineUnavailableException
+    private boolean isSilentFrame(int frame, float threshold)
     {
-        open(null, bufferFrames, Thread.MAX_PRIORITY);
+        int flatIndex = (frame - cueOffset) * 2;
+        if (flatIndex < 0 || flatIndex + 1 >= cue.limit())
+        {
+            return true;
+        }
+
+        return Math.abs(cue.get(flatIndex)) <= threshold
+                && Math.abs(cue.get(flatIndex + 1)) <= threshold;
     }
 
     /**
-     * Allocates resources for media play, setting explicit values to
-     * over ride the defaults. The {@code AudioCueListener}  will
-     * broadcast a notification using the method {@code audioCueOpened}.
+     * Releases the storage of the silent head and tail that
+     * have been found by {@code analyzeSilence}. Data held in
+     * a {@code float} array is copied into a smaller array,
+     * data held in other buffers (for example a mapped
+     * {@code SoundBank}) is sliced. Frame positions and
+     * lengths remain those of the original cue.
+     * <p>
+     * This method must be called before the {@code AudioCue}
+     * is opened.
      *
-     * @param mixer a {@code javax.sound.sampled.Mixer}
-     * @param bufferFrames an {@code int} specifying the size of the
-     * internal buffer
-     * @param threadPriority an {@code int} specifying the priority
-     * level of the thread, ranging [1, 10]
-     * @throws LineUnavailableException if unable to obtain a
-     * {@code SourceDataLine} for the player
-     * @throws IllegalStateException if the {@code AudioCue} is
-     * already open
+     * @throws IllegalStateException if the {@code AudioCue}
+     * is already open
      */
-    public void open(Mixer mixer, int bufferFrames, int threadPriority)
-            throws LineUnavailableException, IllegalStateException
+    public void trimSilence() throws IllegalStateException
     {
         if (playerRunning)
         {
@@ -472,41 +936,278 @@ public class AudioCue implements AudioMixerTrack
                     "Already open.");
         }
 
-        AudioCuePlayer player = new AudioCuePlayer(mixer, bufferFrames);
-        Thread t = new Thread(player);
+        // keep the frames that bound the skipped ranges, they
+        // are still read by the LERP
+        int first = Math.max(cueOffset, leadingSilence - 1);
+        int last = Math.min(cueFrameLength - 1,
+                            cueFrameLength - trailingSilence);
 
-        t.setPriority(threadPriority);
-        playerRunning = true;
-        t.start();
+        if (first == cueOffset
+                && last == cueOffset + cue.limit() / 2 - 1)
+        {
+            return;
+        }
 
-        broadcastOpenEvent(t.getPriority(), bufferFrames, name);
+        int from = (first - cueOffset) * 2;
+        int to = (last - cueOffset + 1) * 2;
+
+        if (cue.hasArray())
+        {
+            float[] trimmed = new float[to - from];
+            FloatBuffer source = cue.duplicate();
+            source.position(from);
+            source.get(trimmed);
+            cue = FloatBuffer.wrap(trimmed);
+        }
+        else
+        {
+            FloatBuffer source = cue.duplicate();
+            source.position(from);
+            source.limit(to);
+            cue = source.slice();
+        }
+
+        cueOffset = first;
+        // built on the old data, which it would keep alive
+        peakPyramid = null;
     }
 
     /**
-     * Assigns an {@code AudioMixer}, instead of an internal
-     * AudioCuePlay, for media playback. The buffer size
-     * and thread priority of the {@code AudioMixer} will be
-     * used for playback. The {@code AudioCueListener} will
-     * broadcast a notification using the method
-     * {@code audioCueOpened}.
+     * Returns the number of silent frames at the head of
+     * the cue, as found by {@code analyzeSilence}.
      *
-     * @param audioMixer
-     * @throws IllegalStateException
+     * @return the number of frames
      */
-    public void open(AudioMixer audioMixer) throws IllegalStateException
+    public int getLeadingSilence()
     {
-        if (playerRunning)
-        {
-            throw new IllegalStateException(
-                    "Already open.");
-        }
-        playerRunning = true;
-        this.audioMixer = audioMixer;
-
-        // assigned size is frames * stereo
-        readBuffer = new float[audioMixer.bufferSize * 2];
+        return leadingSilence;
+    }
 
-        audioMixer.addTrack(this);
+    /**
+     * Returns the number of silent frames at the tail of
+     * the cue, as found by {@code analyzeSilence}.
+     *
+     * @return the number of frames
+     */
+    public int getTrailingSilence()
+    {
+        return trailingSilence;
+    }
+
+    /**
+     * Returns the number of silent regions, including head
+     * and tail, that are skipped during playback.
+     *
+     * @return the number of regions
+     */
+    public int getSilentRegionCount()
+    {
+        return silenceCount;
+    }
+
+    /**
+     * Sets whether {@code open} prepares the cue for
+     * playback before it returns, so the first instances
+     * played do not glitch. The sample data is read once, which
+     * loads data that is memory-mapped or paged out. When the
+     * cue plays on its own output line, buffers in its format
+     * are also rendered offline, without output, until the JIT
+     * has compiled the mixing code. A cue opened on an
+     * {@code AudioMixer} relies on the warm-up of the mixer
+     * instead, see {@code AudioMixer.setWarmUp}.
+     *
+     * @param warmUp {@code true} to prepare the cue on
+     * {@code open}, the default is {@code false}
+     */
+    public void setWarmUp(boolean warmUp)
+    {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Returns whether {@code open} prepares the cue for
+     * playback before it returns.
+     *
+     * @return {@code true} if the cue is warmed up on
+     * {@code open}
+     * @see #setWarmUp(boolean)
+     */
+    public boolean isWarmUp()
+    {
+        return warmUp;
+    }
+
+    /**
+     * Returns how long the last warm-up took.
+     *
+     * @return the time in nanoseconds, 0 if the cue was
+     * not warmed up
+     * @see #setWarmUp(boolean)
+     */
+    public long getWarmUpNanos()
+    {
+        return warmUpNanos;
+    }
+
+    /*
+     * Reads the sample data once, returns the time taken in
+     * nanoseconds.
+     */
+    long touchSamples()
+    {
+        long start = System.nanoTime();
+        WarmUp.touch(cue);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Allocates resources for media play, using default
+     * {@code Mixer}, thread priority and buffer size values. The
+     * {@code AudioCueListener} will broadcast a notification
+     * using the method {@code audioCueOpened}.
+     *
+     * @throws IllegalStateException if the player is already
+     * open
+     * @throws LineUnavailableException if unable to obtain a
+     * {@code SourceDataLine} for the player
+     */
+    public void open() throws IllegalStateException, LineUnavailableException
+    {
+        open(null, DEFAULT_BUFFER_FRAMES, Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Allocates resources for media play, using the
+     * default {@code Mixer} and thread priority values, while
+     * setting the internal a custom buffer size. The
+     * {@code AudioCueListener} will broadcast a notification
+     * using the method {@code audioCueOpened}.
+     *
+     * @param bufferFrames number of stereo frames
+     * @throws IllegalStateException if the player is already
+     * open
+     * @throws LineUnavailableException if unable to obtain a
+     * {@code SourceDataLine} for the player
+     */
+    public void open(int bufferFrames) throws IllegalStateException, LineUnavailableException
+    {
+        open(null, bufferFrames, Thread.MAX_PRIORITY);
+    }
+
+    /**
+     * Allocates resources for media play, setting explicit values to
+     * over ride the defaults. The {@code AudioCueListener}  will
+     * broadcast a notification using the method {@code audioCueOpened}.
+     *
+     * @param mixer a {@code javax.sound.sampled.Mixer}
+     * @param bufferFrames an {@code int} specifying the size of the
+     * internal buffer
+     * @param threadPriority an {@code int} specifying the priority
+     * level of the thread, ranging [1, 10]
+     * @throws LineUnavailableException if unable to obtain a
+     * {@code SourceDataLine} for the player
+     * @throws IllegalStateException if the {@code AudioCue} is
+     * already open
+     */
+    public void open(Mixer mixer, int bufferFrames, int threadPriority)
+            throws LineUnavailableException, IllegalStateException
+    {
+        if (playerRunning)
+        {
+            throw new IllegalStateException(
+                    "Already open.");
+        }
+
+        // the own line always uses the format of the cue
+        outputLayout = ChannelLayout.STEREO;
+        rateRatio = 1;
+        voiceBuffer = null;
+
+        synchronized (this)
+        {
+            if (levelMeter != null && levelMeter.getChannels() != 2)
+            {
+                levelMeter = new LevelMeter(2,
+                        levelMeter.getWindowFrames());
+            }
+        }
+
+        if (warmUp)
+        {
+            // before the line is opened, so it does not run dry
+            warmUpNanos = WarmUp.run(audioFormat.getSampleRate(),
+                    ChannelLayout.STEREO, 16, PcmConverter.Dither.NONE);
+            warmUpNanos += touchSamples();
+        }
+
+        AudioCuePlayer player = new AudioCuePlayer(mixer, bufferFrames);
+        Thread t = new Thread(player);
+
+        t.setPriority(threadPriority);
+        playerRunning = true;
+        t.start();
+
+        broadcastOpenEvent(t.getPriority(), bufferFrames, name);
+    }
+
+    /**
+     * Assigns an {@code AudioMixer}, instead of an internal
+     * AudioCuePlay, for media playback. The buffer size
+     * and thread priority of the {@code AudioMixer} will be
+     * used for playback. The {@code AudioCueListener} will
+     * broadcast a notification using the method
+     * {@code audioCueOpened}.
+     * <p>
+     * If the mixer outputs a different sample rate, the cue
+     * is resampled while playing, using the same linear
+     * interpolation as for changes of speed. If the mixer
+     * outputs a {@code ChannelLayout} other than
+     * {@code STEREO}, each instance is panned across the
+     * front speakers as described for the layout.
+     *
+     * @param audioMixer
+     * @throws IllegalStateException
+     */
+    public void open(AudioMixer audioMixer) throws IllegalStateException
+    {
+        if (playerRunning)
+        {
+            throw new IllegalStateException(
+                    "Already open.");
+        }
+        playerRunning = true;
+        this.audioMixer = audioMixer;
+        journalId = audioMixer.journalCue(this);
+
+        if (warmUp)
+        {
+            // the mixing code is warmed up by the mixer
+            warmUpNanos = touchSamples();
+        }
+
+        ChannelLayout layout = audioMixer.getChannelLayout();
+        outputLayout = layout;
+        rateRatio = audioFormat.getSampleRate()
+                / audioMixer.getSampleRate();
+
+        // assigned size is frames * output channels, instances
+        // are mixed in stereo before they are spread across
+        // the output channels
+        readBuffer = new float[audioMixer.readBufferSize];
+        voiceBuffer = layout == ChannelLayout.STEREO
+                ? null : new float[audioMixer.bufferSize * 2];
+
+        synchronized (this)
+        {
+            if (levelMeter != null && levelMeter.getChannels()
+                    != layout.getChannels())
+            {
+                levelMeter = new LevelMeter(layout.getChannels(),
+                        levelMeter.getWindowFrames());
+            }
+        }
+
+        audioMixer.addTrack(this);
         audioMixer.updateTracks();
 
         broadcastOpenEvent(audioMixer.threadPriority,
@@ -535,6 +1236,7 @@ public class AudioCue implements AudioMixerTrack
             audioMixer.updateTracks();
             audioMixer = null;
         }
+        journalId = -1;
 
         playerRunning = false;
 
@@ -568,7 +1270,9 @@ public class AudioCue implements AudioMixerTrack
      * instances.
      * The {@code AudioCueListener} method {@code obtainedInstance}
      * will be called. If no playable instances are available,
-     * the method returns -1. An instance obtained by this
+     * an instance may be stolen according to the current
+     * {@code VoiceStealing} policy, otherwise the method
+     * returns -1. An instance obtained by this
      * method does <em>not</em> recycle back into the pool of
      * available instances when it finishes playing. To put the
      * instance back in the pool of availables, the method
@@ -579,116 +1283,458 @@ public class AudioCue implements AudioMixerTrack
      */
     public int obtainInstance()
     {
-        AudioCueCursor aci = availables.pollLast();
-
-        if (aci == null) return -1;
-        else
-        {
-            aci.isActive = true;
-            broadcastCreateInstanceEvent(aci);
-            return aci.hook;
-        }
+        return obtainInstance(0);
     }
 
     /**
-     * Releases an {@code AudioCue} instance, making
-     * it available for a new {@code play} method.
-     * The {@code AudioCueListener} method {@code releaseInstance}
-     * will be called.
+     * Obtains an {@code int} hook from a pool of available
+     * instances and assigns the given priority to it. If no
+     * playable instances are available, only instances with
+     * a priority lower than or equal to the given one may
+     * be stolen.
      *
-     * @param instanceHook {@code int} hook identifying the cue
-     * instance to be released
+     * @param priority an {@code int}, higher values denote
+     * more important instances
+     * @return an {@code int} hook to the playing instance, or -1
+     * if no instances are available
+     * @see #obtainInstance()
      */
-    public void releaseInstance(int instanceHook)
+    public int obtainInstance(int priority)
     {
-        cursors[instanceHook].resetInstance();
-        availables.offerFirst(cursors[instanceHook]);
-        broadcastReleaseEvent(cursors[instanceHook]);
+        AudioCueCursor aci = availables.pollLast();
+        boolean stolen = false;
+
+        if (aci == null)
+        {
+            aci = growPool();
+        }
+        else if (cursors.length > polyphony)
+        {
+            shrinkPool();
+        }
+
+        if (aci == null && voiceStealing != VoiceStealing.NONE)
+        {
+            aci = queues() ? reserveInstance(priority)
+                    : stealInstance(priority);
+            stolen = aci != null && aci.stealPending;
+        }
+
+        if (aci == null)
+        {
+            dropCount.incrementAndGet();
+            return -1;
+        }
+
+        // the caller sees the new play right away, the audio
+        // thread takes the instance in the order of the queued
+        // commands, which may still concern its previous play
+        AudioCueCursor obtained = aci;
+        int generation = takeInstance(obtained, priority);
+
+        if (queues())
+        {
+            Runnable take = stolen
+                    ? () -> applySteal(obtained, generation, priority)
+                    : () -> applyTake(obtained, generation, priority);
+            if (defer(take))
+            {
+                return obtained.hook;
+            }
+        }
+
+        if (stolen)
+        {
+            steal(obtained, recording());
+        }
+        applyTake(obtained, generation, priority);
+        return obtained.hook;
     }
 
-    /**
-     * Plays an available {@code AudioCue} instance
-     * from the start of the audio data, at full volume, center
-     * pan, and at normal speed, or, returns -1 if no
-     * {@code AudioCue} instance is available. If an
-     * {@code AudioCue} instance is able to play,
-     * the {@code AudioCueListener} methods
-     * {@code createInstance} and {@code startInstance}
-     * will be called. When the instance finishes playing
-     * it will be automatically recycled into the pool of
-     * available instances.
-     * <p>
-     * For best response time (lowest latency), the {@code play}
-     * method should be called on an {@code AudioCue} that has
-     * already been opened, as opening requires the creation
-     * of an audio thread and the acquisition of an output line.
-     *
-     * @return an {@code int} hook to the playing instance,
-     * or -1 if no instance is available
+    /*
+     * Takes the instance for a new play as seen by the caller
+     * and returns the generation of the play.
      */
-    public int play()
+    private int takeInstance(AudioCueCursor aci, int priority)
     {
-        return play(1, 0, 1, 0);
+        aci.priority = priority;
+        aci.obtainOrder = obtainCounter.incrementAndGet();
+        return aci.take();
     }
 
-    /**
-     * Plays an available {@code AudioCue} instance
-     * from the start of the audio data at the given volume, at
-     * center pan, and at normal speed, or, returns -1 if no
-     * {@code AudioCue} instance is available.  If an
-     * {@code AudioCue} instance is able to play,
-     * the {@code AudioCueListener} methods
-     * {@code createInstance} and {@code startInstance}
-     * will be called. When the instance finishes playing
-     * it will be automatically recycled into the pool of
-     * available instances.
-     * <p>
-     * For best response time (lowest latency), the {@code play}
-     * method should be called on an {@code AudioCue} that has
-     * already been opened, as opening requires the creation
-     * of an audio thread and the acquisition of an output line.
-     *
-     * @param volume a {@code double} in the range [0, 1]
-     * @return an {@code int} hook to the playing instance,
-     * or -1 if no instance is available
-     */
-    public int play(double volume)
+    /* AudioThread code while recording. */
+    private void applyTake(AudioCueCursor aci, int generation,
+                           int priority)
     {
-        return play(volume, 0, 1, 0);
+        aci.taken = true;
+        aci.takenGeneration = generation;
+        aci.variationPending = true;
+        broadcastCreateInstanceEvent(aci);
+        record(recording(), AudioJournal.OBTAIN, aci.hook, priority);
     }
 
-    /**
-     * Plays an available {@code AudioCue} instance from
-     * the start of the audio data, at center pan, and at the
-     * specified speed, or, returns -1 if no {@code AudioCue}
-     * instance is available. If an {@code AudioCue} instance
-     * is able to play, the {@code AudioCueListener}
-     * notifications {@code createInstance} and
-     * {@code startInstance} will be sent to all registered
-     * listeners. When the instance finishes playing
-     * it will be automatically recycled into the pool of
-     * available instances.
-     * <p>
-     * For best response time (lowest latency), the {@code play}
-     * method should be called on an {@code AudioCue} that has
-     * already been opened, as opening requires the creation
-     * of an audio thread and the acquisition of an output line.
-     *
-     * @param volume a {@code double} within the range [0, 1]
-     * @param pan a {@code double} within the range [-1, 1]
-     * @param speed a {@code double} that becomes the frame rate
-     * @param loop an {@code int} that specifies a number of
-     * additional plays (looping)
-     * @return an {@code int} hook to the playing instance,
-     * or -1 if no instance is available
+    /*
+     * Selects the instance to steal while commands are queued
+     * and keeps it out of the pool until the stealing is
+     * applied.
      */
-    public int play(double volume, double pan, double speed, int loop)
+    private synchronized AudioCueCursor reserveInstance(int priority)
     {
-        int idx = obtainInstance();
-        if (idx < 0)
+        AudioCueCursor victim = selectVictim(priority);
+
+        if (victim != null)
         {
-            System.out.println("All available notes are playing.");
-            return idx;
+            availables.reserve(victim);
+        }
+        return victim;
+    }
+
+    /*
+     * Applies the stealing selected by reserveInstance. An
+     * instance that ended in the meantime is stolen all the
+     * same, the new play was handed out already.
+     */
+    private void applySteal(AudioCueCursor victim, int generation,
+                            int priority)
+    {
+        steal(victim, recording());
+        applyTake(victim, generation, priority);
+    }
+
+    /*
+     * Used by the AudioReplayer. Obtains the instance with the
+     * given hook, which is inactive in a faithful replay,
+     * growing the pool as far as needed. The pool is never
+     * shrunk during a replay, so every recorded hook is found.
+     */
+    synchronized void obtainInstanceAt(int hook, int priority)
+    {
+        while (cursors.length <= hook)
+        {
+            AudioCueCursor[] current = cursors;
+            AudioCueCursor acc = new AudioCueCursor(current.length);
+            acc.resetInstance();
+            cursors = Arrays.copyOf(current, current.length + 1);
+            cursors[current.length] = acc;
+            if (acc.hook < hook) availables.add(acc);
+        }
+
+        AudioCueCursor aci = cursors[hook];
+        availables.remove(aci);
+        applyTake(aci, takeInstance(aci, priority), priority);
+    }
+
+    /*
+     * Used by the AudioReplayer. Steals the instance with the
+     * given hook, as selected by the recorded stealing.
+     */
+    synchronized void stealInstanceAt(int hook)
+    {
+        steal(cursors[hook], null);
+    }
+
+    /*
+     * Adds a new instance to the pool if the hard limit
+     * has not been reached. The new instance is handed out
+     * directly instead of being placed in the availables.
+     */
+    private synchronized AudioCueCursor growPool()
+    {
+        AudioCueCursor[] current = cursors;
+
+        if (current.length >= maxPolyphony) return null;
+
+        AudioCueCursor acc = new AudioCueCursor(current.length);
+        acc.resetInstance();
+
+        AudioCueCursor[] grown = Arrays.copyOf(current,
+                                               current.length + 1);
+        grown[current.length] = acc;
+        cursors = grown;
+
+        return acc;
+    }
+
+    /*
+     * Discards instances above the initial polyphony that have
+     * been idle long enough. Hooks are indices into the cursors
+     * array, so only the instances with the highest hooks can
+     * be discarded.
+     */
+    private synchronized void shrinkPool()
+    {
+        AudioCueCursor[] current = cursors;
+        int length = current.length;
+        long now = System.nanoTime();
+
+        while (length > polyphony)
+        {
+            AudioCueCursor top = current[length - 1];
+
+            if (top.isActive() || top.tailFrames > 0
+                    || now - top.releaseTime < idleShrinkNanos
+                    || !availables.remove(top))
+            {
+                break;
+            }
+
+            length--;
+        }
+
+        if (length < current.length)
+        {
+            cursors = Arrays.copyOf(current, length);
+        }
+    }
+
+    /*
+     * Selects a playing instance according to the voice
+     * stealing policy, starts a short fade out of its current
+     * play position and takes it away from its owner.
+     */
+    private synchronized AudioCueCursor stealInstance(int priority)
+    {
+        AudioCueCursor victim = selectVictim(priority);
+
+        if (victim != null)
+        {
+            steal(victim, recording());
+        }
+        return victim;
+    }
+
+    private AudioCueCursor selectVictim(int priority)
+    {
+        VoiceStealing policy = voiceStealing;
+        AudioCueCursor victim = null;
+
+        for (AudioCueCursor acc : cursors)
+        {
+            if (acc.isStarted() && !acc.stealPending
+                    && acc.priority <= priority
+                    && (victim == null
+                        || isBetterVictim(policy, acc, victim)))
+            {
+                victim = acc;
+            }
+        }
+
+        return victim;
+    }
+
+    private void steal(AudioCueCursor victim, AudioJournal recording)
+    {
+        record(recording, AudioJournal.STEAL, victim.hook);
+        // the instance belongs to the new play, releasing the
+        // previous one in response to the events has no effect
+        victim.stealing = true;
+
+        // a queued stealing may find the instance ended
+        if (victim.isPlaying)
+        {
+            victim.isPlaying = false;
+
+            victim.tailIdx = victim.idx;
+            victim.tailSpeed = victim.speed * rateRatio * victim.variationSpeed;
+            victim.tailVolume = victim.volume * victim.variationGain;
+            victim.tailEnd = victim.endFrame;
+            if (outputLayout == ChannelLayout.STEREO)
+            {
+                victim.tailPanL = panL.apply(victim.pan) * victim.spatialL;
+                victim.tailPanR = panR.apply(victim.pan) * victim.spatialR;
+            }
+            else
+            {
+                // panning is applied when the tail is spread
+                victim.tailPanL = victim.spatialL;
+                victim.tailPanR = victim.spatialR;
+                System.arraycopy(victim.channelGain, 0,
+                                 victim.tailChannelGain, 0,
+                                 ChannelLayout.MAX_CHANNELS);
+            }
+            victim.tailFrames = STEAL_FADE_FRAMES;
+            activate(victim);
+            broadcastStopEvent(victim);
+        }
+
+        if (victim.taken)
+        {
+            victim.resetInstance();
+            broadcastReleaseEvent(victim);
+        }
+
+        victim.stealing = false;
+        availables.claim(victim);
+        stealCount.incrementAndGet();
+    }
+
+    private static boolean isBetterVictim(VoiceStealing policy,
+            AudioCueCursor candidate, AudioCueCursor victim)
+    {
+        switch (policy)
+        {
+            case QUIETEST:
+                if (candidate.volume != victim.volume)
+                {
+                    return candidate.volume < victim.volume;
+                }
+                break;
+            case LOWEST_PRIORITY:
+                if (candidate.priority != victim.priority)
+                {
+                    return candidate.priority < victim.priority;
+                }
+                break;
+            default:
+                break;
+        }
+
+        return candidate.obtainOrder < victim.obtainOrder;
+    }
+
+    /**
+     * Releases an {@code AudioCue} instance, making
+     * it available for a new {@code play} method.
+     * The {@code AudioCueListener} method {@code releaseInstance}
+     * will be called.
+     *
+     * @param instanceHook {@code int} hook identifying the cue
+     * instance to be released
+     */
+    public void releaseInstance(int instanceHook)
+    {
+        AudioCueCursor acc = cursors[instanceHook];
+
+        if (acc.stealing)
+        {
+            return;
+        }
+
+        acc.clear(AudioCueCursor.ACTIVE | AudioCueCursor.STARTED);
+
+        if (queues() && queue(acc, () -> applyRelease(acc)))
+        {
+            return;
+        }
+        applyRelease(acc);
+    }
+
+    private void applyRelease(AudioCueCursor acc)
+    {
+        AudioJournal recording = recording();
+        acc.resetInstance();
+        availables.offerFirst(acc);
+        broadcastReleaseEvent(acc);
+        record(recording, AudioJournal.RELEASE, acc.hook);
+    }
+
+    /**
+     * Plays an available {@code AudioCue} instance
+     * from the start of the audio data, at full volume, center
+     * pan, and at normal speed, or, returns -1 if no
+     * {@code AudioCue} instance is available. If an
+     * {@code AudioCue} instance is able to play,
+     * the {@code AudioCueListener} methods
+     * {@code createInstance} and {@code startInstance}
+     * will be called. When the instance finishes playing
+     * it will be automatically recycled into the pool of
+     * available instances.
+     * <p>
+     * For best response time (lowest latency), the {@code play}
+     * method should be called on an {@code AudioCue} that has
+     * already been opened, as opening requires the creation
+     * of an audio thread and the acquisition of an output line.
+     *
+     * @return an {@code int} hook to the playing instance,
+     * or -1 if no instance is available
+     */
+    public int play()
+    {
+        return play(1, 0, 1, 0);
+    }
+
+    /**
+     * Plays an available {@code AudioCue} instance
+     * from the start of the audio data at the given volume, at
+     * center pan, and at normal speed, or, returns -1 if no
+     * {@code AudioCue} instance is available.  If an
+     * {@code AudioCue} instance is able to play,
+     * the {@code AudioCueListener} methods
+     * {@code createInstance} and {@code startInstance}
+     * will be called. When the instance finishes playing
+     * it will be automatically recycled into the pool of
+     * available instances.
+     * <p>
+     * For best response time (lowest latency), the {@code play}
+     * method should be called on an {@code AudioCue} that has
+     * already been opened, as opening requires the creation
+     * of an audio thread and the acquisition of an output line.
+     *
+     * @param volume a {@code double} in the range [0, 1]
+     * @return an {@code int} hook to the playing instance,
+     * or -1 if no instance is available
+     */
+    public int play(double volume)
+    {
+        return play(volume, 0, 1, 0);
+    }
+
+    /**
+     * Plays an available {@code AudioCue} instance from
+     * the start of the audio data, at center pan, and at the
+     * specified speed, or, returns -1 if no {@code AudioCue}
+     * instance is available. If an {@code AudioCue} instance
+     * is able to play, the {@code AudioCueListener}
+     * notifications {@code createInstance} and
+     * {@code startInstance} will be sent to all registered
+     * listeners. When the instance finishes playing
+     * it will be automatically recycled into the pool of
+     * available instances.
+     * <p>
+     * For best response time (lowest latency), the {@code play}
+     * method should be called on an {@code AudioCue} that has
+     * already been opened, as opening requires the creation
+     * of an audio thread and the acquisition of an output line.
+     *
+     * @param volume a {@code double} within the range [0, 1]
+     * @param pan a {@code double} within the range [-1, 1]
+     * @param speed a {@code double} that becomes the frame rate
+     * @param loop an {@code int} that specifies a number of
+     * additional plays (looping)
+     * @return an {@code int} hook to the playing instance,
+     * or -1 if no instance is available
+     */
+    public int play(double volume, double pan, double speed, int loop)
+    {
+        return play(volume, pan, speed, loop, 0);
+    }
+
+    /**
+     * Plays an available {@code AudioCue} instance with the
+     * given settings and priority, or, returns -1 if no
+     * {@code AudioCue} instance is available. If all
+     * instances are in use, an instance with a lower or
+     * equal priority may be stolen according to the
+     * current {@code VoiceStealing} policy.
+     *
+     * @param volume a {@code double} within the range [0, 1]
+     * @param pan a {@code double} within the range [-1, 1]
+     * @param speed a {@code double} that becomes the frame rate
+     * @param loop an {@code int} that specifies a number of
+     * additional plays (looping)
+     * @param priority an {@code int}, higher values denote
+     * more important instances
+     * @return an {@code int} hook to the playing instance,
+     * or -1 if no instance is available
+     * @see #setVoiceStealing(VoiceStealing)
+     */
+    public int play(double volume, double pan, double speed, int loop,
+                    int priority)
+    {
+        int idx = obtainInstance(priority);
+        if (idx < 0)
+        {
+            return idx;
         }
 
         setVolume(idx, volume);
@@ -715,17 +1761,41 @@ public class AudioCue implements AudioMixerTrack
      */
     public void start(int instanceHook) throws IllegalStateException
     {
-        if (!cursors[instanceHook].isActive ||
-                cursors[instanceHook].isPlaying)
+        if (!cursors[instanceHook].isActive() ||
+                cursors[instanceHook].isStarted())
         {
             throw new IllegalStateException("Illegal state, "
                                                     + name + ", instance:" + instanceHook);
         }
 
-        cursors[instanceHook].isPlaying = true;
-        broadcastStartEvent(cursors[instanceHook]);
+        startAt(instanceHook);
     };
 
+    /*
+     * Used by the AudioReplayer as well. Starts the instance
+     * without checking its state.
+     */
+    void startAt(int instanceHook)
+    {
+        AudioCueCursor acc = cursors[instanceHook];
+        int starts = acc.start();
+
+        if (queues() && queue(acc, () -> applyStart(acc, starts)))
+        {
+            return;
+        }
+        applyStart(acc, starts);
+    }
+
+    private void applyStart(AudioCueCursor acc, int starts)
+    {
+        acc.appliedStarts = starts;
+        acc.isPlaying = true;
+        activate(acc);
+        broadcastStartEvent(acc);
+        record(recording(), AudioJournal.START, acc.hook);
+    }
+
     /**
      * Sends message to indicate that the playing of the cue
      * associated with the hook should be paused. The
@@ -741,17 +1811,39 @@ public class AudioCue implements AudioMixerTrack
      */
     public void stop(int instanceHook) throws IllegalStateException
     {
-        if (!cursors[instanceHook].isActive)
+        if (!cursors[instanceHook].isActive())
         {
             throw new IllegalStateException("Illegal state, "
                                                     + name + ", instance:" + instanceHook);
         }
 
-        cursors[instanceHook].isPlaying = false;
-        broadcastStopEvent(cursors[instanceHook]);
-        cursors[instanceHook].recycleWhenDone = false;
+        stopAt(instanceHook);
     };
 
+    /*
+     * Used by the AudioReplayer as well. Stops the instance
+     * without checking its state.
+     */
+    void stopAt(int instanceHook)
+    {
+        AudioCueCursor acc = cursors[instanceHook];
+        acc.clear(AudioCueCursor.STARTED);
+
+        if (queues() && queue(acc, () -> applyStop(acc)))
+        {
+            return;
+        }
+        applyStop(acc);
+    }
+
+    private void applyStop(AudioCueCursor acc)
+    {
+        acc.isPlaying = false;
+        broadcastStopEvent(acc);
+        acc.recycleWhenDone = false;
+        record(recording(), AudioJournal.STOP, acc.hook);
+    }
+
     /**
      * Sets the play position ("play head") to a
      * specified sample frame. The frame count is zero-based.
@@ -771,15 +1863,15 @@ public class AudioCue implements AudioMixerTrack
     public void setFramePosition(int instanceHook, double frame)
             throws IllegalStateException
     {
-        if (!cursors[instanceHook].isActive ||
-                cursors[instanceHook].isPlaying)
+        if (!cursors[instanceHook].isActive() ||
+                cursors[instanceHook].isStarted())
         {
             throw new IllegalStateException("Illegal state, "
                                                     + name + ", instance:" + instanceHook);
         }
 
-        cursors[instanceHook].idx = Math.max(0, Math.min(
-                getFrameLength() - 1, (float)frame));
+        setPositionAt(instanceHook, Math.max(0, Math.min(
+                getFrameLength() - 1, (float)frame)));
     };
 
     /**
@@ -794,7 +1886,7 @@ public class AudioCue implements AudioMixerTrack
      */
     public double getFramePosition(int instanceHook)
     {
-        if (!cursors[instanceHook].isActive)
+        if (!cursors[instanceHook].isActive())
         {
             throw new IllegalStateException(name + " instance: "
                                                     + instanceHook + " is inactive");
@@ -824,8 +1916,8 @@ public class AudioCue implements AudioMixerTrack
     public void setMillisecondPosition(int instanceHook,
                                        int milliseconds)
     {
-        if (!cursors[instanceHook].isActive ||
-                cursors[instanceHook].isPlaying)
+        if (!cursors[instanceHook].isActive() ||
+                cursors[instanceHook].isStarted())
         {
             throw new IllegalStateException("Illegal state, "
                                                     + name + ", instance:" + instanceHook);
@@ -833,8 +1925,8 @@ public class AudioCue implements AudioMixerTrack
 
         float samples = (audioFormat.getFrameRate() * milliseconds)
                 / 1000f;
-        cursors[instanceHook].idx =
-                Math.max(0,	Math.min(cueFrameLength - 1, samples));
+        setPositionAt(instanceHook,
+                      Math.max(0,	Math.min(cueFrameLength - 1, samples)));
     };
 
     /**
@@ -856,52 +1948,159 @@ public class AudioCue implements AudioMixerTrack
      */
     public void setFractionalPosition(int instanceHook, double normal)
     {
-        if (!cursors[instanceHook].isActive ||
-                cursors[instanceHook].isPlaying)
+        if (!cursors[instanceHook].isActive() ||
+                cursors[instanceHook].isStarted())
         {
             throw new IllegalStateException("Illegal state, "
                                                     + name + ", instance:" + instanceHook);
         }
 
-        cursors[instanceHook].idx = (float)((cueFrameLength - 1) *
-                Math.max(0, Math.min(1, normal)));
+        setPositionAt(instanceHook, (float)((cueFrameLength - 1) *
+                Math.max(0, Math.min(1, normal))));
     };
 
-    /**
-     * Sets the volume of the instance. Volumes can be altered
-     * while a cue is playing with a latency largely determined
-     * by the buffer setting specified in the {@code open} method
-     * in combination with a smoothing algorithm used to prevent
-     * signal discontinuities that result in audible clicks or
-     * other forms of distortion. Volumes can be altered
-     * concurrently, with the most recent call
-     * taking precedence over and interrupting previous calls.
-     * Arguments are clamped to the range [0..1] and
-     * thus can only diminish, not amplify, the volume.
-     * <p>
-     * Internally, the volume argument is used as a factor that
-     * is directly multiplied against the media's sample values,
-     * and it should be noted that this linear scaling of
-     * sample values is not proportional with the human sense of
-     * loudness.
-     *
-     * @param  instanceHook  an {@code int} used to identify the
-     * {@code AudioCue} instance
-     * @param  volume a {@code float} in the range [0, 1] to be
-     * multiplied against the audio sample values
-     * @throws IllegalStateException if instance is not active
+    /*
+     * Used by the AudioReplayer as well. Sets the clamped play
+     * position without checking the state of the instance.
      */
-    public void setVolume(int instanceHook, double volume)
-            throws IllegalStateException
+    void setPositionAt(int instanceHook, float frame)
     {
-        if (!cursors[instanceHook].isActive)
+        AudioCueCursor acc = cursors[instanceHook];
+
+        if (queues() && queue(acc, () -> setPositionAt(instanceHook, frame)))
         {
-            throw new IllegalStateException(name + " instance: "
-                                                    + instanceHook + " is inactive");
+            return;
         }
 
-        cursors[instanceHook].targetVolume =
-                (float)Math.min(1, Math.max(0, volume));
+        acc.idx = frame;
+        record(recording(), AudioJournal.POSITION, instanceHook, frame);
+    }
+
+    /**
+     * Restricts the play of the instance to a part of the
+     * audio data and sets the play position to its start. The
+     * instance ends, or loops back to the start of the region,
+     * once it reaches the end of the region. This allows
+     * several sounds to share one {@code AudioCue}, e.g. the
+     * variants of a footstep. The region is reset to the whole
+     * cue when the instance is released. Arguments are clamped
+     * to the frames of the cue.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @param startFrame the first frame of the region
+     * @param endFrame the frame at which the region ends,
+     * greater than {@code startFrame}
+     * @throws IllegalStateException if instance is not active
+     * or if instance is playing
+     * @throws IllegalArgumentException if the region is empty
+     */
+    public void setRegion(int instanceHook, double startFrame,
+                          double endFrame) throws IllegalStateException
+    {
+        float start = (float)Math.max(0, Math.min(cueFrameLength - 1,
+                                                  startFrame));
+        float end = (float)Math.max(0, Math.min(cueFrameLength - 1,
+                                                endFrame));
+        if (!(end > start))
+        {
+            throw new IllegalArgumentException("Empty region "
+                    + startFrame + " to " + endFrame);
+        }
+
+        AudioCueCursor acc = cursors[instanceHook];
+        if (!acc.isActive() || acc.isStarted())
+        {
+            throw new IllegalStateException("Illegal state, "
+                                                    + name + ", instance:" + instanceHook);
+        }
+
+        setRegionAt(instanceHook, startFrame, endFrame);
+    }
+
+    /*
+     * Used by the AudioReplayer as well. Sets a region that is
+     * not empty without checking the state of the instance.
+     */
+    void setRegionAt(int instanceHook, double startFrame,
+                     double endFrame)
+    {
+        AudioCueCursor acc = cursors[instanceHook];
+
+        if (queues() && queue(acc,
+                () -> setRegionAt(instanceHook, startFrame, endFrame)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        float start = (float)Math.max(0, Math.min(cueFrameLength - 1,
+                                                  startFrame));
+        float end = (float)Math.max(0, Math.min(cueFrameLength - 1,
+                                                endFrame));
+        acc.startFrame = start;
+        acc.endFrame = end;
+        acc.idx = start;
+        if (recording != null)
+        {
+            recording.command(AudioJournal.REGION, journalId, instanceHook);
+            recording.putDouble(startFrame);
+            recording.putDouble(endFrame);
+        }
+    }
+
+    /**
+     * Sets the volume of the instance. Volumes can be altered
+     * while a cue is playing with a latency largely determined
+     * by the buffer setting specified in the {@code open} method
+     * in combination with a smoothing algorithm used to prevent
+     * signal discontinuities that result in audible clicks or
+     * other forms of distortion. Volumes can be altered
+     * concurrently, with the most recent call
+     * taking precedence over and interrupting previous calls.
+     * Arguments are clamped to the range [0..1] and
+     * thus can only diminish, not amplify, the volume.
+     * <p>
+     * Internally, the volume argument is used as a factor that
+     * is directly multiplied against the media's sample values,
+     * and it should be noted that this linear scaling of
+     * sample values is not proportional with the human sense of
+     * loudness.
+     *
+     * @param  instanceHook  an {@code int} used to identify the
+     * {@code AudioCue} instance
+     * @param  volume a {@code float} in the range [0, 1] to be
+     * multiplied against the audio sample values
+     * @throws IllegalStateException if instance is not active
+     */
+    public void setVolume(int instanceHook, double volume)
+            throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        setVolumeAt(instanceHook, volume);
+    };
+
+    /*
+     * Used by the AudioReplayer as well, which applies the
+     * recorded commands without checking the state of the
+     * instances. The same holds for the other ...At methods.
+     */
+    void setVolumeAt(int instanceHook, double volume)
+    {
+        if (queues() && queue(cursors[instanceHook],
+                () -> setVolumeAt(instanceHook, volume)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        cursors[instanceHook].targetVolume =
+                (float)Math.min(1, Math.max(0, volume));
         if (cursors[instanceHook].isPlaying)
         {
             cursors[instanceHook].targetVolumeIncr =
@@ -915,7 +2114,8 @@ public class AudioCue implements AudioMixerTrack
             cursors[instanceHook].volume =
                     cursors[instanceHook].targetVolume;
         }
-    };
+        record(recording, AudioJournal.VOLUME, instanceHook, volume);
+    }
 
     /**
      * Returns a value indicating the current volume setting
@@ -929,7 +2129,7 @@ public class AudioCue implements AudioMixerTrack
     public double getVolume(int instanceHook)
             throws IllegalStateException
     {
-        if (!cursors[instanceHook].isActive)
+        if (!cursors[instanceHook].isActive())
         {
             throw new IllegalStateException(name + " instance: "
                                                     + instanceHook + " is inactive");
@@ -964,11 +2164,24 @@ public class AudioCue implements AudioMixerTrack
     public void setPan(int instanceHook, double pan)
             throws IllegalStateException
     {
-        if (!cursors[instanceHook].isActive)
+        if (!cursors[instanceHook].isActive())
         {
             throw new IllegalStateException(name + " instance: "
                                                     + instanceHook + " is inactive");
         }
+
+        setPanAt(instanceHook, pan);
+    };
+
+    void setPanAt(int instanceHook, double pan)
+    {
+        if (queues() && queue(cursors[instanceHook],
+                () -> setPanAt(instanceHook, pan)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
         cursors[instanceHook].targetPan =
                 (float)Math.min(1, Math.max(-1, pan));
         if (cursors[instanceHook].isPlaying)
@@ -984,7 +2197,8 @@ public class AudioCue implements AudioMixerTrack
             cursors[instanceHook].pan =
                     cursors[instanceHook].targetPan;
         }
-    };
+        record(recording, AudioJournal.PAN, instanceHook, pan);
+    }
 
     /**
      * Returns a double in the range [-1, 1] where -1
@@ -998,7 +2212,7 @@ public class AudioCue implements AudioMixerTrack
     public double getPan(int instanceHook) throws
                                            IllegalStateException
     {
-        if (!cursors[instanceHook].isActive)
+        if (!cursors[instanceHook].isActive())
         {
             throw new IllegalStateException(name + " instance: "
                                                     + instanceHook + " is inactive");
@@ -1039,343 +2253,1844 @@ public class AudioCue implements AudioMixerTrack
     public void setSpeed(int instanceHook, double speed)
             throws IllegalStateException
     {
-        if (!cursors[instanceHook].isActive)
+        if (!cursors[instanceHook].isActive())
         {
             throw new IllegalStateException(name + " instance: "
                                                     + instanceHook + " is inactive");
         }
 
+        setSpeedAt(instanceHook, speed);
+    };
+
+    void setSpeedAt(int instanceHook, double speed)
+    {
+        if (queues() && queue(cursors[instanceHook],
+                () -> setSpeedAt(instanceHook, speed)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
         cursors[instanceHook].targetSpeed =
                 (float)Math.min(8, Math.max(0.125, speed));
         if (cursors[instanceHook].isPlaying)
         {
-            cursors[instanceHook].targetSpeedIncr =
-                    (cursors[instanceHook].targetSpeed
-                            - cursors[instanceHook].speed) / SPEED_STEPS;
-            cursors[instanceHook].targetSpeedSteps = SPEED_STEPS;
+            cursors[instanceHook].targetSpeedIncr =
+                    (cursors[instanceHook].targetSpeed
+                            - cursors[instanceHook].speed) / SPEED_STEPS;
+            cursors[instanceHook].targetSpeedSteps = SPEED_STEPS;
+        }
+        else
+        {
+            cursors[instanceHook].speed =
+                    cursors[instanceHook].targetSpeed;
+        }
+        record(recording, AudioJournal.SPEED, instanceHook, speed);
+    }
+
+    /**
+     * Returns a factor indicating the current rate of play of
+     * the {@code AudioCue} instance relative to normal play.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return a {@code float} factor indicating the speed at
+     * which the {@code AudioCue} instance is being played
+     * in the range [0.125, 8]
+     * @throws IllegalStateException if instance is not active
+     */
+    public double getSpeed(int instanceHook) throws
+                                             IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        return cursors[instanceHook].speed;
+    };
+
+    /**
+     * Sets the tempo of the {@code AudioCue} instance without
+     * changing its pitch. A tempo of 2 plays twice as fast at
+     * the same pitch, a tempo of 0.5 half as fast. Tempo and
+     * speed combine: the instance advances at their product,
+     * while the pitch follows the speed alone. Arguments are
+     * clamped to the range [0.25, 4].
+     * <p>
+     * The tempo is changed by a WSOLA time stretcher, which
+     * overlaps grains of about 23 ms that are aligned by their
+     * waveform. Its buffers are allocated by the first call
+     * for an instance and reused by later plays, so this method
+     * should not be called from the audio thread for the first
+     * time. Once stretched, an instance keeps being processed
+     * by the stretcher until it is released, even at a tempo
+     * of 1, and costs noticeably more than an unstretched one.
+     * Silent regions found by {@code analyzeSilence} are not
+     * skipped by stretched instances. Tempo changes take effect
+     * with the next grain.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @param tempo a {@code double} factor ranging from
+     * 0.25 to 4
+     * @throws IllegalStateException if instance is not active
+     */
+    public void setTempo(int instanceHook, double tempo)
+            throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        setTempoAt(instanceHook, tempo);
+    }
+
+    void setTempoAt(int instanceHook, double tempo)
+    {
+        AudioCueCursor acc = cursors[instanceHook];
+
+        // allocated by the caller, a queued command only
+        // changes the tempo
+        if (acc.stretcher == null)
+        {
+            acc.stretcher = new TimeStretcher();
+        }
+
+        if (queues() && queue(acc, () -> setTempoAt(instanceHook, tempo)))
+        {
+            return;
+        }
+
+        acc.tempo = (float)Math.min(4, Math.max(0.25, tempo));
+        record(recording(), AudioJournal.TEMPO, instanceHook, tempo);
+    }
+
+    /**
+     * Returns the tempo of the {@code AudioCue} instance,
+     * relative to its recorded tempo.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return a {@code float} factor in the range [0.25, 4]
+     * @throws IllegalStateException if instance is not active
+     * @see #setTempo(int, double)
+     */
+    public float getTempo(int instanceHook) throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        return cursors[instanceHook].tempo;
+    }
+
+    /**
+     * Sets the number of times the media will restart
+     * from the beginning, after completing, or specifies
+     * infinite looping via the value -1. Note: an instance
+     * set to loop 2 times will play back a total of 3 times.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @param loops an {@code int} that specifies the number
+     * of times an instance will return to the beginning
+     * and play again
+     * @throws IllegalStateException if instance is not active
+     */
+    public void setLooping(int instanceHook, int loops)
+            throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        setLoopingAt(instanceHook, loops);
+    };
+
+    void setLoopingAt(int instanceHook, int loops)
+    {
+        if (queues() && queue(cursors[instanceHook],
+                () -> setLoopingAt(instanceHook, loops)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        cursors[instanceHook].loop = loops;
+        record(recording, AudioJournal.LOOP, instanceHook, loops);
+    }
+
+    /**
+     * Sets a flag which determines what happens when the instance
+     * finishes playing. If {@code true} the instance will be
+     * added to the pool of available instances and will no longer
+     * allow updates. If {@code false} then the instance will
+     * remain available for updates. By default, an instance that
+     * is obtained via a {@code play} method recycles, and an
+     * instance obtained via {@code getInstance} will not. But in
+     * both cases the behavior can be changed by setting this
+     * flag.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @param recycleWhenDone a {@code boolean} that designates
+     * the behavior ("recycle" or not) that occurs when the
+     * instance finishes playing
+     * @throws IllegalStateException if the instance is not active
+     */
+    public void setRecycleWhenDone(int instanceHook,
+                                   boolean recycleWhenDone) throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        setRecycleWhenDoneAt(instanceHook, recycleWhenDone);
+    }
+
+    void setRecycleWhenDoneAt(int instanceHook, boolean recycleWhenDone)
+    {
+        if (queues() && queue(cursors[instanceHook],
+                () -> setRecycleWhenDoneAt(instanceHook, recycleWhenDone)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        cursors[instanceHook].recycleWhenDone = recycleWhenDone;
+        record(recording, AudioJournal.RECYCLE, instanceHook,
+               recycleWhenDone ? 1 : 0);
+    }
+
+    /**
+     * Sets the priority of the instance, which is consulted
+     * by the {@code VoiceStealing} policy when all instances
+     * are in use. Instances are only stolen by requests with
+     * an equal or higher priority.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @param priority an {@code int}, higher values denote
+     * more important instances
+     * @throws IllegalStateException if the instance is not active
+     */
+    public void setPriority(int instanceHook, int priority)
+            throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        setPriorityAt(instanceHook, priority);
+    }
+
+    void setPriorityAt(int instanceHook, int priority)
+    {
+        AudioCueCursor acc = cursors[instanceHook];
+
+        // consulted by callers that steal, so it is set right
+        // away and only recorded in the order of the commands
+        acc.priority = priority;
+
+        if (queues() && queue(acc, () -> record(recording(),
+                AudioJournal.PRIORITY, instanceHook, priority)))
+        {
+            return;
+        }
+        record(recording(), AudioJournal.PRIORITY, instanceHook, priority);
+    }
+
+    /**
+     * Returns the priority of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the priority as an {@code int}
+     * @throws IllegalStateException if the instance is not active
+     */
+    public int getPriority(int instanceHook)
+            throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        return cursors[instanceHook].priority;
+    }
+
+    /**
+     * Assigns an {@code AudioCueSpatializer} to the instance,
+     * or removes it if {@code null} is given. The spatializer
+     * is consulted once per buffer on the audio thread, and
+     * the output of the instance is ramped to the computed
+     * gain and pan over the course of the buffer. The gain is
+     * applied in addition to the volume of the instance, and
+     * the pan in addition to its pan setting. The assignment
+     * is removed when the instance is released.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @param spatializer the {@code AudioCueSpatializer} or
+     * {@code null}
+     * @throws IllegalStateException if the instance is not active
+     */
+    public void setSpatializer(int instanceHook,
+                               AudioCueSpatializer spatializer) throws IllegalStateException
+    {
+        if (!cursors[instanceHook].isActive())
+        {
+            throw new IllegalStateException(name + " instance: "
+                                                    + instanceHook + " is inactive");
+        }
+
+        setSpatializerAt(instanceHook, spatializer);
+    }
+
+    void setSpatializerAt(int instanceHook, AudioCueSpatializer spatializer)
+    {
+        if (queues() && queue(cursors[instanceHook],
+                () -> setSpatializerAt(instanceHook, spatializer)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        AudioCueCursor acc = cursors[instanceHook];
+
+        acc.spatialPrimed = false;
+        acc.spatializer = spatializer;
+        record(recording, AudioJournal.SPATIALIZER, instanceHook,
+               spatializer != null ? 1 : 0);
+    }
+
+    /**
+     * Returns {@code true} if instance is active, {@code false}
+     * if not.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return {@code true} if instance is playing, {@code false}
+     * if not
+     */
+    public boolean getIsActive(int instanceHook)
+    {
+        return cursors[instanceHook].isActive();
+    }
+
+    /**
+     * Returns {@code true} if the instance is playing but
+     * currently virtual, i.e. inaudible and not mixed.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return {@code true} if instance is virtual, {@code false}
+     * if not
+     * @see #setVirtualizationThreshold(float)
+     */
+    public boolean getIsVirtual(int instanceHook)
+    {
+        return cursors[instanceHook].isVirtual;
+    }
+
+    /**
+     * Returns {@code true} if instance is playing, {@code false}
+     * if not
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return {@code true} if instance is playing, {@code false}
+     * if not
+     */
+    public boolean getIsPlaying(int instanceHook)
+    {
+        return cursors[instanceHook].isStarted();
+    }
+
+    /**
+     * Returns the generation of the instance, a counter that
+     * is incremented every time the instance is obtained. A
+     * hook together with its generation identifies a single
+     * play of an instance, and allows callers that keep hooks
+     * to detect that an instance has since been released and
+     * obtained again.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the generation of the instance
+     */
+    public int getGeneration(int instanceHook)
+    {
+        return cursors[instanceHook].generation();
+    }
+
+    /**
+     * Sets a volume that applies to all instances of the
+     * {@code AudioCue} in addition to their own volumes.
+     * Changes are ramped over one buffer. This allows the
+     * volume of a group of sounds to be changed without
+     * updating every playing instance.
+     *
+     * @param volume a {@code double} ranging from 0 to 1
+     */
+    public void setCueVolume(double volume)
+    {
+        if (queues() && defer(() -> setCueVolume(volume)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        this.cueVolume = (float)Math.min(1, Math.max(0, volume));
+        record(recording, AudioJournal.CUE_VOLUME, -1, volume);
+    }
+
+    /**
+     * Returns the volume that applies to all instances of
+     * the {@code AudioCue}.
+     *
+     * @return the cue volume as a {@code float} from 0 to 1
+     * @see #setCueVolume(double)
+     */
+    public float getCueVolume()
+    {
+        return cueVolume;
+    }
+
+    /**
+     * Measures the integrated loudness of the audio data, as
+     * described for {@code LoudnessAnalyzer}. Long cues are
+     * analysed on several threads. The measurement takes time
+     * proportional to the length of the cue and is meant to
+     * run while loading; its result is best cached, e.g. keyed
+     * by {@code getContentHash}.
+     *
+     * @return the loudness in LUFS, or
+     * {@code LoudnessAnalyzer.SILENCE}
+     */
+    public double measureLoudness()
+    {
+        return LoudnessAnalyzer.integratedLoudness(cueData(),
+                audioFormat.getSampleRate());
+    }
+
+    /**
+     * Computes a hash of the audio data, which identifies the
+     * content independent of its source. Data released by
+     * {@code trimSilence} is not part of the hash.
+     *
+     * @return the hash as 64 hex digits
+     */
+    public String getContentHash()
+    {
+        return LoudnessAnalyzer.contentHash(cueData());
+    }
+
+    /**
+     * Returns the minimum and maximum sample values of the cue
+     * at several resolutions, for drawing its waveform at any
+     * zoom level in time proportional to the number of pixels.
+     * The {@code PeakPyramid} is built on the first call, on
+     * several threads for long cues, and kept with the cue.
+     *
+     * @return the {@code PeakPyramid} of the cue
+     */
+    public PeakPyramid getPeakPyramid()
+    {
+        PeakPyramid pyramid = peakPyramid;
+        if (pyramid == null)
+        {
+            synchronized (this)
+            {
+                pyramid = peakPyramid;
+                if (pyramid == null)
+                {
+                    pyramid = PeakPyramid.build(cueData(), 2, cueOffset,
+                            cueFrameLength);
+                    peakPyramid = pyramid;
+                }
+            }
+        }
+        return pyramid;
+    }
+
+    /*
+     * All frames held, from the first to the limit.
+     */
+    private FloatBuffer cueData()
+    {
+        FloatBuffer data = cue.duplicate();
+        data.position(0);
+        return data;
+    }
+
+    /**
+     * Sets a gain that is applied to all instances together
+     * with the cue volume, intended to bring cues of different
+     * loudness to a common level. Unlike the cue volume, the
+     * gain may exceed 1. It costs nothing beyond the cue
+     * volume, which is always applied. Changes are ramped
+     * over one buffer.
+     *
+     * @param gain a linear gain of at least 0
+     * @see LoudnessAnalyzer#normalizationGain(double, double, double)
+     */
+    public void setNormalizationGain(double gain)
+    {
+        if (queues() && defer(() -> setNormalizationGain(gain)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        this.normalizationGain = (float)Math.max(0, gain);
+        record(recording, AudioJournal.NORMALIZATION, -1, gain);
+    }
+
+    /**
+     * Returns the gain that brings the cue to a common
+     * loudness level.
+     *
+     * @return the normalization gain, 1 by default
+     * @see #setNormalizationGain(double)
+     */
+    public float getNormalizationGain()
+    {
+        return normalizationGain;
+    }
+
+    /**
+     * Sets ranges by which the volume and pitch of every play
+     * are varied at random, so that a sound repeated often
+     * does not sound mechanical. The values are drawn on the
+     * audio thread when an obtained instance starts playing,
+     * and apply in addition to its volume and speed until it
+     * is released. The volume is lowered by up to
+     * {@code volumeDb}, the pitch is shifted by up to
+     * {@code pitchCents} in either direction, which also
+     * changes the duration.
+     *
+     * @param volumeDb the largest attenuation in dB, 0 for
+     * no variation
+     * @param pitchCents the largest pitch shift in cents, 0
+     * for no variation
+     */
+    public void setStartVariation(double volumeDb, double pitchCents)
+    {
+        if (queues() && defer(() -> setStartVariation(volumeDb, pitchCents)))
+        {
+            return;
+        }
+
+        AudioJournal recording = recording();
+        this.volumeVariation = (float)Math.max(0, volumeDb);
+        this.pitchVariation = (float)Math.max(0, pitchCents);
+        if (recording != null)
+        {
+            recording.command(AudioJournal.VARIATION, journalId, -1);
+            recording.putDouble(volumeDb);
+            recording.putDouble(pitchCents);
+        }
+    }
+
+    /**
+     * Returns the largest attenuation in dB drawn for a play.
+     *
+     * @return the volume variation in dB
+     * @see #setStartVariation(double, double)
+     */
+    public float getVolumeVariation()
+    {
+        return volumeVariation;
+    }
+
+    /**
+     * Returns the largest pitch shift in cents drawn for a
+     * play.
+     *
+     * @return the pitch variation in cents
+     * @see #setStartVariation(double, double)
+     */
+    public float getPitchVariation()
+    {
+        return pitchVariation;
+    }
+
+
+    /*
+     * Commands to the cue of a mixer that records an
+     * AudioJournal are queued and applied by the mixer thread
+     * between two buffers, where the replay applies them as
+     * well. Returns true if the command was queued.
+     */
+    private boolean defer(Runnable command)
+    {
+        AudioMixer mixer = audioMixer;
+        return mixer != null && mixer.defer(command);
+    }
+
+    /*
+     * Whether commands are queued, checked before a command is
+     * created so that no garbage is made while not recording.
+     */
+    private boolean queues()
+    {
+        AudioMixer mixer = audioMixer;
+        return mixer != null && mixer.queuesCommands();
+    }
+
+    /*
+     * Queues a command that changes the rendering of an
+     * instance. The command is dropped if the play it was
+     * issued for has ended by the time it is applied, e.g.
+     * because it reached its end and was recycled.
+     */
+    private boolean queue(AudioCueCursor acc, Runnable command)
+    {
+        int generation = acc.generation();
+
+        return defer(() ->
+        {
+            if (acc.taken && acc.takenGeneration == generation)
+            {
+                command.run();
+            }
+        });
+    }
+
+    /*
+     * The journal that the command being applied is written
+     * to, or null.
+     */
+    private AudioJournal recording()
+    {
+        AudioMixer mixer = audioMixer;
+        return mixer == null ? null : mixer.recording();
+    }
+
+    private void record(AudioJournal recording, int type, int hook)
+    {
+        if (recording != null)
+        {
+            recording.command(type, journalId, hook);
+        }
+    }
+
+    private void record(AudioJournal recording, int type, int hook,
+                        double value)
+    {
+        if (recording != null)
+        {
+            recording.command(type, journalId, hook);
+            recording.putDouble(value);
+        }
+    }
+
+    /*
+     * A private, data-only class that is created and
+     * maintained internally for managing each concurrent instance
+     * of an {@code AudioCue}. The 'hook' variable is an identifier
+     * that is created upon instantiation to correspond
+     * to the position of the {@code AudioCueCursor} instance in
+     * the {@code AudioCue.cursors} array.
+     * <p>
+     * A cursor that starts playing is pushed onto the
+     * {@code pendingCursors} stack, from which the audio
+     * thread moves it to its dense list of active cursors.
+     * The {@code queued} flag prevents a cursor from being
+     * pushed twice, the {@code listed} flag is only accessed
+     * by the audio thread.
+     * <p>
+     * An instance is either active, in which case it can be
+     * updated, or inactive, in which case it is in a pool of
+     * <em>available</em> instances. An <em>active</em> instance
+     * is either playing or stopped (paused). This state is
+     * checked for the various method calls. The
+     * {@code recycleWhenDone boolean} is used to determine
+     * whether the instance is placed back in the pool of
+     * available instances when a play completes, or if it
+     * remains available to update.
+     * <p>
+     * The state seen by the callers, the generation of the play
+     * and whether the instance is active and started, is kept
+     * in the {@code state} word and changes as soon as a method
+     * is called, also while the mixer queues the commands for
+     * a recording. {@code isPlaying} and the other variables
+     * used for rendering only change when the command is
+     * applied. The {@code taken} flag and the
+     * {@code takenGeneration} tell the audio thread which play
+     * the applied commands belong to.
+     * <p>
+     * The <em>target</em> variables are used to ensure that
+     * changes in real time to the corresponding settings change
+     * in small enough increments that discontinuities are not
+     * created in the data.
+     * <p>
+     * The <em>spatial</em> variables hold the per channel gains
+     * computed from the {@code AudioCueSpatializer}, which are
+     * ramped from one buffer to the next. A <em>virtual</em>
+     * instance is inaudible, its position is advanced without
+     * mixing any data.
+     * <p>
+     * The <em>tail</em> variables hold the play position of a
+     * stolen instance, which is faded out over a few frames
+     * while the new play of the instance already runs.
+     */
+    private class AudioCueCursor
+    {
+        // generation, number of starts, ACTIVE and STARTED
+        static final long STARTED = 1;
+        static final long ACTIVE = 2;
+        static final long STARTS = 0xFFFFFFFCL;
+        static final long ONE_START = 4;
+        static final long GENERATIONS = 0xFFFFFFFF00000000L;
+        static final long ONE_GENERATION = 1L << 32;
+        final AtomicLong state = new AtomicLong();
+
+        volatile boolean isPlaying;
+        final int hook;
+
+        // audio thread, the play the applied commands belong to
+        boolean taken;
+        int takenGeneration;
+        int appliedStarts;
+        // the events of a stolen play are being broadcast
+        boolean stealing;
+
+        float idx;
+        float speed;
+        float volume;
+        float pan;
+        int loop;
+        boolean recycleWhenDone;
+        int priority;
+        long obtainOrder;
+        long releaseTime;
+
+        final AtomicBoolean queued = new AtomicBoolean();
+        AudioCueCursor nextPending;
+        boolean listed;
+
+        boolean available;
+        // selected to be stolen by a queued command
+        volatile boolean stealPending;
+        AudioCueCursor prevAvailable;
+        AudioCueCursor nextAvailable;
+
+        float targetSpeed;
+        float targetSpeedIncr;
+        int targetSpeedSteps;
+
+        float targetVolume;
+        float targetVolumeIncr;
+        int targetVolumeSteps;
+
+        float targetPan;
+        float targetPanIncr;
+        int targetPanSteps;
+
+        AudioCueSpatializer spatializer;
+        boolean spatialPrimed;
+        float spatialL;
+        float spatialR;
+        float spatialLIncr;
+        float spatialRIncr;
+        float spatialTargetL;
+        float spatialTargetR;
+
+        boolean isVirtual;
+        float audibleGain;
+
+        float tailIdx;
+        float tailSpeed;
+        float tailVolume;
+        float tailPanL;
+        float tailPanR;
+        int tailFrames;
+
+        float spatialPan;
+        boolean channelPrimed;
+
+        // played part of the cue, set by setRegion
+        float startFrame;
+        float endFrame;
+        float tailEnd;
+
+        // drawn on the audio thread when a play starts
+        boolean variationPending;
+        float variationGain = 1;
+        float variationSpeed = 1;
+
+        // allocated by setTempo, kept for later plays
+        TimeStretcher stretcher;
+        float tempo = 1;
+        // audio thread, set once the tempo was changed
+        boolean stretching;
+        final float[] channelGain = new float[ChannelLayout.MAX_CHANNELS];
+        final float[] channelTarget = new float[ChannelLayout.MAX_CHANNELS];
+        final float[] tailChannelGain =
+                new float[ChannelLayout.MAX_CHANNELS];
+
+        AudioCueCursor(int hook)
+        {
+            this.hook = hook;
+        }
+
+        int generation()
+        {
+            return (int)(state.get() >>> 32);
+        }
+
+        boolean isActive()
+        {
+            return (state.get() & ACTIVE) != 0;
+        }
+
+        boolean isStarted()
+        {
+            return (state.get() & STARTED) != 0;
+        }
+
+        /*
+         * Takes the instance for a new play and returns its
+         * generation.
+         */
+        int take()
+        {
+            long current;
+            long next;
+            do
+            {
+                current = state.get();
+                next = (current & GENERATIONS) + ONE_GENERATION
+                        | current & STARTS | ACTIVE;
+            }
+            while (!state.compareAndSet(current, next));
+
+            return (int)(next >>> 32);
+        }
+
+        /*
+         * Marks the instance as started and returns the number
+         * of starts, which tells a later end of the play whether
+         * it was started again in the meantime.
+         */
+        int start()
+        {
+            long current;
+            long next;
+            do
+            {
+                current = state.get();
+                next = current & ~STARTS
+                        | (current + ONE_START) & STARTS | STARTED;
+            }
+            while (!state.compareAndSet(current, next));
+
+            return (int)(next & STARTS);
+        }
+
+        void clear(long flags)
+        {
+            long current;
+            do
+            {
+                current = state.get();
+            }
+            while (!state.compareAndSet(current, current & ~flags));
+        }
+
+        /*
+         * Clears the given flags if the play that the audio thread
+         * works on is still the one seen by the callers, and, for
+         * the end of a play, if it was not started again.
+         */
+        void clearApplied(long flags, boolean ended)
+        {
+            long current;
+            do
+            {
+                current = state.get();
+
+                if ((int)(current >>> 32) != takenGeneration
+                        || ended && (int)(current & STARTS) != appliedStarts)
+                {
+                    return;
+                }
+            }
+            while (!state.compareAndSet(current, current & ~flags));
+        }
+
+        /*
+         * Used to clear settings from previous plays
+         * and put in default settings.
+         */
+        void resetInstance()
+        {
+            if (taken)
+            {
+                clearApplied(ACTIVE | STARTED, false);
+                taken = false;
+            }
+            isPlaying = false;
+            idx = 0;
+            speed = 1;
+            volume = 0;
+            pan = 0;
+            loop = 0;
+            recycleWhenDone = false;
+            releaseTime = System.nanoTime();
+
+            spatializer = null;
+            spatialL = 1;
+            spatialR = 1;
+            spatialLIncr = 0;
+            spatialRIncr = 0;
+            spatialTargetL = 1;
+            spatialTargetR = 1;
+            isVirtual = false;
+            audibleGain = 0;
+            spatialPan = 0;
+            channelPrimed = false;
+            tempo = 1;
+            stretching = false;
+            if (stretcher != null) stretcher.reset();
+            startFrame = 0;
+            endFrame = cueFrameLength - 1;
+            variationPending = false;
+            variationGain = 1;
+            variationSpeed = 1;
+
+            targetSpeedSteps = 0;
+            targetVolumeSteps = 0;
+            targetPanSteps = 0;
+        }
+    }
+
+    /*
+     * Pool of instances that can be obtained, linked through
+     * the cursors themselves so that obtaining and releasing
+     * an instance creates no garbage. Released instances are
+     * added to the front, instances are obtained from the back.
+     * An instance is held at most once, a repeated release has
+     * no effect.
+     */
+    private final class AvailableCursors
+    {
+        private AudioCueCursor first;
+        private AudioCueCursor last;
+
+        synchronized void offerFirst(AudioCueCursor acc)
+        {
+            if (acc.available || acc.stealPending) return;
+
+            acc.available = true;
+            acc.prevAvailable = null;
+            acc.nextAvailable = first;
+            if (first == null) last = acc;
+            else first.prevAvailable = acc;
+            first = acc;
+        }
+
+        synchronized void add(AudioCueCursor acc)
+        {
+            if (acc.available) return;
+
+            acc.available = true;
+            acc.nextAvailable = null;
+            acc.prevAvailable = last;
+            if (last == null) first = acc;
+            else last.nextAvailable = acc;
+            last = acc;
+        }
+
+        synchronized AudioCueCursor pollLast()
+        {
+            AudioCueCursor acc = last;
+            if (acc != null) unlink(acc);
+            return acc;
+        }
+
+        synchronized boolean remove(AudioCueCursor acc)
+        {
+            if (!acc.available) return false;
+            unlink(acc);
+            return true;
+        }
+
+        /*
+         * Keeps a playing instance out of the pool until it is
+         * stolen, or takes it from the pool if it ended and was
+         * recycled already.
+         */
+        synchronized void reserve(AudioCueCursor acc)
+        {
+            if (!remove(acc)) acc.stealPending = true;
+        }
+
+        /*
+         * Takes a stolen instance out of the pool or ends its
+         * reservation.
+         */
+        synchronized void claim(AudioCueCursor acc)
+        {
+            acc.stealPending = false;
+            remove(acc);
+        }
+
+        private void unlink(AudioCueCursor acc)
+        {
+            if (acc.prevAvailable == null) first = acc.nextAvailable;
+            else acc.prevAvailable.nextAvailable = acc.nextAvailable;
+            if (acc.nextAvailable == null) last = acc.prevAvailable;
+            else acc.nextAvailable.prevAvailable = acc.prevAvailable;
+
+            acc.prevAvailable = null;
+            acc.nextAvailable = null;
+            acc.available = false;
+        }
+    }
+
+    /*
+     * "Opening" line sets the SourceDataLine waiting for data.
+     * "Run" will start loop that will either send out silence
+     * (zero-filled arrays) or sound data.
+     */
+    private class AudioCuePlayer implements Runnable
+    {
+        private SourceDataLine sdl;
+        private final int sdlBufferSize;
+        private byte[] audioBytes;
+        private final PcmConverter converter =
+                new PcmConverter(16, 2, PcmConverter.Dither.NONE);
+
+        AudioCuePlayer(Mixer mixer, int bufferFrames) throws
+                                                      LineUnavailableException
+        {
+            readBuffer = new float[bufferFrames * 2];
+            sdlBufferSize = bufferFrames * 4;
+            audioBytes = new byte[sdlBufferSize];
+
+            sdl = getSourceDataLine(mixer, info);
+            sdl.open(audioFormat, sdlBufferSize);
+            sdl.start();
+        }
+
+        // Audio Thread Code
+        public void run()
+        {
+            while(playerRunning)
+            {
+                readBuffer = fillBuffer(readBuffer);
+                audioBytes = converter.convert(readBuffer,
+                        readBuffer.length, audioBytes);
+                sdl.write(audioBytes, 0, sdlBufferSize);
+            }
+            sdl.drain();
+            sdl.close();
+            sdl = null;
+        }
+    }
+
+    /*
+     * AudioThread code.
+     * Within while loop.
+     */
+    private float[] fillBuffer(float[] readBuffer)
+    {
+        // Start with 0-filled buffer, send out silence
+        // if nothing playing.
+        int bufferLength = readBuffer.length;
+        for (int i = 0; i < bufferLength; i++)
+        {
+            readBuffer[i] = 0;
+        }
+
+        activatePendingCursors();
+
+        ChannelLayout layout = outputLayout;
+        boolean spread = layout != ChannelLayout.STEREO;
+        int frames = bufferLength / layout.getChannels();
+        float[] audioVals = new float[2];
+
+        // compute all gain parameters in one pass before
+        // any data is mixed
+        int audible = 0;
+        for (int ai = 0; ai < activeCount; ai++)
+        {
+            AudioCueCursor acc = activeCursors[ai];
+
+            if (acc.isPlaying)
+            {
+                updateSpatialization(acc, audioVals, spread);
+                if (spread) updateChannelGains(acc, layout, frames);
+                acc.audibleGain = audibleGain(acc) * cueVolume
+                        * normalizationGain;
+                if (acc.audibleGain >= virtualThreshold) audible++;
+            }
+        }
+
+        // with more audible voices than allowed, only the
+        // loudest ones are mixed
+        int maxReal = maxRealVoices;
+        float cutoff = audible > maxReal
+                ? realVoiceCutoff(audible, maxReal)
+                : virtualThreshold;
+        int real = 0;
+        int virtual = 0;
+
+        for (int ai = 0; ai < activeCount; ai++)
+        {
+            AudioCueCursor acc = activeCursors[ai];
+
+            if (acc.tailFrames > 0)
+            {
+                if (spread)
+                {
+                    Arrays.fill(voiceBuffer, 0);
+                    mixTail(acc, voiceBuffer, audioVals);
+                    spreadVoice(voiceBuffer, readBuffer, layout,
+                                acc.tailChannelGain, acc.tailChannelGain);
+                }
+                else
+                {
+                    mixTail(acc, readBuffer, audioVals);
+                }
+            }
+
+            if (acc.isPlaying)
+            {
+                boolean mix = acc.audibleGain >= cutoff
+                        && acc.audibleGain >= virtualThreshold
+                        && real < maxReal;
+
+                if (mix || !acc.isVirtual)
+                {
+                    // a voice that turns virtual is faded out
+                    // during one more mixed buffer
+                    rampSpatialGains(acc, mix, frames);
+                    acc.isVirtual = !mix;
+                    if (spread)
+                    {
+                        Arrays.fill(voiceBuffer, 0);
+                        mixCursor(acc, voiceBuffer, audioVals, false);
+                        spreadVoice(voiceBuffer, readBuffer, layout,
+                                    acc.channelGain, acc.channelTarget);
+                    }
+                    else
+                    {
+                        mixCursor(acc, readBuffer, audioVals, true);
+                    }
+                }
+                else
+                {
+                    advanceVirtual(acc, frames);
+                }
+
+                if (mix) real++;
+                else virtual++;
+            }
+
+            // compact the list, a cursor that is started again
+            // will be pushed to the pending stack anew
+            if (!acc.isPlaying && acc.tailFrames <= 0)
+            {
+                acc.listed = false;
+                activeCursors[ai--] = activeCursors[--activeCount];
+                activeCursors[activeCount] = null;
+            }
+        }
+
+        realVoiceCount = real;
+        virtualVoiceCount = virtual;
+
+        // the cue volume is ramped over the summed buffer
+        float targetGain = cueVolume * normalizationGain;
+        if (cueGain != targetGain || targetGain != 1)
+        {
+            int channels = layout.getChannels();
+            float gainIncr = (targetGain - cueGain) / frames;
+            for (int f = 0, i = 0; f < frames; f++)
+            {
+                float gain = cueGain + gainIncr * f;
+                for (int c = 0; c < channels; c++)
+                {
+                    readBuffer[i++] *= gain;
+                }
+            }
+            cueGain = targetGain;
+        }
+
+        LevelMeter meter = levelMeter;
+        if (meter != null)
+        {
+            meter.process(readBuffer, bufferLength);
+        }
+
+        publishVoices();
+
+        return readBuffer;
+    }
+
+    /*
+     * AudioThread code.
+     * Writes the states of all instances to the snapshot that
+     * is not read, then makes it the one that is read.
+     */
+    private void publishVoices()
+    {
+        long buffer = renderedBuffers++;
+        if (!voicesRequested)
+        {
+            return;
+        }
+
+        AudioCueCursor[] all = cursors;
+        int back = voiceFront == 0 ? 1 : 0;
+        VoiceSnapshot slot = voiceSlots[back];
+
+        if (slot == null || slot.capacity() < all.length)
+        {
+            // readers may still hold the old one
+            slot = new VoiceSnapshot(all.length);
+            voiceSlots[back] = slot;
+        }
+
+        slot.begin(all.length, buffer);
+        for (AudioCueCursor acc : all)
+        {
+            slot.set(acc.hook, acc.taken, acc.isPlaying, acc.isVirtual,
+                     acc.takenGeneration, acc.idx, acc.volume, acc.pan,
+                     acc.speed, acc.tempo, acc.audibleGain, acc.loop);
+        }
+        slot.end();
+
+        voiceFront = back;
+    }
+
+    /**
+     * Copies the states of all instances, as they were after
+     * the last buffer, into the given snapshot. The copy is
+     * consistent, all values belong to the same buffer. This
+     * is meant for observers that show many instances, and
+     * takes neither a lock nor a check per instance. The
+     * snapshot can be reused for every read.
+     * <p>
+     * The states are only published after the first read, so
+     * the first read returns no instances, and later reads
+     * return the states after the last buffer.
+     *
+     * @param snapshot the {@code VoiceSnapshot} to copy into
+     * @return the given snapshot, which holds no instances if
+     * no buffer was rendered since the first read
+     */
+    public VoiceSnapshot readVoices(VoiceSnapshot snapshot)
+    {
+        if (!voicesRequested)
+        {
+            voicesRequested = true;
+        }
+
+        while (true)
+        {
+            int front = voiceFront;
+            if (front < 0)
+            {
+                snapshot.clear();
+                return snapshot;
+            }
+
+            if (snapshot.copy(voiceSlots[front]))
+            {
+                return snapshot;
+            }
+        }
+    }
+
+    /**
+     * Returns a new snapshot of the states of all instances.
+     *
+     * @return a {@code VoiceSnapshot}
+     * @see #readVoices(VoiceSnapshot)
+     */
+    public VoiceSnapshot readVoices()
+    {
+        return readVoices(new VoiceSnapshot());
+    }
+
+    /*
+     * AudioThread code.
+     * Estimates the highest gain of an instance during the
+     * next buffer.
+     */
+    private float audibleGain(AudioCueCursor acc)
+    {
+        float volume = acc.volume;
+        float panGain = Math.max(panL.apply(acc.pan),
+                                 panR.apply(acc.pan));
+
+        if (acc.targetVolumeSteps > 0)
+        {
+            volume = Math.max(volume, acc.targetVolume);
+        }
+
+        if (acc.targetPanSteps > 0)
+        {
+            panGain = Math.max(panGain,
+                               Math.max(panL.apply(acc.targetPan),
+                                        panR.apply(acc.targetPan)));
+        }
+
+        return volume * panGain * acc.variationGain
+                * Math.max(acc.spatialTargetL, acc.spatialTargetR);
+    }
+
+    /*
+     * AudioThread code.
+     * Returns the gain of the quietest voice that may still
+     * be mixed.
+     */
+    private float realVoiceCutoff(int audible, int maxReal)
+    {
+        if (gainScratch.length < audible)
+        {
+            gainScratch = new float[audible * 2];
+        }
+
+        int n = 0;
+        for (int ai = 0; ai < activeCount; ai++)
+        {
+            AudioCueCursor acc = activeCursors[ai];
+
+            if (acc.isPlaying && acc.audibleGain >= virtualThreshold
+                    && n < audible)
+            {
+                gainScratch[n++] = acc.audibleGain;
+            }
+        }
+
+        if (maxReal <= 0) return Float.POSITIVE_INFINITY;
+
+        Arrays.sort(gainScratch, 0, n);
+        return gainScratch[Math.max(0, n - maxReal)];
+    }
+
+    /*
+     * AudioThread code.
+     * Sets up the ramps of the spatial channel gains for
+     * the next buffer, either towards the computed spatial
+     * values or, for a voice that turns virtual, towards 0.
+     */
+    private void rampSpatialGains(AudioCueCursor acc, boolean mix,
+                                  int frames)
+    {
+        float targetL = mix ? acc.spatialTargetL : 0;
+        float targetR = mix ? acc.spatialTargetR : 0;
+
+        acc.spatialLIncr = (targetL - acc.spatialL) / frames;
+        acc.spatialRIncr = (targetR - acc.spatialR) / frames;
+    }
+
+    /*
+     * AudioThread code.
+     * Advances a virtual voice by one buffer without reading
+     * or mixing any data. Loop and end handling are identical
+     * to the mixed path, so the voice resumes seamlessly
+     * once it becomes audible again.
+     */
+    private void advanceVirtual(AudioCueCursor acc, int frames)
+    {
+        int volumeSteps = Math.max(0,
+                                   Math.min(acc.targetVolumeSteps, frames));
+        acc.volume += acc.targetVolumeIncr * volumeSteps;
+        acc.targetVolumeSteps = Math.max(0,
+                                         acc.targetVolumeSteps - frames);
+
+        int panSteps = Math.max(0, Math.min(acc.targetPanSteps, frames));
+        acc.pan += acc.targetPanIncr * panSteps;
+        acc.targetPanSteps = Math.max(0, acc.targetPanSteps - frames);
+
+        // silent while virtual, faded in when mixed again
+        acc.spatialL = 0;
+        acc.spatialR = 0;
+        acc.spatialLIncr = 0;
+        acc.spatialRIncr = 0;
+
+        float rate = rateRatio * acc.variationSpeed;
+        float tempo = acc.stretching ? acc.tempo : 1;
+        if (acc.stretching)
+        {
+            // grains are started afresh once mixed again
+            acc.stretcher.reset();
+        }
+
+        if (acc.targetSpeedSteps <= 0)
+        {
+            float end = acc.idx + acc.speed * rate * tempo * frames;
+
+            if (end < acc.endFrame)
+            {
+                acc.idx = end;
+                return;
+            }
+        }
+
+        for (int i = 0; i < frames; i++)
+        {
+            if (acc.targetSpeedSteps-- > 0)
+            {
+                acc.speed += acc.targetSpeedIncr;
+            }
+
+            acc.idx += acc.speed * rate * tempo;
+
+            if (acc.idx >= acc.endFrame && reachedEnd(acc))
+            {
+                return;
+            }
+        }
+    }
+
+    /*
+     * AudioThread code.
+     * Handles looping, stopping and recycling once an
+     * instance has reached the end of the cue.
+     * Returns true if the instance stopped playing.
+     */
+    private boolean reachedEnd(AudioCueCursor acc)
+    {
+        // keep looping indefinitely
+        if (acc.loop == -1)
+        {
+            acc.idx = acc.startFrame;
+            broadcastLoopEvent(acc);
+        }
+        // loop specific number of times
+        else if (acc.loop > 0)
+        {
+            acc.loop--;
+            acc.idx = acc.startFrame;
+            broadcastLoopEvent(acc);
+        }
+        else // no more loops to do
+        {
+            acc.isPlaying = false;
+            acc.clearApplied(AudioCueCursor.STARTED, true);
+            broadcastStopEvent(acc);
+            if (acc.recycleWhenDone)
+            {
+                acc.resetInstance();
+                availables.offerFirst(acc);
+                broadcastReleaseEvent(acc);
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * AudioThread code.
+     * Mixes one buffer of a playing instance in stereo. The
+     * pan is left out if it is applied when the instance is
+     * spread across more channels.
+     */
+    private void mixCursor(AudioCueCursor acc, float[] readBuffer,
+                           float[] audioVals, boolean applyPan)
+    {
+        int bufferLength = readBuffer.length;
+        float rate = rateRatio * acc.variationSpeed;
+        float gain = acc.variationGain;
+
+        /*
+         * Usually, pan won't change, so let's
+         * store value and only recalculate when
+         * it changes. The start variation of the
+         * volume is included.
+         */
+        float panFactorL = (applyPan ? panL.apply(acc.pan) : 1) * gain;
+        float panFactorR = (applyPan ? panR.apply(acc.pan) : 1) * gain;
+
+        // stretched instances keep using the stretcher, even
+        // back at tempo 1, so the grains do not cut off
+        TimeStretcher stretcher = acc.stretcher;
+        if (stretcher != null && acc.tempo != 1)
+        {
+            acc.stretching = true;
+        }
+        boolean stretch = acc.stretching;
+        float tempo = stretch ? acc.tempo : 1;
+
+        // next silent region that can be skipped
+        int region = silentRegionAt(acc.idx);
+        float silenceStart = region < silenceCount
+                ? silenceStarts[region] : Float.MAX_VALUE;
+
+        for (int i = 0; i < bufferLength; i += 2)
+        {
+            // adjust volume if needed
+            if (acc.targetVolumeSteps-- > 0)
+            {
+                acc.volume += acc.targetVolumeIncr;
+            }
+
+            // adjust pan if needed
+            if (acc.targetPanSteps-- > 0)
+            {
+                acc.pan += acc.targetPanIncr;
+                if (applyPan)
+                {
+                    panFactorL = panL.apply(acc.pan) * gain;
+                    panFactorR = panR.apply(acc.pan) * gain;
+                }
+            }
+
+            // skip reading and mixing within silent regions
+            // grains read around the position, they are never
+            // skipped
+            boolean silent = false;
+            if (!stretch && acc.idx >= silenceStart)
+            {
+                while (region < silenceCount
+                        && acc.idx >= silenceEnds[region])
+                {
+                    region++;
+                }
+                silenceStart = region < silenceCount
+                        ? silenceStarts[region] : Float.MAX_VALUE;
+                silent = acc.idx >= silenceStart;
+            }
+
+            if (!silent)
+            {
+                // get audioVals (with LERP for fractional idx)
+                audioVals = stretch
+                        ? stretcher.next(audioVals, cue, cueOffset,
+                                         acc.idx, acc.speed * rate)
+                        : readFractionalFrame(audioVals, acc.idx);
+
+                readBuffer[i] += (audioVals[0]
+                        * acc.volume * panFactorL * acc.spatialL);
+                readBuffer[i + 1] += (audioVals[1]
+                        * acc.volume * panFactorR * acc.spatialR);
+            }
+
+            acc.spatialL += acc.spatialLIncr;
+            acc.spatialR += acc.spatialRIncr;
+
+            // SET UP FOR NEXT ITERATION
+            // adjust pitch if needed
+            if (acc.targetSpeedSteps-- > 0)
+            {
+                acc.speed +=
+                        acc.targetSpeedIncr;
+            }
+
+            // set NEXT read position
+            acc.idx += acc.speed * rate * tempo;
+
+            // test for "eof" and "looping"
+            if (acc.idx >= acc.endFrame)
+            {
+                if (reachedEnd(acc))
+                {
+                    break;
+                }
+
+                region = silentRegionAt(acc.idx);
+                silenceStart = region < silenceCount
+                        ? silenceStarts[region] : Float.MAX_VALUE;
+            }
+        }
+    }
+
+    /*
+     * AudioThread code.
+     * Computes the spatial channel gains for the end of the
+     * next buffer.
+     */
+    private void updateSpatialization(AudioCueCursor acc,
+                                      float[] gainPan, boolean spread)
+    {
+        AudioCueSpatializer spatializer = acc.spatializer;
+
+        if (spatializer == null)
+        {
+            acc.spatialTargetL = 1;
+            acc.spatialTargetR = 1;
+            return;
+        }
+
+        spatializer.computeGainPan(gainPan);
+
+        AudioJournal recording = recording();
+        if (recording != null)
+        {
+            recording.event(AudioJournal.SPATIAL, journalId, acc.hook);
+            recording.putFloat(gainPan[0]);
+            recording.putFloat(gainPan[1]);
+        }
+        float gain = Math.max(0, Math.min(1, gainPan[0]));
+        float pan = Math.max(-1, Math.min(1, gainPan[1]));
+
+        if (spread)
+        {
+            // the pan is applied together with the instance pan
+            acc.spatialTargetL = gain;
+            acc.spatialTargetR = gain;
+            acc.spatialPan = pan;
         }
         else
         {
-            cursors[instanceHook].speed =
-                    cursors[instanceHook].targetSpeed;
+            acc.spatialTargetL = gain * panL.apply(pan);
+            acc.spatialTargetR = gain * panR.apply(pan);
         }
-    };
 
-    /**
-     * Returns a factor indicating the current rate of play of
-     * the {@code AudioCue} instance relative to normal play.
-     *
-     * @param instanceHook an {@code int} used to identify an
-     * {@code AudioCue} instance
-     * @return a {@code float} factor indicating the speed at
-     * which the {@code AudioCue} instance is being played
-     * in the range [0.125, 8]
-     * @throws IllegalStateException if instance is not active
-     */
-    public double getSpeed(int instanceHook) throws
-                                             IllegalStateException
-    {
-        if (!cursors[instanceHook].isActive)
+        if (!acc.spatialPrimed)
         {
-            throw new IllegalStateException(name + " instance: "
-                                                    + instanceHook + " is inactive");
+            // first buffer, start at the computed values
+            if (!acc.isVirtual)
+            {
+                acc.spatialL = acc.spatialTargetL;
+                acc.spatialR = acc.spatialTargetR;
+            }
+            acc.spatialPrimed = true;
         }
+    }
 
-        return cursors[instanceHook].speed;
-    };
-
-    /**
-     * Sets the number of times the media will restart
-     * from the beginning, after completing, or specifies
-     * infinite looping via the value -1. Note: an instance
-     * set to loop 2 times will play back a total of 3 times.
-     *
-     * @param instanceHook an {@code int} used to identify an
-     * {@code AudioCue} instance
-     * @param loops an {@code int} that specifies the number
-     * of times an instance will return to the beginning
-     * and play again
-     * @throws IllegalStateException if instance is not active
+    /*
+     * AudioThread code.
+     * Computes the output channel gains for the end of the
+     * next buffer. Instance pan and spatial pan are added and
+     * select a position between the front speakers, which is
+     * panned within the adjacent pair using the pan law.
      */
-    public void setLooping(int instanceHook, int loops)
-            throws IllegalStateException
+    private void updateChannelGains(AudioCueCursor acc,
+                                    ChannelLayout layout, int frames)
     {
-        if (!cursors[instanceHook].isActive)
+        int panSteps = Math.max(0, Math.min(acc.targetPanSteps, frames));
+        float pan = acc.pan + acc.targetPanIncr * panSteps + acc.spatialPan;
+        pan = Math.max(-1, Math.min(1, pan));
+
+        float[] target = acc.channelTarget;
+        Arrays.fill(target, 0);
+        int[] front = layout.frontChannels;
+
+        if (front.length == 1)
         {
-            throw new IllegalStateException(name + " instance: "
-                                                    + instanceHook + " is inactive");
+            target[front[0]] = 1;
+        }
+        else
+        {
+            float position = (pan + 1) / 2 * (front.length - 1);
+            int pair = Math.min((int)position, front.length - 2);
+            float local = (position - pair) * 2 - 1;
+            target[front[pair]] = panL.apply(local);
+            target[front[pair + 1]] = panR.apply(local);
         }
 
-        cursors[instanceHook].loop = loops;
-    };
+        if (!acc.channelPrimed)
+        {
+            System.arraycopy(target, 0, acc.channelGain, 0,
+                             target.length);
+            acc.channelPrimed = true;
+        }
+    }
 
-    /**
-     * Sets a flag which determines what happens when the instance
-     * finishes playing. If {@code true} the instance will be
-     * added to the pool of available instances and will no longer
-     * allow updates. If {@code false} then the instance will
-     * remain available for updates. By default, an instance that
-     * is obtained via a {@code play} method recycles, and an
-     * instance obtained via {@code getInstance} will not. But in
-     * both cases the behavior can be changed by setting this
-     * flag.
-     *
-     * @param instanceHook an {@code int} used to identify an
-     * {@code AudioCue} instance
-     * @param recycleWhenDone a {@code boolean} that designates
-     * the behavior ("recycle" or not) that occurs when the
-     * instance finishes playing
-     * @throws IllegalStateException if the instance is not active
+    /*
+     * AudioThread code.
+     * Mixes a stereo voice buffer down to mono and adds it to
+     * the output channels, ramping the channel gains towards
+     * their targets over the buffer.
      */
-    public void setRecycleWhenDone(int instanceHook,
-                                   boolean recycleWhenDone) throws IllegalStateException
+    private void spreadVoice(float[] voice, float[] out,
+                             ChannelLayout layout, float[] gains,
+                             float[] targets)
     {
-        if (!cursors[instanceHook].isActive)
+        int channels = layout.getChannels();
+        int frames = voice.length >> 1;
+
+        for (int c = 0; c < channels; c++)
         {
-            throw new IllegalStateException(name + " instance: "
-                                                    + instanceHook + " is inactive");
+            channelIncr[c] = (targets[c] - gains[c]) / frames;
         }
 
-        cursors[instanceHook].recycleWhenDone = recycleWhenDone;
-    }
+        for (int f = 0, o = 0; f < frames; f++, o += channels)
+        {
+            float mono = (voice[f * 2] + voice[f * 2 + 1]) * 0.5f;
+            if (mono == 0) continue;
 
-    /**
-     * Returns {@code true} if instance is active, {@code false}
-     * if not.
-     *
-     * @param instanceHook an {@code int} used to identify an
-     * {@code AudioCue} instance
-     * @return {@code true} if instance is playing, {@code false}
-     * if not
-     */
-    public boolean getIsActive(int instanceHook)
-    {
-        return cursors[instanceHook].isActive;
+            for (int c = 0; c < channels; c++)
+            {
+                out[o + c] += mono * (gains[c] + channelIncr[c] * f);
+            }
+        }
+
+        if (gains != targets)
+        {
+            System.arraycopy(targets, 0, gains, 0, channels);
+        }
     }
 
-    /**
-     * Returns {@code true} if instance is playing, {@code false}
-     * if not
-     *
-     * @param instanceHook an {@code int} used to identify an
-     * {@code AudioCue} instance
-     * @return {@code true} if instance is playing, {@code false}
-     * if not
+    /*
+     * Marks a cursor to be picked up by the audio thread.
+     * Lock-free push onto an intrusive stack, so no garbage
+     * is created per play.
      */
-    public boolean getIsPlaying(int instanceHook)
+    private void activate(AudioCueCursor acc)
     {
-        return cursors[instanceHook].isPlaying;
-    }
+        if (!acc.queued.compareAndSet(false, true)) return;
 
+        AudioCueCursor head;
+        do
+        {
+            head = pendingCursors.get();
+            acc.nextPending = head;
+        }
+        while (!pendingCursors.compareAndSet(head, acc));
+    }
 
     /*
-     * A private, data-only class that is created and
-     * maintained internally for managing each concurrent instance
-     * of an {@code AudioCue}. The 'hook' variable is an identifier
-     * that is created upon instantiation to correspond
-     * to the position of the {@code AudioCueCursor} instance in
-     * the {@code AudioCue.cursors} array.
-     * <p>
-     * An instance is either active ({code isActive = true})
-     * in which case it can be updated, or inactive, in which case
-     * it is in a pool of <em>available</em> instances. An
-     * <em>active</em> instance is either playing or stopped
-     * (paused). These flags are checked for appropriate state
-     * for various method calls. The {@code recycleWhenDone
-     * boolean} is used to determine whether the instance is placed
-     * back in the pool of available instances when a play
-     * completes, or if it remains available to update.
-     * <p>
-     * The <em>target</em> variables are used to ensure that
-     * changes in real time to the corresponding settings change
-     * in small enough increments that discontinuities are not
-     * created in the data.
+     * AudioThread code.
+     * Moves pushed cursors into the dense list of active cursors.
      */
-    private class AudioCueCursor
+    private void activatePendingCursors()
     {
-        volatile boolean isPlaying;
-        volatile boolean isActive;
-        final int hook;
-
-        float idx;
-        float speed;
-        float volume;
-        float pan;
-        int loop;
-        boolean recycleWhenDone;
+        AudioCueCursor acc = pendingCursors.getAndSet(null);
 
-        float targetSpeed;
-        float targetSpeedIncr;
-        int targetSpeedSteps;
+        while (acc != null)
+        {
+            AudioCueCursor next = acc.nextPending;
+            acc.nextPending = null;
+            acc.queued.set(false);
 
-        float targetVolume;
-        float targetVolumeIncr;
-        int targetVolumeSteps;
+            if (!acc.listed)
+            {
+                if (activeCount == activeCursors.length)
+                {
+                    activeCursors = Arrays.copyOf(activeCursors,
+                                                  activeCount * 2);
+                }
+                activeCursors[activeCount++] = acc;
+                acc.listed = true;
+            }
 
-        float targetPan;
-        float targetPanIncr;
-        int targetPanSteps;
+            if (acc.variationPending)
+            {
+                acc.variationPending = false;
+                drawVariation(acc);
+            }
 
-        AudioCueCursor(int hook)
-        {
-            this.hook = hook;
+            acc = next;
         }
+    }
 
-        /*
-         * Used to clear settings from previous plays
-         * and put in default settings.
-         */
-        void resetInstance()
-        {
-            isActive = false;
-            isPlaying = false;
-            idx = 0;
-            speed = 1;
-            volume = 0;
-            pan = 0;
-            loop = 0;
-            recycleWhenDone = false;
+    /*
+     * AudioThread code.
+     * Draws the random volume and pitch of a new play, the
+     * volume is only ever lowered.
+     */
+    private void drawVariation(AudioCueCursor acc)
+    {
+        float volumeDb = volumeVariation;
+        float cents = pitchVariation;
+
+        acc.variationGain = volumeDb > 0
+                ? (float)Math.pow(10, -volumeDb * nextVariation() / 20) : 1;
+        acc.variationSpeed = cents > 0
+                ? (float)Math.pow(2, cents * (2 * nextVariation() - 1) / 1200)
+                : 1;
+    }
 
-            targetSpeedSteps = 0;
-            targetVolumeSteps = 0;
-            targetPanSteps = 0;
-        }
+    /*
+     * AudioThread code, or the AudioReplayer before the cue
+     * plays. Restarts the random start variations, so that a
+     * replay draws the recorded ones.
+     */
+    void setVariationSeed(int seed)
+    {
+        variationRandom = seed;
     }
 
     /*
-     * "Opening" line sets the SourceDataLine waiting for data.
-     * "Run" will start loop that will either send out silence
-     * (zero-filled arrays) or sound data.
+     * AudioThread code.
+     * Uniform random value in [0, 1).
      */
-    private class AudioCuePlayer implements Runnable
+    private float nextVariation()
     {
-        private SourceDataLine sdl;
-        private final int sdlBufferSize;
-        private byte[] audioBytes;
+        int r = variationRandom;
+        r ^= r << 13;
+        r ^= r >>> 17;
+        r ^= r << 5;
+        variationRandom = r;
 
-        AudioCuePlayer(Mixer mixer, int bufferFrames) throws
-                                                      LineUnavailableException
-        {
-            readBuffer = new float[bufferFrames * 2];
-            sdlBufferSize = bufferFrames * 4;
-            audioBytes = new byte[sdlBufferSize];
+        return (r >>> 8) * (1f / (1 << 24));
+    }
 
-            sdl = getSourceDataLine(mixer, info);
-            sdl.open(audioFormat, sdlBufferSize);
-            sdl.start();
-        }
+    /*
+     * Returns the index of the first silent region that ends
+     * after the given position, or silenceCount if there is
+     * none.
+     */
+    private int silentRegionAt(float idx)
+    {
+        int low = 0;
+        int high = silenceCount;
 
-        // Audio Thread Code
-        public void run()
+        while (low < high)
         {
-            while(playerRunning)
-            {
-                readBuffer = fillBuffer(readBuffer);
-                audioBytes = fromBufferToAudioBytes(audioBytes, readBuffer);
-                sdl.write(audioBytes, 0, sdlBufferSize);
-            }
-            sdl.drain();
-            sdl.close();
-            sdl = null;
+            int mid = (low + high) >>> 1;
+            if (silenceEnds[mid] <= idx) low = mid + 1;
+            else high = mid;
         }
+
+        return low;
     }
 
     /*
      * AudioThread code.
-     * Within while loop.
+     * Fades out the play position of a stolen instance.
      */
-    private float[] fillBuffer(float[] readBuffer)
+    private void mixTail(AudioCueCursor acc, float[] readBuffer,
+                         float[] audioVals)
     {
-        // Start with 0-filled buffer, send out silence
-        // if nothing playing.
-        int bufferLength = readBuffer.length;
-        for (int i = 0; i < bufferLength; i++)
+        for (int i = 0, n = readBuffer.length;
+             i < n && acc.tailFrames > 0; i += 2)
         {
-            readBuffer[i] = 0;
-        }
+            float gain = acc.tailVolume * acc.tailFrames--
+                    / STEAL_FADE_FRAMES;
 
-        for (int ci = 0; ci < polyphony; ci++)
-        {
-            if (cursors[ci].isPlaying)
+            // trimmed silence is not held in memory anymore
+            if (acc.tailIdx < cueOffset
+                    || acc.tailIdx >= cueOffset + (cue.limit() >> 1) - 1)
             {
-                AudioCueCursor acc = cursors[ci];
-                /*
-                 * Usually, pan won't change, so let's
-                 * store value and only recalculate when
-                 * it changes.
-                 */
-                float panFactorL = panL.apply(acc.pan);
-                float panFactorR = panR.apply(acc.pan);
-
-                for (int i = 0; i < bufferLength; i += 2)
-                {
-                    // adjust volume if needed
-                    if (acc.targetVolumeSteps-- > 0)
-                    {
-                        acc.volume += acc.targetVolumeIncr;
-                    }
-
-                    // adjust pan if needed
-                    if (acc.targetPanSteps-- > 0)
-                    {
-                        acc.pan += acc.targetPanIncr;
-                        panFactorL = panL.apply(acc.pan);
-                        panFactorR = panR.apply(acc.pan);
-                    }
-
-                    // get audioVals (with LERP for fractional idx)
-                    float[] audioVals = new float[2];
-                    audioVals = readFractionalFrame(audioVals, acc.idx);
-
-                    readBuffer[i] += (audioVals[0]
-                            * acc.volume * panFactorL);
-                    readBuffer[i + 1] += (audioVals[1]
-                            * acc.volume * panFactorR);
-
-                    // SET UP FOR NEXT ITERATION
-                    // adjust pitch if needed
-                    if (acc.targetSpeedSteps-- > 0)
-                    {
-                        acc.speed +=
-                                acc.targetSpeedIncr;
-                    }
+                acc.tailIdx += acc.tailSpeed;
+                continue;
+            }
 
-                    // set NEXT read position
-                    acc.idx += acc.speed;
+            audioVals = readFractionalFrame(audioVals, acc.tailIdx);
+            readBuffer[i] += audioVals[0] * gain * acc.tailPanL;
+            readBuffer[i + 1] += audioVals[1] * gain * acc.tailPanR;
 
-                    // test for "eof" and "looping"
-                    if (acc.idx >= (cueFrameLength - 1))
-                    {
-                        // keep looping indefinitely
-                        if (acc.loop == -1)
-                        {
-                            acc.idx = 0;
-                            broadcastLoopEvent(acc);
-                        }
-                        // loop specific number of times
-                        else if (acc.loop > 0)
-                        {
-                            acc.loop--;
-                            acc.idx = 0;
-                            broadcastLoopEvent(acc);
-                        }
-                        else // no more loops to do
-                        {
-                            acc.isPlaying = false;
-                            broadcastStopEvent(acc);
-                            if (acc.recycleWhenDone)
-                            {
-                                acc.resetInstance();
-                                availables.offerFirst(acc);
-                                broadcastReleaseEvent(acc);
-                            }
-                            break;
-                        }
-                    }
-                }
+            acc.tailIdx += acc.tailSpeed;
+            if (acc.tailIdx >= acc.tailEnd)
+            {
+                acc.tailFrames = 0;
             }
         }
-        return readBuffer;
     }
 
     // Audio thread code, gets single stereo Frame pairs.
@@ -1383,26 +4098,34 @@ public class AudioCue implements AudioMixerTrack
     private float[] readFractionalFrame(float[] audioVals, float idx)
     {
         final int intIndex = (int) idx;
-        final int flatIndex = intIndex * 2;
+        final int flatIndex = (intIndex - cueOffset) * 2;
 
-        audioVals[0] = cue[flatIndex + 2] * (idx - intIndex)
-                + cue[flatIndex] * ((intIndex + 1) - idx);
+        audioVals[0] = cue.get(flatIndex + 2) * (idx - intIndex)
+                + cue.get(flatIndex) * ((intIndex + 1) - idx);
 
-        audioVals[1] = cue[flatIndex + 3] * (idx - intIndex)
-                + cue[flatIndex + 1] * ((intIndex + 1) - idx);
+        audioVals[1] = cue.get(flatIndex + 3) * (idx - intIndex)
+                + cue.get(flatIndex + 1) * ((intIndex + 1) - idx);
 
         return audioVals;
     }
 
     // Audio Thread Code, keep this a self-contained function!
+    // Limits to -1..1, rounds to the nearest step and writes
+    // NaN as 0. The buffer is left unchanged. For dither or
+    // 24-bit output use a PcmConverter.
     public static byte[] fromBufferToAudioBytes(byte[] audioBytes, float[] buffer)
     {
         for (int i = 0, n = buffer.length; i < n; i++)
         {
-            buffer[i] *= 32767;
-
-            audioBytes[i*2] = (byte) buffer[i];
-            audioBytes[i*2 + 1] = (byte)((int)buffer[i] >> 8 );
+            float x = buffer[i];
+            x = x == x ? x : 0;
+            x = x > -1 ? x : -1;
+            x = x < 1 ? x : 1;
+            // offset to positive so the cast rounds half up
+            int v = (int)(x * 32767 + 32768.5f) - 32768;
+
+            audioBytes[i*2] = (byte) v;
+            audioBytes[i*2 + 1] = (byte)(v >> 8);
         }
 
         return audioBytes;
@@ -1447,11 +4170,13 @@ public class AudioCue implements AudioMixerTrack
 
 
     // The following are the methods that broadcast events to
-    // the registered listeners.
+    // the registered listeners. Instance events are passed
+    // without an event object, which listeners only create if
+    // they need one, so a play creates no garbage.
     private void broadcastOpenEvent(int threadPriority,
                                     int bufferSize,	String name)
     {
-        for (AudioCueListener acl : listeners)
+        for (AudioCueListener acl : listenerArray)
         {
             acl.audioCueOpened(System.currentTimeMillis(),
                                threadPriority,	bufferSize, this);
@@ -1460,7 +4185,7 @@ public class AudioCue implements AudioMixerTrack
 
     private void broadcastCloseEvent(String name)
     {
-        for (AudioCueListener acl : listeners)
+        for (AudioCueListener acl : listenerArray)
         {
             acl.audioCueClosed(System.currentTimeMillis(), this);
         }
@@ -1469,60 +4194,44 @@ public class AudioCue implements AudioMixerTrack
 
     private void broadcastCreateInstanceEvent(AudioCueCursor acc)
     {
-        for (AudioCueListener acl:listeners)
-        {
-            acl.instanceEventOccurred(
-                    new AudioCueInstanceEvent(
-                            AudioCueInstanceEvent.Type.OBTAIN_INSTANCE,
-                            this, acc.hook, 0
-                    ));
-        }
+        broadcastInstanceEvent(
+                AudioCueInstanceEvent.Type.OBTAIN_INSTANCE,
+                acc.hook, 0);
     }
 
     private void broadcastReleaseEvent(AudioCueCursor acc)
     {
-        for (AudioCueListener acl:listeners)
-        {
-            acl.instanceEventOccurred(
-                    new AudioCueInstanceEvent(
-                            AudioCueInstanceEvent.Type.RELEASE_INSTANCE,
-                            this, acc.hook, acc.idx
-                    ));
-        }
+        broadcastInstanceEvent(
+                AudioCueInstanceEvent.Type.RELEASE_INSTANCE,
+                acc.hook, acc.idx);
     }
 
     private void broadcastStartEvent(AudioCueCursor acc)
     {
-        for (AudioCueListener acl:listeners)
-        {
-            acl.instanceEventOccurred(
-                    new AudioCueInstanceEvent(
-                            AudioCueInstanceEvent.Type.START_INSTANCE,
-                            this, acc.hook, acc.idx
-                    ));
-        }
+        broadcastInstanceEvent(
+                AudioCueInstanceEvent.Type.START_INSTANCE,
+                acc.hook, acc.idx);
     }
 
     private void broadcastLoopEvent(AudioCueCursor acc)
     {
-        for (AudioCueListener acl:listeners)
-        {
-            acl.instanceEventOccurred(
-                    new AudioCueInstanceEvent(
-                            AudioCueInstanceEvent.Type.LOOP, this, acc.hook, 0
-                    ));
-        }
+        broadcastInstanceEvent(
+                AudioCueInstanceEvent.Type.LOOP, acc.hook, 0);
     }
 
     private void broadcastStopEvent(AudioCueCursor acc)
     {
-        for (AudioCueListener acl:listeners)
+        broadcastInstanceEvent(
+                AudioCueInstanceEvent.Type.STOP_INSTANCE,
+                acc.hook, acc.idx);
+    }
+
+    private void broadcastInstanceEvent(AudioCueInstanceEvent.Type type,
+                                        int hook, double frame)
+    {
+        for (AudioCueListener acl : listenerArray)
         {
-            acl.instanceEventOccurred(
-                    new AudioCueInstanceEvent(
-                            AudioCueInstanceEvent.Type.STOP_INSTANCE,
-                            this, acc.hook, acc.idx
-                    ));
+            acl.instanceEventOccurred(type, this, hook, frame);
         }
     }
 }
\ No newline at end of file
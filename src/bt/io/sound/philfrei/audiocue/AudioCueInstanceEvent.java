@@ -47,7 +47,7 @@ package bt.io.sound.philfrei.audiocue;
  * <p>
  * An {@code AudioCue} supports concurrent plays of its media, where
  * the maximum number of concurrent plays is equal to the value
- * held in the final variable {@code AudioCue.polyphony}.
+ * returned by {@code AudioCue.getMaxPolyphony}.
  * Each concurrent play is referred to as an <em>instance</em>.
  * Instance <em>events</em> mark the life cycle of
  * a single playing or playable instance as follows:
@@ -87,4 +87,29 @@ public interface AudioCueListener
      * @param event {@code AudioCueInstanceEvent}
      */
     void instanceEventOccurred(AudioCueInstanceEvent event);
+
+    /**
+     * Method called by the {@code AudioCue} when an instance
+     * event occurs. The default implementation creates an
+     * {@code AudioCueInstanceEvent} and passes it to
+     * {@code instanceEventOccurred(AudioCueInstanceEvent)}.
+     * Listeners that override this method receive the values
+     * of the event without an object being created for it.
+     *
+     * @param type the {@code AudioCueInstanceEvent.Type} of
+     * the event
+     * @param source {@code AudioCue} that originated the
+     * notification
+     * @param instanceID an {@code int} hook used to identify
+     * the {@code AudioCue} instance
+     * @param frame a {@code double} that holds the sample
+     * frame current at the time of the event
+     */
+    default void instanceEventOccurred(AudioCueInstanceEvent.Type type,
+                                       AudioCue source, int instanceID,
+                                       double frame)
+    {
+        instanceEventOccurred(new AudioCueInstanceEvent(type, source,
+                                                        instanceID, frame));
+    }
 }
\ No newline at end of file
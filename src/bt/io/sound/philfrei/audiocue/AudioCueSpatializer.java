@@ -0,0 +1,28 @@
+package bt.io.sound.philfrei.audiocue;
+
+/**
+ * A source of gain and pan values for an {@code AudioCue}
+ * instance. A spatializer is assigned to an instance via
+ * {@code AudioCue.setSpatializer}, after which the audio
+ * thread consults it once per buffer, together with all
+ * other spatialized instances of the {@code AudioCue}, and
+ * ramps the instance's output to the computed values over
+ * the course of the buffer.
+ * <p>
+ * The method is executed on the thread that processes the
+ * audio data, and thus should be coded for brevity and must
+ * not block.
+ *
+ * @author &#8904
+ */
+public interface AudioCueSpatializer
+{
+    /**
+     * Computes the current gain and pan.
+     *
+     * @param gainPan a {@code float} array of length 2 that
+     * receives the gain, ranging [0, 1], at index 0 and the
+     * pan, ranging [-1, 1], at index 1
+     */
+    void computeGainPan(float[] gainPan);
+}
@@ -0,0 +1,341 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * An {@code AudioJournal} records everything that influences
+ * the output of an {@code AudioMixer} into a compact binary
+ * file, so that an {@code AudioReplayer} can render the same
+ * output again, bit for bit.
+ * <p>
+ * While a mixer records, commands to its {@code AudioCue}s are
+ * queued and applied by the mixer thread between two buffers,
+ * and each is written together with the number of the buffer
+ * before which it took effect.
+ * Changes of the track setup, ducking, routing and dither,
+ * the values computed by {@code AudioCueSpatializer}s, and a
+ * checksum of every rendered buffer are written as well.
+ * <p>
+ * Records are encoded into memory chunks by the mixer thread
+ * only, which takes well below a microsecond per record, so
+ * no lock is needed. Full chunks are written to the file by a
+ * daemon thread, so the mixer thread does not wait for the
+ * disk.
+ *
+ * @author &#8904
+ * @see AudioMixer#startRecording(AudioJournal)
+ * @see AudioReplayer
+ */
+public class AudioJournal implements AutoCloseable
+{
+    static final int MAGIC = 0x4254414A; // 'BTAJ'
+    static final int VERSION = 2;
+
+    // record types
+    static final int END = 0;
+    static final int CUE = 1;
+    static final int SETUP = 2;
+    static final int DUCK = 3;
+    static final int DITHER = 4;
+    static final int CHECK = 5;
+    static final int SPATIAL = 6;
+    static final int OBTAIN = 10;
+    static final int STEAL = 11;
+    static final int RELEASE = 12;
+    static final int START = 13;
+    static final int STOP = 14;
+    static final int POSITION = 15;
+    static final int VOLUME = 16;
+    static final int PAN = 17;
+    static final int SPEED = 18;
+    static final int TEMPO = 19;
+    static final int LOOP = 20;
+    static final int RECYCLE = 21;
+    static final int PRIORITY = 22;
+    static final int SPATIALIZER = 23;
+    static final int CUE_VOLUME = 24;
+    static final int NORMALIZATION = 25;
+    static final int REGION = 26;
+    static final int VARIATION = 27;
+    static final int ROUTE = 28;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // the largest fixed part of a record
+    private static final int RECORD_RESERVE = 64;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final LinkedBlockingQueue<ByteBuffer> full =
+            new LinkedBlockingQueue<>();
+    private final ConcurrentLinkedQueue<ByteBuffer> free =
+            new ConcurrentLinkedQueue<>();
+    // marks the end of the data for the writer
+    private final ByteBuffer closing = ByteBuffer.allocate(0);
+    private final Thread writer;
+    private volatile IOException failure;
+    private volatile long bytesWritten;
+    private ByteBuffer chunk;
+    private long lastStamp;
+    private boolean closed;
+
+    // set by the recording mixer
+    volatile AudioMixer mixer;
+    // the number of the buffer that is rendered next
+    long buffer;
+    // the seed written to the header
+    long seed;
+
+    /**
+     * Creates a journal that writes to the given file,
+     * replacing it if it exists.
+     *
+     * @param path the file to write
+     * @throws IOException if the file can not be created
+     */
+    public AudioJournal(Path path) throws IOException
+    {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.chunk = ByteBuffer.allocate(CHUNK_SIZE);
+
+        writer = new Thread(this::writeChunks, "AudioJournal writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns the file the journal is written to.
+     *
+     * @return the {@code Path} of the journal
+     */
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * Returns the number of bytes written to the file so far.
+     * Records still held in memory are not included.
+     *
+     * @return the byte count
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Writes all remaining records and closes the file. A
+     * mixer that still records into the journal is stopped
+     * from doing so first, which can not be done by a listener
+     * on the thread of that mixer.
+     *
+     * @throws IOException if writing the file failed at any
+     * point
+     * @throws IllegalStateException if called on the thread of
+     * the mixer that records into the journal
+     */
+    @Override
+    public void close() throws IOException
+    {
+        AudioMixer recorder = mixer;
+        if (recorder != null)
+        {
+            recorder.stopRecording();
+            if (mixer != null)
+            {
+                throw new IllegalStateException("The mixer thread "
+                        + "can not close the journal it records, the "
+                        + "recording ends after the current buffer.");
+            }
+        }
+
+        synchronized (this)
+        {
+            if (!closed)
+            {
+                closed = true;
+                chunk.flip();
+                full.add(chunk);
+                chunk = null;
+                full.add(closing);
+            }
+        }
+
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    private void writeChunks()
+    {
+        try
+        {
+            while (true)
+            {
+                ByteBuffer data = full.take();
+                if (data == closing)
+                {
+                    break;
+                }
+
+                try
+                {
+                    while (data.hasRemaining())
+                    {
+                        bytesWritten += channel.write(data);
+                    }
+                }
+                catch (IOException e)
+                {
+                    // keep taking chunks, the error is reported
+                    // by close
+                    if (failure == null) failure = e;
+                }
+                data.clear();
+                free.add(data);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                if (failure == null) failure = e;
+            }
+        }
+    }
+
+    /*
+     * Hands the current chunk to the writer if it has less
+     * than the given space left.
+     */
+    private void ensure(int bytes)
+    {
+        if (chunk.remaining() >= bytes)
+        {
+            return;
+        }
+
+        chunk.flip();
+        full.add(chunk);
+        ByteBuffer next = free.poll();
+        chunk = next != null && next.capacity() >= bytes ? next
+                : ByteBuffer.allocate(Math.max(CHUNK_SIZE, bytes));
+    }
+
+    void writeHeader(float sampleRate, ChannelLayout layout, int bits,
+                     int bufferSize, long seed, PcmConverter.Dither dither)
+    {
+        this.seed = seed;
+        ensure(RECORD_RESERVE);
+        chunk.putInt(MAGIC);
+        putVarint(VERSION);
+        putFloat(sampleRate);
+        putVarint(layout.ordinal());
+        putVarint(bits);
+        putVarint(bufferSize);
+        chunk.putLong(seed);
+        putVarint(dither.ordinal());
+    }
+
+    /*
+     * Starts a record of a command, which is applied before
+     * the buffer that is rendered next.
+     */
+    void command(int type, int cue, int hook)
+    {
+        record(buffer, type, cue, hook);
+    }
+
+    /*
+     * Starts a record of a value that takes effect in the
+     * buffer being rendered.
+     */
+    void event(int type, int cue, int hook)
+    {
+        record(buffer, type, cue, hook);
+    }
+
+    private void record(long stamp, int type, int cue, int hook)
+    {
+        ensure(RECORD_RESERVE);
+        // stamps of events and commands can interleave, so the
+        // difference is signed
+        long delta = stamp - lastStamp;
+        lastStamp = stamp;
+        putVarint((delta << 1) ^ (delta >> 63));
+        chunk.put((byte)type);
+        putVarint(cue + 1);
+        putVarint(hook + 1);
+    }
+
+    void putVarint(long value)
+    {
+        ensure(10);
+        while ((value & ~0x7FL) != 0)
+        {
+            chunk.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        chunk.put((byte)value);
+    }
+
+    void putSigned(int value)
+    {
+        putVarint(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+    }
+
+    void putFloat(float value)
+    {
+        ensure(4);
+        chunk.putFloat(value);
+    }
+
+    void putDouble(double value)
+    {
+        ensure(8);
+        chunk.putDouble(value);
+    }
+
+    void putInt(int value)
+    {
+        ensure(4);
+        chunk.putInt(value);
+    }
+
+    void putString(String value)
+    {
+        byte[] bytes = (value == null ? "" : value)
+                .getBytes(StandardCharsets.UTF_8);
+        putVarint(bytes.length);
+        ensure(bytes.length);
+        chunk.put(bytes);
+    }
+}
@@ -39,8 +39,15 @@ package bt.io.sound.philfrei.audiocue;
 
 import bt.log.Log;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.Mixer;
 import javax.sound.sampled.SourceDataLine;
@@ -60,6 +67,27 @@ import javax.sound.sampled.SourceDataLine;
  * of a <em>mute</em> control, accessible via the {@code running}
  * variable. The mixer imposes a simple floor/ceiling of -1, 1,
  * to guard against volume overflows.
+ * <p>
+ * Tracks can be assigned to named buses. The tracks of each
+ * bus are summed separately and measured by the bus's
+ * {@code LevelMeter} before they are added to the master
+ * output, which is measured by a master {@code LevelMeter}
+ * prior to the floor/ceiling being applied.
+ * <p>
+ * The sample rate and {@code ChannelLayout} of the output
+ * can be chosen at construction. Tracks must provide their
+ * data in that format, {@code AudioCue}s convert to it while
+ * mixing. On layouts with more than two channels, the
+ * {@code AudioCue}s only pan across the front speakers, the
+ * back, side and LFE channels receive no signal from them.
+ * <p>
+ * Buses can be routed to further output devices, see
+ * {@code addOutput}. These are rendered by the same thread,
+ * which is paced by the output line of the mixer.
+ * <p>
+ * The mixer can record an {@code AudioJournal} of all commands
+ * to its {@code AudioCue}s, from which an {@code AudioReplayer}
+ * renders the identical output again.
  *
  * @author Philip Freihofner
  * @version AudioCue 1.1
@@ -67,10 +95,21 @@ import javax.sound.sampled.SourceDataLine;
  */
 public class AudioMixer
 {
-    private AudioMixerTrack[] trackCache, mixerTracks;
+    /**
+     * Default number of frames over which the
+     * {@code LevelMeter}s of the mixer measure.
+     */
+    public static final int DEFAULT_METER_WINDOW = 2048;
+
+    private volatile TrackSetup trackCache;
+    private AudioMixerTrack[] mixerTracks;
+    private AudioMixerBus[] mixerTrackBuses, mixerBuses;
     private CopyOnWriteArrayList<AudioMixerTrack> trackManager;
+    private ConcurrentHashMap<AudioMixerTrack, AudioMixerBus> trackBuses;
+    private ConcurrentHashMap<String, AudioMixerBus> buses;
     private volatile boolean trackCacheUpdated;
     private int trackCount;
+    private final LevelMeter masterMeter;
 
     /**
      * Returns the number of tracks being mixed.
@@ -81,18 +120,52 @@ public class AudioMixer
 
     public final int bufferSize, sdlByteBufferSize,
             readBufferSize;
+    private final AudioFormat audioFormat;
+    private final ChannelLayout channelLayout;
+    private final PcmConverter converter;
     private float[] audioData;
+    private float[] offlineBuffer;
     private Mixer mixer;
     public final int threadPriority;
 
     private volatile boolean running;
+    // additional devices, the array is replaced as a whole
+    private final CopyOnWriteArrayList<AudioMixerOutput> outputManager =
+            new CopyOnWriteArrayList<>();
+    private volatile AudioMixerOutput[] outputs = new AudioMixerOutput[0];
+    private AudioMixerOutput[] mixerOutputs = outputs;
+    private final ConcurrentLinkedQueue<AudioMixerOutput> closingOutputs =
+            new ConcurrentLinkedQueue<>();
+    // guarded by this, true while the player has lines open
+    private boolean linesOpen;
+    private volatile boolean warmUp;
+    private volatile long warmUpNanos;
+
+    // commands issued while a journal is recorded, pushed
+    // without a lock and applied by the mixer thread before
+    // the next buffer
+    private final AtomicReference<QueuedCommand> commands =
+            new AtomicReference<>();
+    private volatile AudioJournal journal;
+    private volatile boolean stopRequested;
+    // the thread that renders a recorded buffer, and the one
+    // that applies the queued commands
+    private volatile Thread renderThread;
+    private volatile Thread commandThread;
+    private volatile Thread playerThread;
+    private final AtomicInteger journalCueCount = new AtomicInteger();
+    private final CRC32 checksum = new CRC32();
+    // set by the AudioReplayer, the track setup is then loaded
+    // from the journal
+    boolean replaying;
 
     /**
      * Constructor for {@code AudioMixer}, using default
      * settings:
      * Mixer           = system default
      * Buffer size     = 8196 frames
-     * Thread priority = 10.
+     * Thread priority = 10
+     * Output format   = 44100 fps, 16-bit, stereo, no dither.
      *
      * The buffer size pertains to the frames collected in
      * a single {@code while} loop iteration. A buffer that
@@ -124,12 +197,273 @@ public class AudioMixer
      */
     public AudioMixer(Mixer mixer, int bufferSize, int threadPriority)
     {
+        this(mixer, bufferSize, threadPriority,
+             AudioCue.audioFormat.getSampleRate(), ChannelLayout.STEREO);
+    }
+
+    /**
+     * Constructor for {@code AudioMixer} with a configurable
+     * output format. The output is written as signed 16-bit
+     * little-endian PCM with the given sample rate and the
+     * number of channels of the given {@code ChannelLayout}.
+     * Choosing the native rate of the output device avoids
+     * a further conversion by the system.
+     *
+     * @param mixer javax.sound.sampled.Mixer to be used
+     * @param bufferSize int specifying the number of frames to
+     * process with each iteration
+     * @param threadPriority int ranging from 1 to 10 specifying
+     * the priority of the sound thread
+     * @param sampleRate the output frame rate, e.g. 48000
+     * @param channelLayout the speaker configuration of the
+     * output
+     */
+    public AudioMixer(Mixer mixer, int bufferSize, int threadPriority,
+                      float sampleRate, ChannelLayout channelLayout)
+    {
+        this(mixer, bufferSize, threadPriority, sampleRate,
+             channelLayout, 16);
+    }
+
+    /**
+     * Constructor for {@code AudioMixer} with a configurable
+     * output format and sample size. The output is written as
+     * signed little-endian PCM of 16 or 24 bits. The summed
+     * tracks are limited to the range -1 to 1 and rounded to
+     * the nearest step, optionally with dither, see
+     * {@code setDither}.
+     *
+     * @param mixer javax.sound.sampled.Mixer to be used
+     * @param bufferSize int specifying the number of frames to
+     * process with each iteration
+     * @param threadPriority int ranging from 1 to 10 specifying
+     * the priority of the sound thread
+     * @param sampleRate the output frame rate, e.g. 48000
+     * @param channelLayout the speaker configuration of the
+     * output
+     * @param bitsPerSample 16 or 24
+     * @see #setDither(PcmConverter.Dither)
+     */
+    public AudioMixer(Mixer mixer, int bufferSize, int threadPriority,
+                      float sampleRate, ChannelLayout channelLayout,
+                      int bitsPerSample)
+    {
+        int channels = channelLayout.getChannels();
+        this.converter = new PcmConverter(bitsPerSample, channels,
+                PcmConverter.Dither.NONE);
+        int frameBytes = channels * converter.getBytesPerSample();
+        this.audioFormat = new AudioFormat(
+                AudioFormat.Encoding.PCM_SIGNED, sampleRate, bitsPerSample,
+                channels, frameBytes, sampleRate, false);
+        this.channelLayout = channelLayout;
+
         trackManager = new CopyOnWriteArrayList<AudioMixerTrack>();
+        trackBuses = new ConcurrentHashMap<>();
+        buses = new ConcurrentHashMap<>();
         this.bufferSize = bufferSize;
-        this.readBufferSize = bufferSize * 2;
-        this.sdlByteBufferSize = bufferSize * 4;
+        this.readBufferSize = bufferSize * channels;
+        this.sdlByteBufferSize = bufferSize * frameBytes;
         this.mixer = mixer;
         this.threadPriority = threadPriority;
+        this.masterMeter = new LevelMeter(channels, DEFAULT_METER_WINDOW);
+    }
+
+    /**
+     * Returns the format written to the output line.
+     *
+     * @return the output {@code AudioFormat}
+     */
+    public AudioFormat getAudioFormat()
+    {
+        return audioFormat;
+    }
+
+    /**
+     * Returns the output frame rate.
+     *
+     * @return the sample rate in frames per second
+     */
+    public float getSampleRate()
+    {
+        return audioFormat.getSampleRate();
+    }
+
+    /**
+     * Sets the treatment of the rounding error when the summed
+     * tracks are converted to PCM. The default is
+     * {@code Dither.NONE}. Dither mostly matters for quiet
+     * passages and fades at 16 bits. The change takes effect
+     * with the next buffer.
+     *
+     * @param dither a member of {@code PcmConverter.Dither}
+     */
+    public void setDither(PcmConverter.Dither dither)
+    {
+        if (defer(() -> setDither(dither)))
+        {
+            return;
+        }
+
+        converter.setDither(dither);
+        AudioJournal recording = recording();
+        if (recording != null)
+        {
+            recording.command(AudioJournal.DITHER, -1, -1);
+            recording.putVarint(dither.ordinal());
+        }
+    }
+
+    /**
+     * Returns the treatment of the rounding error when the
+     * summed tracks are converted to PCM.
+     *
+     * @return a member of {@code PcmConverter.Dither}
+     */
+    public PcmConverter.Dither getDither()
+    {
+        return converter.getDither();
+    }
+
+    /**
+     * Returns the speaker configuration of the output. The
+     * buffers returned by tracks hold
+     * {@code bufferSize * getChannelLayout().getChannels()}
+     * interleaved samples.
+     *
+     * @return the {@code ChannelLayout} of the output
+     */
+    public ChannelLayout getChannelLayout()
+    {
+        return channelLayout;
+    }
+
+    /**
+     * Returns the {@code LevelMeter} which measures the
+     * summed output of all tracks and buses, before the
+     * floor/ceiling is applied. Buses routed to an
+     * {@code AudioMixerOutput} are measured by its meter
+     * instead.
+     *
+     * @return the master {@code LevelMeter}
+     */
+    public LevelMeter getMasterMeter()
+    {
+        return masterMeter;
+    }
+
+    /**
+     * Returns the bus with the given name, creating it if it
+     * does not exist yet. A newly created bus becomes part of
+     * the mix with the next execution of {@code updateTracks}.
+     *
+     * @param name the name of the bus
+     * @return the {@code AudioMixerBus} with the given name
+     */
+    public AudioMixerBus getBus(String name)
+    {
+        return buses.computeIfAbsent(name, n -> new AudioMixerBus(
+                n, readBufferSize, channelLayout.getChannels(),
+                DEFAULT_METER_WINDOW, audioFormat.getSampleRate()));
+    }
+
+    /**
+     * Adds a further output device to the mixer. Buses routed
+     * to it via {@code setBusOutput} are played by the device
+     * instead of the output line of the mixer. The output uses
+     * the format of the mixer and is rendered by the thread of
+     * the mixer, its line is open while the mixer runs. See
+     * {@code AudioMixerOutput} for how the clocks of the devices
+     * are kept in step.
+     *
+     * @param device javax.sound.sampled.Mixer to be used, or
+     * {@code null} for the default device
+     * @return the new {@code AudioMixerOutput}
+     * @throws LineUnavailableException if the mixer is running
+     * and the line of the device can not be opened
+     */
+    public AudioMixerOutput addOutput(Mixer device)
+            throws LineUnavailableException
+    {
+        AudioMixerOutput output = new AudioMixerOutput(this, device);
+
+        synchronized (this)
+        {
+            if (linesOpen)
+            {
+                output.open();
+            }
+            outputManager.add(output);
+            outputs = outputManager.toArray(new AudioMixerOutput[0]);
+        }
+
+        return output;
+    }
+
+    /**
+     * Removes an output device from the mixer. Buses routed to
+     * it return to the output line of the mixer with the next
+     * buffer, after which the line of the device is closed.
+     *
+     * @param output the {@code AudioMixerOutput} to remove
+     */
+    public void removeOutput(AudioMixerOutput output)
+    {
+        synchronized (this)
+        {
+            if (!outputManager.remove(output))
+            {
+                return;
+            }
+
+            output.removed = true;
+            outputs = outputManager.toArray(new AudioMixerOutput[0]);
+            for (AudioMixerBus bus : buses.values())
+            {
+                if (bus.output == output)
+                {
+                    bus.output = null;
+                }
+            }
+            if (linesOpen)
+            {
+                // closed by the player after the current buffer
+                closingOutputs.add(output);
+            }
+        }
+    }
+
+    /**
+     * Returns the output devices added to the mixer.
+     *
+     * @return an array of the {@code AudioMixerOutput}s
+     */
+    public AudioMixerOutput[] getOutputs()
+    {
+        return outputs.clone();
+    }
+
+    /**
+     * Routes the bus with the given name to an output device,
+     * creating the bus if it does not exist yet. The bus is
+     * then no longer part of the master output and its
+     * {@code LevelMeter}. The change takes effect with the
+     * next buffer.
+     *
+     * @param bus the name of the bus
+     * @param output an {@code AudioMixerOutput} of this mixer,
+     * or {@code null} to route the bus to the master output
+     * @throws IllegalArgumentException if the output was not
+     * added to this mixer
+     */
+    public void setBusOutput(String bus, AudioMixerOutput output)
+    {
+        if (output != null && !outputManager.contains(output))
+        {
+            throw new IllegalArgumentException(
+                    "Output does not belong to this AudioMixer.");
+        }
+
+        getBus(bus).output = output;
     }
 
     // reminder: this does NOT update the trackCache!!
@@ -149,6 +483,48 @@ public class AudioMixer
         trackManager.add(track);
     }
 
+    // reminder: this does NOT update the trackCache!!
+    /**
+     * Designates an {@code AudioMixerTrack} to be staged
+     * for loading to the array of tracks being mixed, as
+     * part of the bus with the given name. The bus is created
+     * if it does not exist yet. As with {@code addTrack},
+     * the method {@code updateTracks} must be executed for
+     * the change to take effect on a running mixer.
+     *
+     * @param track {@code AudioMixerTrack} to be added
+     * @param bus the name of the bus, or {@code null} to
+     * add the track directly to the master output
+     */
+    public void addTrack(AudioMixerTrack track, String bus)
+    {
+        setTrackBus(track, bus);
+        trackManager.add(track);
+    }
+
+    // reminder: this does NOT update the trackCache!!
+    /**
+     * Assigns an {@code AudioMixerTrack} to the bus with the
+     * given name, creating the bus if it does not exist yet.
+     * The method {@code updateTracks} must be executed for
+     * the change to take effect on a running mixer.
+     *
+     * @param track {@code AudioMixerTrack} to be assigned
+     * @param bus the name of the bus, or {@code null} to
+     * route the track directly to the master output
+     */
+    public void setTrackBus(AudioMixerTrack track, String bus)
+    {
+        if (bus == null)
+        {
+            trackBuses.remove(track);
+        }
+        else
+        {
+            trackBuses.put(track, getBus(bus));
+        }
+    }
+
     // reminder: this does NOT update the trackCache!!
     /**
      * Designates an {@code AudioMixerTrack} to be staged
@@ -166,6 +542,7 @@ public class AudioMixer
     public void removeTrack(AudioMixerTrack track) throws IllegalThreadStateException
     {
         trackManager.remove(track);
+        trackBuses.remove(track);
     }
 
     /**
@@ -180,12 +557,15 @@ public class AudioMixer
     {
         int size = trackManager.size();
         AudioMixerTrack[] workCopyTracks = new AudioMixerTrack[size];
+        AudioMixerBus[] workCopyTrackBuses = new AudioMixerBus[size];
         for (int i = 0; i < size; i++)
         {
             workCopyTracks[i] = trackManager.get(i);
+            workCopyTrackBuses[i] = trackBuses.get(workCopyTracks[i]);
         }
 
-        trackCache = workCopyTracks;
+        trackCache = new TrackSetup(workCopyTracks, workCopyTrackBuses,
+                buses.values().toArray(new AudioMixerBus[0]));
         trackCacheUpdated = true;
         System.out.println("CoreMixer.updateTracks, new size:" + size);
     }
@@ -210,13 +590,85 @@ public class AudioMixer
 
         updateTracks();
 
+        if (warmUp)
+        {
+            warmUp();
+        }
+
         AudioMixerPlayer player = new AudioMixerPlayer(
                 mixer, bufferSize);
         Thread t = new Thread(player);
         t.setPriority(threadPriority);
+        playerThread = t;
+        running = true;
         t.start();
+    }
 
-        running = true;
+    /*
+     * Renders silent buffers until the mixing code is compiled
+     * and reads the sample data of all cues.
+     */
+    private void warmUp()
+    {
+        long nanos = WarmUp.run(audioFormat.getSampleRate(),
+                channelLayout, converter.getBits(), converter.getDither());
+
+        for (AudioMixerTrack track : trackManager)
+        {
+            if (track instanceof AudioCue)
+            {
+                nanos += ((AudioCue)track).touchSamples();
+            }
+        }
+
+        warmUpNanos = nanos;
+        Log.debug("Warmed up AudioMixer in {} ms", nanos / 1000000);
+    }
+
+    /**
+     * Sets whether {@code start} prepares the mix before the
+     * first buffer is written. Until the JIT has compiled them,
+     * the mixing and conversion code runs interpreted and the
+     * first buffers can be late, which is heard as a glitch.
+     * With warm-up, {@code start} first renders buffers in the
+     * output format offline, without output, through all parts
+     * of the mixing code until the JIT is done, and reads the
+     * sample data of every {@code AudioCue} added to the mixer
+     * once. This takes up to about a second, depending on the
+     * number of processors available to the JIT, see
+     * {@code getWarmUpNanos}.
+     *
+     * @param warmUp {@code true} to warm up on {@code start},
+     * the default is {@code false}
+     */
+    public void setWarmUp(boolean warmUp)
+    {
+        this.warmUp = warmUp;
+    }
+
+    /**
+     * Returns whether {@code start} prepares the mix before the
+     * first buffer is written.
+     *
+     * @return {@code true} if the mixer warms up on
+     * {@code start}
+     * @see #setWarmUp(boolean)
+     */
+    public boolean isWarmUp()
+    {
+        return warmUp;
+    }
+
+    /**
+     * Returns how long the last warm-up took.
+     *
+     * @return the time in nanoseconds, 0 if the mixer was not
+     * warmed up
+     * @see #setWarmUp(boolean)
+     */
+    public long getWarmUpNanos()
+    {
+        return warmUpNanos;
     }
 
     /**
@@ -233,19 +685,474 @@ public class AudioMixer
         running = false;
     }
 
-    private float[] fillBufferFromTracks(float[] normalizedOut)
+    /**
+     * Starts recording everything that influences the output
+     * into the given {@code AudioJournal}, from which an
+     * {@code AudioReplayer} can render the identical output.
+     * The dither sequence is restarted from a seed that is
+     * written to the journal.
+     * <p>
+     * Recording has to start before the mixer is started or
+     * rendered, while no instance of its {@code AudioCue}s is
+     * active. While recording, commands to the
+     * {@code AudioCue}s of the mixer take no lock. They check
+     * and change the state of the instances as before, so
+     * hooks, generations and exceptions do not depend on the
+     * recording, but their effect on the output is queued and
+     * applied by the mixer thread before the next buffer, where
+     * the replay applies it as well. Their listeners are called
+     * by the mixer thread at that point. A queued command to a
+     * play that has ended by then, e.g. one that reached its
+     * end and was recycled, is dropped. Only tracks that are
+     * {@code AudioCue}s are replayed.
+     *
+     * @param journal the {@code AudioJournal} to write to
+     * @throws IllegalStateException if the mixer is running
+     * or already recording
+     */
+    public void startRecording(AudioJournal journal)
+            throws IllegalStateException
+    {
+        if (running) throw new IllegalStateException(
+                "Recording must start before the AudioMixer.");
+
+        if (this.journal != null) throw new IllegalStateException(
+                "AudioMixer is already recording!");
+
+        long seed = System.nanoTime();
+        converter.setSeed(seed);
+        journal.mixer = this;
+        journal.writeHeader(audioFormat.getSampleRate(), channelLayout,
+                converter.getBits(), bufferSize, seed,
+                converter.getDither());
+        stopRequested = false;
+        this.journal = journal;
+
+        for (AudioMixerTrack track : trackManager)
+        {
+            if (track instanceof AudioCue)
+            {
+                ((AudioCue)track).journalId = journalCue((AudioCue)track);
+            }
+        }
+        for (AudioMixerBus bus : buses.values())
+        {
+            bus.resetJournal();
+        }
+        // the current setup is written with the first buffer
+        trackCacheUpdated = true;
+    }
+
+    /**
+     * Stops recording into the current {@code AudioJournal},
+     * which can then be closed. The recording ends after the
+     * buffer that is being rendered, which this method waits
+     * for, unless it is called by a listener on the mixer
+     * thread. Does nothing if the mixer does not record.
+     */
+    public void stopRecording()
+    {
+        AudioJournal recording = journal;
+        if (recording == null)
+        {
+            return;
+        }
+
+        stopRequested = true;
+        Thread current = Thread.currentThread();
+        if (current == renderThread || current == commandThread)
+        {
+            return;
+        }
+
+        Thread player = playerThread;
+        boolean interrupted = false;
+        synchronized (recording)
+        {
+            while (journal == recording && player != null
+                    && player.isAlive())
+            {
+                try
+                {
+                    recording.wait(10);
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+
+        // without a mixer thread the buffers are rendered by
+        // the callers of renderOffline
+        endRecording(recording);
+
+        if (interrupted)
+        {
+            current.interrupt();
+        }
+    }
+
+    /*
+     * Writes the end of the journal, unless that was done
+     * already.
+     */
+    private void endRecording(AudioJournal recording)
+    {
+        synchronized (recording)
+        {
+            if (journal == recording)
+            {
+                recording.command(AudioJournal.END, -1, -1);
+                recording.mixer = null;
+                stopRequested = false;
+                journal = null;
+            }
+            recording.notifyAll();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the mixer records into an
+     * {@code AudioJournal}.
+     *
+     * @return {@code true} while recording
+     */
+    public boolean isRecording()
+    {
+        return journal != null;
+    }
+
+    /*
+     * Queues a command if a journal is recorded and returns
+     * true. A command issued while the queued ones are
+     * applied, e.g. by a listener, is applied right away and
+     * false is returned.
+     */
+    boolean defer(Runnable command)
+    {
+        if (!queuesCommands())
+        {
+            return false;
+        }
+
+        QueuedCommand queued = new QueuedCommand(command);
+        do
+        {
+            queued.next = commands.get();
+        }
+        while (!commands.compareAndSet(queued.next, queued));
+
+        return true;
+    }
+
+    /*
+     * Returns true if a command issued by the current thread
+     * is queued.
+     */
+    boolean queuesCommands()
+    {
+        return journal != null && Thread.currentThread() != commandThread;
+    }
+
+    /*
+     * Mixer thread. Applies the queued commands in the order
+     * they were issued. Commands issued meanwhile by other
+     * threads are left for the next buffer.
+     */
+    private void applyCommands()
+    {
+        if (commands.get() == null)
+        {
+            return;
+        }
+
+        // the stack holds the latest command first
+        QueuedCommand queued = commands.getAndSet(null);
+        QueuedCommand ordered = null;
+        while (queued != null)
+        {
+            QueuedCommand next = queued.next;
+            queued.next = ordered;
+            ordered = queued;
+            queued = next;
+        }
+
+        commandThread = Thread.currentThread();
+        try
+        {
+            for (; ordered != null; ordered = ordered.next)
+            {
+                ordered.command.run();
+            }
+        }
+        finally
+        {
+            commandThread = null;
+        }
+    }
+
+    /*
+     * Mixer thread. The journal recorded in the buffer that is
+     * being rendered, or that the applied commands are
+     * written to.
+     */
+    AudioJournal recording()
+    {
+        Thread current = Thread.currentThread();
+        return current == renderThread || current == commandThread
+                ? journal : null;
+    }
+
+    /*
+     * Assigns the id under which an AudioCue appears in the
+     * journal, or -1 if none is recorded.
+     */
+    int journalCue(AudioCue cue)
+    {
+        if (journal == null)
+        {
+            return -1;
+        }
+
+        int id = journalCueCount.getAndIncrement();
+        if (!defer(() -> writeCue(id, cue)))
+        {
+            writeCue(id, cue);
+        }
+        return id;
+    }
+
+    /*
+     * Mixer thread. Writes the record of a cue and restarts
+     * its start variations from a seed derived from the one
+     * of the journal, which is written with it. The record is
+     * applied before any command to the cue, so no variation
+     * has been drawn during the recording yet.
+     */
+    private void writeCue(int id, AudioCue cue)
+    {
+        AudioJournal recording = recording();
+        if (recording != null)
+        {
+            long z = recording.seed + (id + 1) * 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+            // the xorshift state must not be 0
+            int seed = (int)(z ^ (z >>> 33)) | 1;
+            cue.setVariationSeed(seed);
+
+            recording.command(AudioJournal.CUE, id, -1);
+            recording.putString(cue.getName());
+            recording.putVarint(cue.getFrameLength());
+            recording.putInt(seed);
+        }
+    }
+
+    /**
+     * Renders the next buffer into the given array, without
+     * writing it to an output line. This allows the mix to be
+     * rendered faster than real time, e.g. to record or test
+     * it. Tracks that were added or removed are loaded as by
+     * the running mixer.
+     *
+     * @param audioBytes receives {@code sdlByteBufferSize}
+     * bytes of PCM data
+     * @throws IllegalStateException if the mixer is running
+     */
+    public void renderOffline(byte[] audioBytes) throws IllegalStateException
+    {
+        if (running) throw new IllegalStateException(
+                "AudioMixer is running!");
+
+        if (offlineBuffer == null)
+        {
+            offlineBuffer = new float[readBufferSize];
+            if (mixerTracks == null && !replaying)
+            {
+                updateTracks();
+            }
+        }
+        renderBuffer(offlineBuffer, audioBytes);
+    }
+
+    /*
+     * Sound thread, or the caller of renderOffline. Mixes one
+     * buffer and converts it to PCM, recording the buffer if
+     * a journal is recorded. No lock is held, so listeners
+     * called from here or from the queued commands can take
+     * any lock that a caller of the commands holds.
+     */
+    private void renderBuffer(float[] readBuffer, byte[] audioBytes)
+    {
+        AudioJournal recording = journal;
+        if (recording == null)
+        {
+            loadTracks(null);
+            // queued before the recording ended
+            applyCommands();
+            fillBufferFromTracks(readBuffer, null);
+            converter.convert(readBuffer, readBufferSize, audioBytes);
+            renderOutputs();
+            return;
+        }
+
+        renderThread = Thread.currentThread();
+        try
+        {
+            // the record of a cue is queued before the cue is
+            // added to a setup, so a new setup is followed by
+            // the records of its cues
+            loadTracks(recording);
+            applyCommands();
+            fillBufferFromTracks(readBuffer, recording);
+            converter.convert(readBuffer, readBufferSize, audioBytes);
+            renderOutputs();
+
+            checksum.reset();
+            checksum.update(audioBytes, 0, sdlByteBufferSize);
+            recording.event(AudioJournal.CHECK, -1, -1);
+            recording.putInt((int)checksum.getValue());
+            recording.buffer++;
+        }
+        finally
+        {
+            renderThread = null;
+        }
+
+        if (stopRequested)
+        {
+            endRecording(recording);
+        }
+    }
+
+    /*
+     * Sound thread. Writes the buses routed to further devices
+     * to their lines.
+     */
+    private void renderOutputs()
+    {
+        PcmConverter.Dither dither = converter.getDither();
+        for (AudioMixerOutput output : mixerOutputs)
+        {
+            output.render(dither);
+        }
+    }
+
+    /*
+     * Sound thread. Loads a new track setup and writes it to
+     * the journal.
+     */
+    private void loadTracks(AudioJournal recording)
+    {
+        if (replaying || !trackCacheUpdated)
+        {
+            return;
+        }
+
+        /*
+         * Concurrency plan: Better to allow a late
+         * or redundant update than to skip an update.
+         * Example: flag = true, next line resets, but
+         * updater sets true again prior to mixerTracks
+         * assignment. We might load the same trackCache
+         * twice. That is OK.
+         */
+        trackCacheUpdated = false;
+        TrackSetup setup = trackCache;
+        mixerTracks = setup.tracks;
+        mixerTrackBuses = setup.trackBuses;
+        mixerBuses = setup.buses;
+        trackCount = mixerTracks.length;
+
+        if (recording != null)
+        {
+            recording.event(AudioJournal.SETUP, -1, -1);
+            recording.putVarint(mixerBuses.length);
+            for (AudioMixerBus bus : mixerBuses)
+            {
+                recording.putString(bus.getName());
+            }
+            recording.putVarint(trackCount);
+            for (int n = 0; n < trackCount; n++)
+            {
+                AudioMixerTrack track = mixerTracks[n];
+                recording.putSigned(track instanceof AudioCue
+                        ? ((AudioCue)track).journalId : -1);
+                recording.putSigned(indexOf(mixerBuses, mixerTrackBuses[n]));
+            }
+        }
+    }
+
+    private static int indexOf(AudioMixerBus[] buses, AudioMixerBus bus)
     {
-        // loop through all tracks, summing
+        for (int i = 0; i < buses.length; i++)
+        {
+            if (buses[i] == bus) return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Replaces the track setup, used by the AudioReplayer.
+     */
+    void loadSetup(AudioMixerTrack[] tracks, AudioMixerBus[] trackBuses,
+                   AudioMixerBus[] buses)
+    {
+        mixerTracks = tracks;
+        mixerTrackBuses = trackBuses;
+        mixerBuses = buses;
+        trackCount = tracks.length;
+    }
+
+    /*
+     * Restarts the dither sequence, used by the AudioReplayer.
+     */
+    void setDitherSeed(long seed)
+    {
+        converter.setSeed(seed);
+    }
+
+    private float[] fillBufferFromTracks(float[] normalizedOut,
+                                         AudioJournal recording)
+    {
+        for (int i = 0; i < readBufferSize; i++)
+        {
+            normalizedOut[i] = 0;
+        }
+
+        for (AudioMixerBus bus : mixerBuses)
+        {
+            float[] busBuffer = bus.buffer;
+            for (int i = 0; i < readBufferSize; i++)
+            {
+                busBuffer[i] = 0;
+            }
+        }
+
+        mixerOutputs = outputs;
+        for (AudioMixerOutput output : mixerOutputs)
+        {
+            float[] outputBuffer = output.buffer;
+            for (int i = 0; i < readBufferSize; i++)
+            {
+                outputBuffer[i] = 0;
+            }
+        }
+
+        // loop through all tracks, summing into their bus
         for (int n = 0; n < trackCount; n++)
         {
             if (mixerTracks[n].isRunning())
             {
+                AudioMixerBus bus = mixerTrackBuses[n];
+                float[] target = bus == null ? normalizedOut : bus.buffer;
+
                 try
                 {
                     audioData = mixerTracks[n].readTrack();
                     for (int i = 0; i < readBufferSize; i++)
                     {
-                        normalizedOut[i] += audioData[i];
+                        target[i] += audioData[i];
                     }
                 }
                 catch (Exception e)
@@ -253,21 +1160,113 @@ public class AudioMixer
                     Log.error("Failed to read track", e);
                 }
             }
+        }
+
+        // all ducking gains are computed before any bus is
+        // ducked, so every sidechain is read un-ducked
+        for (AudioMixerBus bus : mixerBuses)
+        {
+            bus.computeDucking(bufferSize, recording);
+        }
+
+        for (AudioMixerBus bus : mixerBuses)
+        {
+            float[] busBuffer = bus.buffer;
+            bus.applyDucking(bufferSize);
+            bus.getLevelMeter().process(busBuffer, readBufferSize);
+
+            AudioMixerOutput output = bus.route(recording);
+            float[] target = output == null ? normalizedOut : output.buffer;
             for (int i = 0; i < readBufferSize; i++)
             {
-                if (normalizedOut[i] > 1)
-                {
-                    normalizedOut[i] = 1;
-                }
-                else if (normalizedOut[i] < -1)
-                {
-                    normalizedOut[i] = -1;
-                }
+                target[i] += busBuffer[i];
             }
         }
+
+        PcmConverter.flushDenormals(normalizedOut, readBufferSize);
+
+        // meter before the floor/ceiling, which the converter
+        // applies, so clipping is seen
+        masterMeter.process(normalizedOut, readBufferSize);
+
         return normalizedOut;
     }
 
+    /*
+     * Immutable set of tracks and their buses, replaced as a
+     * whole so the playback loop never sees a partial update.
+     */
+    private static class TrackSetup
+    {
+        final AudioMixerTrack[] tracks;
+        final AudioMixerBus[] trackBuses;
+        final AudioMixerBus[] buses;
+
+        TrackSetup(AudioMixerTrack[] tracks, AudioMixerBus[] trackBuses,
+                   AudioMixerBus[] buses)
+        {
+            this.tracks = tracks;
+            this.trackBuses = trackBuses;
+            this.buses = buses;
+        }
+    }
+
+    /*
+     * Opens the lines of all outputs, or none if one fails.
+     */
+    private synchronized void openOutputs() throws LineUnavailableException
+    {
+        try
+        {
+            for (AudioMixerOutput output : outputManager)
+            {
+                output.open();
+            }
+        }
+        catch (LineUnavailableException e)
+        {
+            for (AudioMixerOutput output : outputManager)
+            {
+                output.close();
+            }
+            throw e;
+        }
+        linesOpen = true;
+    }
+
+    /*
+     * Sound thread. Closes the lines of all outputs, including
+     * removed ones.
+     */
+    private synchronized void closeOutputs()
+    {
+        linesOpen = false;
+        for (AudioMixerOutput output : outputManager)
+        {
+            output.close();
+        }
+
+        AudioMixerOutput removed;
+        while ((removed = closingOutputs.poll()) != null)
+        {
+            removed.close();
+        }
+    }
+
+    /*
+     * A command in the stack of queued commands.
+     */
+    private static class QueuedCommand
+    {
+        final Runnable command;
+        QueuedCommand next;
+
+        QueuedCommand(Runnable command)
+        {
+            this.command = command;
+        }
+    }
+
     private class AudioMixerPlayer implements Runnable
     {
         private SourceDataLine sdl;
@@ -278,9 +1277,20 @@ public class AudioMixer
                                                         LineUnavailableException
         {
             audioBytes = new byte[sdlByteBufferSize];
+            readBuffer = new float[readBufferSize];
 
-            sdl = AudioCue.getSourceDataLine(mixer, AudioCue.info);
-            sdl.open(AudioCue.audioFormat, sdlByteBufferSize);
+            sdl = AudioCue.getSourceDataLine(mixer,
+                    new DataLine.Info(SourceDataLine.class, audioFormat));
+            sdl.open(audioFormat, sdlByteBufferSize);
+            try
+            {
+                openOutputs();
+            }
+            catch (LineUnavailableException e)
+            {
+                sdl.close();
+                throw e;
+            }
             sdl.start();
         }
 
@@ -289,30 +1299,20 @@ public class AudioMixer
         {
             while(running)
             {
-                if (trackCacheUpdated)
+                renderBuffer(readBuffer, audioBytes);
+                sdl.write(audioBytes, 0, sdlByteBufferSize);
+
+                AudioMixerOutput removed;
+                while ((removed = closingOutputs.poll()) != null)
                 {
-                    /*
-                     * Concurrency plan: Better to allow a late
-                     * or redundant update than to skip an update.
-                     * Example: flag = true, next line resets, but
-                     * updater sets true again prior to mixerTracks
-                     * assignment. We might load the same trackCache
-                     * twice. That is OK.
-                     */
-                    trackCacheUpdated = false;
-                    mixerTracks = trackCache;
-                    trackCount = mixerTracks.length;
+                    removed.close();
                 }
-                readBuffer = new float[readBufferSize];
-                readBuffer = fillBufferFromTracks(readBuffer);
-                audioBytes = AudioCue.fromBufferToAudioBytes(
-                        audioBytes, readBuffer);
-                sdl.write(audioBytes, 0, sdlByteBufferSize);
             }
 
             sdl.drain();
             sdl.close();
             sdl = null;
+            closeOutputs();
         }
     }
 }
\ No newline at end of file
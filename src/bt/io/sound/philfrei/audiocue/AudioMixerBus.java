@@ -0,0 +1,366 @@
+package bt.io.sound.philfrei.audiocue;
+
+/**
+ * A named group of tracks of an {@code AudioMixer}. The
+ * output of all tracks assigned to a bus is summed and
+ * measured separately before it is added to the master
+ * output of the mixer.
+ * <p>
+ * A bus can be ducked by another bus, its sidechain. An
+ * envelope follower on the mixer thread tracks the peak level
+ * of the sidechain, and while it exceeds the threshold the
+ * bus is attenuated like by a compressor with the given
+ * ratio. For example, music can dip automatically while
+ * dialogue plays. The sidechain level is taken before any
+ * ducking of the sidechain itself, so buses can duck each
+ * other in any order.
+ * <p>
+ * A bus can be routed to a further output device of the
+ * mixer instead of the master output, see
+ * {@code AudioMixer.setBusOutput}.
+ * <p>
+ * Buses are created and obtained via
+ * {@code AudioMixer.getBus}.
+ *
+ * @author &#8904
+ * @see AudioMixer#getBus(String)
+ */
+public class AudioMixerBus
+{
+    // frames per gain computation, the gain is ramped between
+    private static final int DUCK_BLOCK = 32;
+
+    private final String name;
+    private final LevelMeter levelMeter;
+    private final int channels;
+    private final float sampleRate;
+    private volatile Ducking ducking;
+    private volatile float duckingGain = 1;
+
+    // summing buffer, only accessed by the mixer thread
+    final float[] buffer;
+    // set by the AudioMixer, null for the master output
+    volatile AudioMixerOutput output;
+
+    // ducking state, only accessed by the mixer thread
+    private final float[] gains;
+    private float envelope;
+    private float blockGain = 1;
+    private boolean ducked;
+    // the settings last written to a journal
+    private Ducking journaled;
+    private boolean journalValid;
+    private boolean journaledRouted;
+    private boolean routeValid;
+
+    AudioMixerBus(String name, int readBufferSize, int channels,
+                  int meterWindowFrames, float sampleRate)
+    {
+        this.name = name;
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.buffer = new float[readBufferSize];
+        this.gains = new float[readBufferSize / channels];
+        this.levelMeter = new LevelMeter(channels, meterWindowFrames);
+    }
+
+    /**
+     * Returns the name of the bus.
+     *
+     * @return the name as a {@code String}
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the {@code LevelMeter} which measures the sum
+     * of all tracks of this bus.
+     *
+     * @return the {@code LevelMeter} of the bus
+     */
+    public LevelMeter getLevelMeter()
+    {
+        return levelMeter;
+    }
+
+    /**
+     * Returns the output device the bus is routed to.
+     *
+     * @return the {@code AudioMixerOutput}, or {@code null} if
+     * the bus is part of the master output
+     * @see AudioMixer#setBusOutput(String, AudioMixerOutput)
+     */
+    public AudioMixerOutput getOutput()
+    {
+        return output;
+    }
+
+    /**
+     * Makes this bus duck whenever the level of the sidechain
+     * bus exceeds the threshold. Above the threshold, every
+     * {@code ratio} dB the sidechain rises lower this bus by
+     * {@code ratio - 1} dB, e.g. a sidechain 6 dB over the
+     * threshold with a ratio of 4 lowers this bus by 4.5 dB.
+     * Replaces any previous ducking of this bus and takes
+     * effect with the next buffer.
+     *
+     * @param sidechain the bus whose level controls this bus,
+     * must belong to the same {@code AudioMixer}
+     * @param thresholdDb the sidechain peak level in dBFS at
+     * which ducking starts, e.g. -30
+     * @param ratio a {@code float} of at least 1, larger
+     * values duck harder
+     * @param attackMillis the time in milliseconds for the
+     * envelope to follow a rising sidechain level
+     * @param releaseMillis the time in milliseconds for the
+     * envelope to follow a falling sidechain level
+     * @throws IllegalArgumentException if the sidechain is this
+     * bus, the ratio is less than 1 or a time is negative
+     */
+    public void setDucking(AudioMixerBus sidechain, float thresholdDb,
+                           float ratio, float attackMillis,
+                           float releaseMillis)
+    {
+        if (sidechain == this)
+        {
+            throw new IllegalArgumentException(
+                    "A bus can not duck itself.");
+        }
+        if (!(ratio >= 1))
+        {
+            throw new IllegalArgumentException(
+                    "Ratio must be at least 1.");
+        }
+        if (!(attackMillis >= 0) || !(releaseMillis >= 0))
+        {
+            throw new IllegalArgumentException(
+                    "Attack and release must not be negative.");
+        }
+
+        ducking = new Ducking(sidechain, thresholdDb, ratio,
+                attackMillis, releaseMillis, coefficient(attackMillis),
+                coefficient(releaseMillis));
+    }
+
+    /**
+     * Removes the ducking of this bus. The bus returns to
+     * full level with the next buffer.
+     */
+    public void clearDucking()
+    {
+        ducking = null;
+    }
+
+    /**
+     * Returns the bus that ducks this bus.
+     *
+     * @return the sidechain bus or {@code null} if this bus
+     * is not ducked
+     */
+    public AudioMixerBus getDuckingSidechain()
+    {
+        Ducking d = ducking;
+        return d == null ? null : d.sidechain;
+    }
+
+    /**
+     * Returns the gain applied by ducking at the end of the
+     * most recently mixed buffer.
+     *
+     * @return a linear gain between 0 and 1, where 1 means
+     * the bus is not ducked
+     */
+    public float getDuckingGain()
+    {
+        return duckingGain;
+    }
+
+    /*
+     * One pole smoothing coefficient, reaching about 63% of
+     * a step within the given time.
+     */
+    private float coefficient(float millis)
+    {
+        float frames = millis * sampleRate / 1000;
+        return frames < 1 ? 1 : (float)(1 - Math.exp(-1 / frames));
+    }
+
+    /*
+     * Mixer thread. Computes the gain of every frame of the
+     * current buffer from the sidechain buffer. Must be called
+     * for all buses before any is ducked by applyDucking,
+     * so the sidechain is read before it is ducked itself.
+     * Changed settings are written to the journal, if one is
+     * recorded.
+     */
+    void computeDucking(int frames, AudioJournal recording)
+    {
+        Ducking d = ducking;
+        ducked = d != null;
+        if (recording != null && (d != journaled || !journalValid))
+        {
+            journalDucking(recording, d);
+        }
+        if (d == null)
+        {
+            envelope = 0;
+            blockGain = 1;
+            duckingGain = 1;
+            return;
+        }
+
+        float[] side = d.sidechain.buffer;
+        int sideChannels = d.sidechain.channels;
+        float env = envelope;
+        float from = blockGain;
+
+        for (int start = 0; start < frames; start += DUCK_BLOCK)
+        {
+            int end = Math.min(frames, start + DUCK_BLOCK);
+
+            for (int f = start; f < end; f++)
+            {
+                float level = 0;
+                for (int c = 0, i = f * sideChannels; c < sideChannels; c++, i++)
+                {
+                    level = Math.max(level, Math.abs(side[i]));
+                }
+                env += (level > env ? d.attack : d.release) * (level - env);
+            }
+            // keep the decaying envelope out of the denormal range
+            env = env < 1e-10f ? 0 : env;
+
+            float to = 1;
+            float over = env > 0
+                    ? (float)(20 * Math.log10(env)) - d.thresholdDb : 0;
+            if (over > 0)
+            {
+                to = (float)Math.pow(10, -over * d.slope / 20);
+            }
+
+            float step = (to - from) / (end - start);
+            for (int f = start; f < end; f++)
+            {
+                from += step;
+                gains[f] = from;
+            }
+            from = to;
+        }
+
+        envelope = env;
+        blockGain = from;
+        duckingGain = from;
+    }
+
+    private void journalDucking(AudioJournal recording, Ducking d)
+    {
+        journaled = d;
+        journalValid = true;
+
+        recording.event(AudioJournal.DUCK, -1, -1);
+        recording.putString(name);
+        if (d == null)
+        {
+            recording.putVarint(0);
+        }
+        else
+        {
+            recording.putVarint(1);
+            recording.putString(d.sidechain.name);
+            recording.putFloat(d.thresholdDb);
+            recording.putFloat(d.ratio);
+            recording.putFloat(d.attackMillis);
+            recording.putFloat(d.releaseMillis);
+        }
+    }
+
+    /*
+     * Makes the next buffer write the current settings to a
+     * journal that starts being recorded.
+     */
+    void resetJournal()
+    {
+        journalValid = false;
+        routeValid = false;
+    }
+
+    /*
+     * Mixer thread. Returns the output the bus is summed into
+     * for the current buffer, or null for the master output.
+     * Whether the bus leaves the master output is written to
+     * the journal when it changes, if one is recorded.
+     */
+    AudioMixerOutput route(AudioJournal recording)
+    {
+        AudioMixerOutput out = output;
+        if (out != null && out.removed)
+        {
+            out = null;
+        }
+
+        boolean routed = out != null;
+        if (recording != null && (routed != journaledRouted || !routeValid))
+        {
+            journaledRouted = routed;
+            routeValid = true;
+            recording.event(AudioJournal.ROUTE, -1, -1);
+            recording.putString(name);
+            recording.putVarint(routed ? 1 : 0);
+        }
+
+        return out;
+    }
+
+    /*
+     * Mixer thread. Applies the gains of computeDucking, if
+     * the bus was ducked when they were computed.
+     */
+    void applyDucking(int frames)
+    {
+        if (!ducked)
+        {
+            return;
+        }
+
+        for (int f = 0, i = 0; f < frames; f++)
+        {
+            float g = gains[f];
+            for (int c = 0; c < channels; c++, i++)
+            {
+                buffer[i] *= g;
+            }
+        }
+    }
+
+    /*
+     * Immutable ducking settings, replaced as a whole.
+     */
+    private static class Ducking
+    {
+        final AudioMixerBus sidechain;
+        final float thresholdDb;
+        final float ratio;
+        final float attackMillis;
+        final float releaseMillis;
+        // attenuation in dB per dB over the threshold
+        final float slope;
+        final float attack;
+        final float release;
+
+        Ducking(AudioMixerBus sidechain, float thresholdDb, float ratio,
+                float attackMillis, float releaseMillis, float attack,
+                float release)
+        {
+            this.sidechain = sidechain;
+            this.thresholdDb = thresholdDb;
+            this.ratio = ratio;
+            this.attackMillis = attackMillis;
+            this.releaseMillis = releaseMillis;
+            this.slope = 1 - 1 / ratio;
+            this.attack = attack;
+            this.release = release;
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.util.Arrays;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.Mixer;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * An additional output device of an {@code AudioMixer}, e.g.
+ * a headset for voice chat and interface sounds while music
+ * plays through the speakers. Buses routed to an output via
+ * {@code AudioMixer.setBusOutput} are summed into it instead
+ * of the master output.
+ * <p>
+ * All outputs are rendered by the thread of the mixer,
+ * together with the master output, so no thread is added per
+ * device. The mixer thread is paced by the line of the mixer
+ * itself and never waits for an output: each output writes
+ * only as much as its line can take, and has a line buffer of
+ * its own of {@code LINE_BUFFERS} mixer buffers.
+ * <p>
+ * The clocks of two devices never run at exactly the same
+ * rate, so an output would slowly run dry or overflow. To
+ * keep it in step with the mixer, the output is resampled
+ * with a ratio that follows the fill level of its line: if
+ * the line holds less than {@code TARGET_BUFFERS} mixer
+ * buffers, slightly more frames are written per buffer, and
+ * vice versa. The ratio changes slowly and stays within
+ * {@code MAX_CORRECTION}, which is far below an audible
+ * change of pitch.
+ * <p>
+ * Outputs are created via {@code AudioMixer.addOutput}. The
+ * line of an output is open while the mixer runs.
+ *
+ * @author &#8904
+ * @see AudioMixer#addOutput(Mixer)
+ * @see AudioMixer#setBusOutput(String, AudioMixerOutput)
+ */
+public class AudioMixerOutput
+{
+    /**
+     * The size of the line buffer, in mixer buffers.
+     */
+    public static final int LINE_BUFFERS = 4;
+
+    /**
+     * The fill level of the line that the drift compensation
+     * keeps, in mixer buffers.
+     */
+    public static final int TARGET_BUFFERS = 2;
+
+    /**
+     * The largest relative change of the rate by the drift
+     * compensation, 0.5 %.
+     */
+    public static final float MAX_CORRECTION = 0.005f;
+
+    // per buffer, weight of a new fill measurement, and gains
+    // of the controller per relative fill error
+    private static final float FILL_SMOOTHING = 0.02f;
+    private static final float PROPORTIONAL = 0.01f;
+    private static final float INTEGRAL = 0.00002f;
+
+    private final AudioMixer audioMixer;
+    private final Mixer device;
+    private final LevelMeter levelMeter;
+    private final PcmConverter converter;
+    private final int channels;
+    private final int frameBytes;
+    private final int bufferFrames;
+
+    // summing buffer, only accessed by the mixer thread
+    final float[] buffer;
+    // set when the output is removed from the mixer
+    volatile boolean removed;
+
+    // resampler and line, only accessed by the mixer thread
+    // once the line is open
+    private final float[] resampled;
+    private final float[] previous;
+    private final byte[] audioBytes;
+    private double phase;
+    private volatile SourceDataLine sdl;
+    private int lineFrames;
+    private float smoothedFill;
+    private float integral;
+
+    private volatile float ratio = 1;
+    private volatile long droppedFrames;
+    private volatile long underruns;
+
+    AudioMixerOutput(AudioMixer audioMixer, Mixer device)
+    {
+        this.audioMixer = audioMixer;
+        this.device = device;
+
+        AudioFormat format = audioMixer.getAudioFormat();
+        this.channels = format.getChannels();
+        this.frameBytes = format.getFrameSize();
+        this.bufferFrames = audioMixer.bufferSize;
+        this.converter = new PcmConverter(format.getSampleSizeInBits(),
+                channels, PcmConverter.Dither.NONE);
+        this.levelMeter = new LevelMeter(channels,
+                AudioMixer.DEFAULT_METER_WINDOW);
+
+        int maxFrames = (int)Math.ceil(bufferFrames * (1 + MAX_CORRECTION)) + 3;
+        this.buffer = new float[bufferFrames * channels];
+        this.resampled = new float[maxFrames * channels];
+        this.previous = new float[channels];
+        this.audioBytes = new byte[maxFrames * frameBytes];
+    }
+
+    /**
+     * Returns the device the output writes to.
+     *
+     * @return the {@code javax.sound.sampled.Mixer}, or
+     * {@code null} for the default device
+     */
+    public Mixer getDevice()
+    {
+        return device;
+    }
+
+    /**
+     * Returns the {@code AudioMixer} the output belongs to.
+     *
+     * @return the {@code AudioMixer}
+     */
+    public AudioMixer getAudioMixer()
+    {
+        return audioMixer;
+    }
+
+    /**
+     * Returns the {@code LevelMeter} which measures the sum
+     * of all buses routed to this output.
+     *
+     * @return the {@code LevelMeter} of the output
+     */
+    public LevelMeter getLevelMeter()
+    {
+        return levelMeter;
+    }
+
+    /**
+     * Returns the current ratio of frames written to the
+     * device per frame rendered by the mixer. It deviates from
+     * 1 by the drift between the clocks of the two devices.
+     *
+     * @return the resampling ratio
+     */
+    public float getRatio()
+    {
+        return ratio;
+    }
+
+    /**
+     * Returns the number of frames that did not fit into the
+     * line and were dropped, which happens if the device runs
+     * slower than the drift compensation can follow.
+     *
+     * @return the count of dropped frames
+     */
+    public long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of buffers before which the line had
+     * run dry, which is heard as a gap.
+     *
+     * @return the count of underruns
+     */
+    public long getUnderruns()
+    {
+        return underruns;
+    }
+
+    /**
+     * Returns {@code true} while the line of the output is
+     * open.
+     *
+     * @return {@code true} if the output plays
+     */
+    public boolean isOpen()
+    {
+        return sdl != null;
+    }
+
+    /*
+     * Opens the line and fills it with silence up to the
+     * target, so the device does not run dry while the rate
+     * settles.
+     */
+    void open() throws LineUnavailableException
+    {
+        AudioFormat format = audioMixer.getAudioFormat();
+        SourceDataLine line = AudioCue.getSourceDataLine(device,
+                new DataLine.Info(SourceDataLine.class, format));
+        line.open(format, bufferFrames * LINE_BUFFERS * frameBytes);
+
+        lineFrames = line.getBufferSize() / frameBytes;
+        int target = targetFrames();
+        line.write(new byte[target * frameBytes], 0, target * frameBytes);
+        line.start();
+
+        phase = 0;
+        smoothedFill = target;
+        integral = 0;
+        ratio = 1;
+        Arrays.fill(previous, 0);
+        sdl = line;
+    }
+
+    void close()
+    {
+        if (sdl != null)
+        {
+            sdl.stop();
+            sdl.close();
+            sdl = null;
+        }
+    }
+
+    private int targetFrames()
+    {
+        return Math.min(bufferFrames * TARGET_BUFFERS, lineFrames / 2);
+    }
+
+    /*
+     * Mixer thread. Meters the summed buses, resamples them at
+     * the drift compensating ratio and writes the result to
+     * the line, without waiting.
+     */
+    void render(PcmConverter.Dither dither)
+    {
+        int length = buffer.length;
+        PcmConverter.flushDenormals(buffer, length);
+        levelMeter.process(buffer, length);
+
+        SourceDataLine line = sdl;
+        if (line == null)
+        {
+            return;
+        }
+
+        if (converter.getDither() != dither)
+        {
+            converter.setDither(dither);
+        }
+
+        updateRatio(lineFrames - line.available() / frameBytes);
+        int frames = resample(ratio);
+        converter.convert(resampled, frames * channels, audioBytes);
+
+        int written = Math.min(frames, line.available() / frameBytes);
+        if (written < frames)
+        {
+            droppedFrames += frames - written;
+        }
+        line.write(audioBytes, 0, written * frameBytes);
+    }
+
+    /*
+     * Adjusts the ratio to the number of frames in the line,
+     * measured before the current buffer is written.
+     */
+    void updateRatio(int fill)
+    {
+        if (fill <= 0)
+        {
+            underruns++;
+        }
+
+        float target = targetFrames();
+        smoothedFill += (fill - smoothedFill) * FILL_SMOOTHING;
+        float error = (target - smoothedFill) / target;
+
+        integral = clamp(integral + INTEGRAL * error);
+        ratio = 1 + clamp(PROPORTIONAL * error + integral);
+    }
+
+    private static float clamp(float correction)
+    {
+        return Math.max(-MAX_CORRECTION, Math.min(MAX_CORRECTION, correction));
+    }
+
+    /*
+     * Resamples the buffer with linear interpolation, writing
+     * ratio times as many frames. The last frame of the
+     * previous buffer is kept, so the interpolation continues
+     * across buffers. Returns the number of frames written.
+     */
+    int resample(float ratio)
+    {
+        double step = 1.0 / ratio;
+        int last = bufferFrames - 1;
+        // position in the buffer, -1 is the previous frame
+        double pos = phase - 1;
+        int frames = 0;
+
+        while (pos < last)
+        {
+            int index = (int)Math.floor(pos);
+            float frac = (float)(pos - index);
+            int from = index * channels;
+            int to = from + channels;
+            int out = frames * channels;
+
+            for (int c = 0; c < channels; c++)
+            {
+                float a = index < 0 ? previous[c] : buffer[from + c];
+                float b = buffer[to + c];
+                resampled[out + c] = a + (b - a) * frac;
+            }
+
+            frames++;
+            pos += step;
+        }
+
+        phase = pos - last;
+        System.arraycopy(buffer, last * channels, previous, 0, channels);
+
+        return frames;
+    }
+}
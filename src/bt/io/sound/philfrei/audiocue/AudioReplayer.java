@@ -0,0 +1,533 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import javax.sound.sampled.LineUnavailableException;
+
+/**
+ * An {@code AudioReplayer} renders the output recorded in an
+ * {@code AudioJournal} again, without an output line and as
+ * fast as possible. The recorded commands are applied to fresh
+ * {@code AudioCue}s before the same buffers as during the
+ * recording, and every rendered buffer is compared to the
+ * checksum of the recorded one, so a replay either reproduces
+ * the recording bit for bit or reports the first buffer that
+ * differs.
+ * <p>
+ * The {@code AudioCue}s are supplied by a loader, which is
+ * given the name of each recorded cue and has to return a new,
+ * unopened cue with the same audio data and the same settings
+ * that are not recorded, such as the {@code PanType}, the
+ * {@code VoiceStealing} policy, the polyphony and the voice
+ * limits. Values computed by {@code AudioCueSpatializer}s are
+ * taken from the journal, so the spatializers themselves are
+ * not needed.
+ * <p>
+ * A replay can differ from the recording if tracks that are
+ * not {@code AudioCue}s were part of the mix.
+ *
+ * @author &#8904
+ * @see AudioMixer#startRecording(AudioJournal)
+ */
+public class AudioReplayer
+{
+    private final Path path;
+    private final Function<String, AudioCue> cueLoader;
+    private final AudioMixer mixer;
+    private final long seed;
+    private final PcmConverter.Dither dither;
+    private final Map<Integer, AudioCue> cues = new HashMap<>();
+    private final Map<Long, ReplaySpatializer> spatializers =
+            new HashMap<>();
+    private final List<Record> pending = new ArrayList<>();
+    private long renderedBuffers;
+    // stands in for the devices buses were routed to
+    private AudioMixerOutput routed;
+    private long stamp;
+
+    /**
+     * Reads the header of a journal and creates an offline
+     * {@code AudioMixer} with the recorded format.
+     *
+     * @param journal the journal file
+     * @param cueLoader returns a new, unopened {@code AudioCue}
+     * for the recorded name of a cue
+     * @throws IOException if the file can not be read or is
+     * not a journal
+     */
+    public AudioReplayer(Path journal, Function<String, AudioCue> cueLoader)
+            throws IOException
+    {
+        this.path = journal;
+        this.cueLoader = cueLoader;
+
+        try (DataInputStream in = open())
+        {
+            if (in.readInt() != AudioJournal.MAGIC
+                    || readVarint(in) != AudioJournal.VERSION)
+            {
+                throw new IOException(journal
+                        + " is not a supported audio journal.");
+            }
+
+            float sampleRate = in.readFloat();
+            ChannelLayout layout = ChannelLayout.values()[(int)readVarint(in)];
+            int bits = (int)readVarint(in);
+            int bufferSize = (int)readVarint(in);
+            this.seed = in.readLong();
+            this.dither = PcmConverter.Dither.values()[(int)readVarint(in)];
+
+            this.mixer = new AudioMixer(null, bufferSize, 10, sampleRate,
+                    layout, bits);
+            this.mixer.replaying = true;
+        }
+    }
+
+    /**
+     * Returns the offline mixer that renders the replay, e.g.
+     * to read its {@code LevelMeter}s.
+     *
+     * @return the {@code AudioMixer} of the replay
+     */
+    public AudioMixer getMixer()
+    {
+        return mixer;
+    }
+
+    /**
+     * Renders all recorded buffers and compares each to its
+     * recorded checksum. The replay continues after a
+     * mismatch, so the output can be inspected as a whole.
+     *
+     * @param out receives the rendered PCM data in the format
+     * of {@code getMixer().getAudioFormat()}, or {@code null}
+     * @return the number of the first buffer that differs from
+     * the recording, or -1 if all buffers are identical
+     * @throws IOException if the journal can not be read or
+     * the output can not be written
+     */
+    public long replay(OutputStream out) throws IOException
+    {
+        mixer.setDitherSeed(seed);
+        mixer.setDither(dither);
+
+        byte[] audioBytes = new byte[mixer.sdlByteBufferSize];
+        CRC32 checksum = new CRC32();
+        long mismatch = -1;
+
+        try (DataInputStream in = open())
+        {
+            // the header was read by the constructor
+            in.readInt();
+            readVarint(in);
+            in.readFloat();
+            for (int i = 0; i < 3; i++)
+            {
+                readVarint(in);
+            }
+            in.readLong();
+            readVarint(in);
+
+            while (true)
+            {
+                Record record = read(in);
+                if (record == null || record.type == AudioJournal.END)
+                {
+                    break;
+                }
+
+                if (record.type == AudioJournal.CUE)
+                {
+                    openCue(record);
+                }
+                else if (record.type == AudioJournal.CHECK)
+                {
+                    apply(record.stamp);
+                    mixer.renderOffline(audioBytes);
+                    renderedBuffers++;
+
+                    checksum.reset();
+                    checksum.update(audioBytes, 0, audioBytes.length);
+                    if ((int)checksum.getValue() != record.check
+                            && mismatch < 0)
+                    {
+                        mismatch = record.stamp;
+                    }
+                    if (out != null)
+                    {
+                        out.write(audioBytes);
+                    }
+                }
+                else
+                {
+                    pending.add(record);
+                }
+            }
+        }
+
+        return mismatch;
+    }
+
+    /**
+     * Returns the number of buffers rendered by the replay.
+     *
+     * @return the buffer count
+     */
+    public long getRenderedBuffers()
+    {
+        return renderedBuffers;
+    }
+
+    private DataInputStream open() throws IOException
+    {
+        return new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path), 64 * 1024));
+    }
+
+    private void openCue(Record record)
+    {
+        AudioCue cue = cueLoader.apply(record.text);
+        if (cue == null)
+        {
+            throw new IllegalStateException("No AudioCue for "
+                    + record.text);
+        }
+        cue.open(mixer);
+        cue.setVariationSeed(record.seed);
+        cues.put(record.cue, cue);
+    }
+
+    /*
+     * Applies all pending records that took effect before the
+     * given buffer, in the order they were recorded.
+     */
+    private void apply(long buffer)
+    {
+        int kept = 0;
+        for (int i = 0; i < pending.size(); i++)
+        {
+            Record record = pending.get(i);
+            if (record.stamp <= buffer)
+            {
+                apply(record);
+            }
+            else
+            {
+                pending.set(kept++, record);
+            }
+        }
+        pending.subList(kept, pending.size()).clear();
+    }
+
+    /*
+     * The output of the offline mixer that takes the buses
+     * routed to other devices, its line is never opened.
+     */
+    private AudioMixerOutput routed()
+    {
+        if (routed == null)
+        {
+            try
+            {
+                routed = mixer.addOutput(null);
+            }
+            catch (LineUnavailableException e)
+            {
+                // the mixer is never started
+                throw new IllegalStateException(e);
+            }
+        }
+        return routed;
+    }
+
+    private void apply(Record r)
+    {
+        AudioCue cue = cues.get(r.cue);
+        switch (r.type)
+        {
+            case AudioJournal.SETUP:
+                loadSetup(r);
+                break;
+            case AudioJournal.DUCK:
+                AudioMixerBus bus = mixer.getBus(r.text);
+                if (r.sidechain == null)
+                {
+                    bus.clearDucking();
+                }
+                else
+                {
+                    bus.setDucking(mixer.getBus(r.sidechain), r.values[0],
+                            r.values[1], r.values[2], r.values[3]);
+                }
+                break;
+            case AudioJournal.ROUTE:
+                mixer.setBusOutput(r.text, r.value != 0 ? routed() : null);
+                break;
+            case AudioJournal.DITHER:
+                mixer.setDither(PcmConverter.Dither.values()[(int)r.value]);
+                break;
+            case AudioJournal.SPATIAL:
+                ReplaySpatializer spatializer =
+                        spatializers.get(key(r.cue, r.hook));
+                if (spatializer != null)
+                {
+                    spatializer.gain = r.values[0];
+                    spatializer.pan = r.values[1];
+                }
+                break;
+            case AudioJournal.OBTAIN:
+                cue.obtainInstanceAt(r.hook, (int)r.value);
+                break;
+            case AudioJournal.STEAL:
+                cue.stealInstanceAt(r.hook);
+                break;
+            case AudioJournal.RELEASE:
+                cue.releaseInstance(r.hook);
+                break;
+            case AudioJournal.START:
+                cue.startAt(r.hook);
+                break;
+            case AudioJournal.STOP:
+                cue.stopAt(r.hook);
+                break;
+            case AudioJournal.POSITION:
+                cue.setPositionAt(r.hook, (float)r.value);
+                break;
+            case AudioJournal.VOLUME:
+                cue.setVolumeAt(r.hook, r.value);
+                break;
+            case AudioJournal.PAN:
+                cue.setPanAt(r.hook, r.value);
+                break;
+            case AudioJournal.SPEED:
+                cue.setSpeedAt(r.hook, r.value);
+                break;
+            case AudioJournal.TEMPO:
+                cue.setTempoAt(r.hook, r.value);
+                break;
+            case AudioJournal.LOOP:
+                cue.setLoopingAt(r.hook, (int)r.value);
+                break;
+            case AudioJournal.RECYCLE:
+                cue.setRecycleWhenDoneAt(r.hook, r.value != 0);
+                break;
+            case AudioJournal.PRIORITY:
+                cue.setPriorityAt(r.hook, (int)r.value);
+                break;
+            case AudioJournal.SPATIALIZER:
+                ReplaySpatializer replayed = null;
+                if (r.value != 0)
+                {
+                    replayed = spatializers.computeIfAbsent(
+                            key(r.cue, r.hook), k -> new ReplaySpatializer());
+                }
+                cue.setSpatializerAt(r.hook, replayed);
+                break;
+            case AudioJournal.CUE_VOLUME:
+                cue.setCueVolume(r.value);
+                break;
+            case AudioJournal.NORMALIZATION:
+                cue.setNormalizationGain(r.value);
+                break;
+            case AudioJournal.REGION:
+                cue.setRegionAt(r.hook, r.value, r.second);
+                break;
+            case AudioJournal.VARIATION:
+                cue.setStartVariation(r.value, r.second);
+                break;
+            default:
+                throw new IllegalStateException(
+                        "Unknown journal record " + r.type);
+        }
+    }
+
+    private void loadSetup(Record r)
+    {
+        AudioMixerBus[] buses = new AudioMixerBus[r.names.length];
+        for (int i = 0; i < buses.length; i++)
+        {
+            buses[i] = mixer.getBus(r.names[i]);
+        }
+
+        List<AudioMixerTrack> tracks = new ArrayList<>();
+        List<AudioMixerBus> trackBuses = new ArrayList<>();
+        for (int n = 0; n < r.tracks.length; n += 2)
+        {
+            AudioCue cue = cues.get(r.tracks[n]);
+            // tracks that are not cues can not be replayed
+            if (cue != null)
+            {
+                tracks.add(cue);
+                trackBuses.add(r.tracks[n + 1] < 0 ? null
+                        : buses[r.tracks[n + 1]]);
+            }
+        }
+
+        mixer.loadSetup(tracks.toArray(new AudioMixerTrack[0]),
+                trackBuses.toArray(new AudioMixerBus[0]), buses);
+    }
+
+    private static long key(int cue, int hook)
+    {
+        return ((long)cue << 32) | (hook & 0xFFFFFFFFL);
+    }
+
+    /*
+     * Reads the next record, or returns null at the end of a
+     * journal that was not closed properly.
+     */
+    private Record read(DataInputStream in) throws IOException
+    {
+        Record r = new Record();
+        try
+        {
+            long zigzag = readVarint(in);
+            stamp += (zigzag >>> 1) ^ -(zigzag & 1);
+            r.stamp = stamp;
+            r.type = in.readUnsignedByte();
+            r.cue = (int)readVarint(in) - 1;
+            r.hook = (int)readVarint(in) - 1;
+
+            switch (r.type)
+            {
+                case AudioJournal.END:
+                case AudioJournal.STEAL:
+                case AudioJournal.RELEASE:
+                case AudioJournal.START:
+                case AudioJournal.STOP:
+                    break;
+                case AudioJournal.CUE:
+                    r.text = readString(in);
+                    readVarint(in);
+                    r.seed = in.readInt();
+                    break;
+                case AudioJournal.SETUP:
+                    r.names = new String[(int)readVarint(in)];
+                    for (int i = 0; i < r.names.length; i++)
+                    {
+                        r.names[i] = readString(in);
+                    }
+                    r.tracks = new int[(int)readVarint(in) * 2];
+                    for (int i = 0; i < r.tracks.length; i++)
+                    {
+                        r.tracks[i] = readSigned(in);
+                    }
+                    break;
+                case AudioJournal.DUCK:
+                    r.text = readString(in);
+                    if (readVarint(in) != 0)
+                    {
+                        r.sidechain = readString(in);
+                        r.values = new float[4];
+                        for (int i = 0; i < 4; i++)
+                        {
+                            r.values[i] = in.readFloat();
+                        }
+                    }
+                    break;
+                case AudioJournal.ROUTE:
+                    r.text = readString(in);
+                    r.value = readVarint(in);
+                    break;
+                case AudioJournal.DITHER:
+                    r.value = readVarint(in);
+                    break;
+                case AudioJournal.CHECK:
+                    r.check = in.readInt();
+                    break;
+                case AudioJournal.SPATIAL:
+                    r.values = new float[] { in.readFloat(), in.readFloat() };
+                    break;
+                case AudioJournal.REGION:
+                case AudioJournal.VARIATION:
+                    r.value = in.readDouble();
+                    r.second = in.readDouble();
+                    break;
+                default:
+                    r.value = in.readDouble();
+                    break;
+            }
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+        return r;
+    }
+
+    private static long readVarint(DataInputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; ; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+    }
+
+    private static int readSigned(DataInputStream in) throws IOException
+    {
+        int zigzag = (int)readVarint(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[(int)readVarint(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * A decoded record, only the fields of its type are set.
+     */
+    private static class Record
+    {
+        long stamp;
+        int type;
+        int cue;
+        int hook;
+        double value;
+        double second;
+        int check;
+        int seed;
+        float[] values;
+        String text;
+        String sidechain;
+        String[] names;
+        int[] tracks;
+    }
+
+    /*
+     * Returns the recorded values of a spatializer.
+     */
+    private static class ReplaySpatializer implements AudioCueSpatializer
+    {
+        float gain = 1;
+        float pan;
+
+        @Override
+        public void computeGainPan(float[] gainPan)
+        {
+            gainPan[0] = gain;
+            gainPan[1] = pan;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package bt.io.sound.philfrei.audiocue;
+
+/**
+ * The {@code enum ChannelLayout} lists the speaker
+ * configurations an {@code AudioMixer} can output. Channels
+ * are interleaved in the order used by WAVE files, e.g.
+ * front left, front right, center, LFE, back left, back right
+ * for 5.1.
+ * <p>
+ * Instances of an {@code AudioCue} played through a mixer with
+ * a layout other than {@code STEREO} are mixed down to mono
+ * and panned between adjacent pairs of the front speakers,
+ * ordered from left to right, using the {@code PanType} of the
+ * cue. A pan of -1 is the leftmost and 1 the rightmost front
+ * speaker.
+ * <p>
+ * Panning has a single left to right axis, there is no front
+ * to back axis. The back and side speakers of {@code QUAD},
+ * {@code SURROUND_5_1} and {@code SURROUND_7_1}, as well as
+ * the LFE channel, receive no signal from an {@code AudioCue}.
+ * Tracks that write the layout themselves can use all
+ * channels.
+ *
+ * @author &#8904
+ * @see AudioMixer
+ * @see AudioCue.PanType
+ */
+public enum ChannelLayout
+{
+    /**
+     * A single channel.
+     */
+    MONO(new int[] { 0 }, 0, 0, 1),
+    /**
+     * Front left and front right. Instances keep their
+     * stereo image and are panned exactly as when the
+     * {@code AudioCue} plays on its own line.
+     */
+    STEREO(new int[] { 0, 1 }, 0, 1, 2),
+    /**
+     * Front left, front right, back left, back right.
+     * Instances are only panned between the front speakers.
+     */
+    QUAD(new int[] { 0, 1 }, 0, 1, 4),
+    /**
+     * Front left, front right, center, LFE, back left,
+     * back right. Instances are only panned across the front
+     * speakers.
+     */
+    SURROUND_5_1(new int[] { 0, 2, 1 }, 0, 1, 6),
+    /**
+     * Front left, front right, center, LFE, back left,
+     * back right, side left, side right. Instances are only
+     * panned across the front speakers.
+     */
+    SURROUND_7_1(new int[] { 0, 2, 1 }, 0, 1, 8);
+
+    /**
+     * The highest number of channels of any layout.
+     */
+    public static final int MAX_CHANNELS = 8;
+
+    final int[] frontChannels;
+    final int frontLeft;
+    final int frontRight;
+    private final int channels;
+
+    ChannelLayout(int[] frontChannels, int frontLeft, int frontRight,
+                  int channels)
+    {
+        this.frontChannels = frontChannels;
+        this.frontLeft = frontLeft;
+        this.frontRight = frontRight;
+        this.channels = channels;
+    }
+
+    /**
+     * Returns the number of interleaved channels per frame.
+     *
+     * @return the channel count
+     */
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    /**
+     * Adds a stereo frame to a frame of this layout. Left and
+     * right are routed to the front left and front right
+     * speakers, or averaged for {@code MONO}.
+     *
+     * @param left the left sample
+     * @param right the right sample
+     * @param frame the interleaved buffer of this layout
+     * @param offset the index of the first sample of the frame
+     */
+    public void addStereoFrame(float left, float right,
+                               float[] frame, int offset)
+    {
+        if (this == MONO)
+        {
+            frame[offset] += (left + right) * 0.5f;
+        }
+        else
+        {
+            frame[offset + frontLeft] += left;
+            frame[offset + frontRight] += right;
+        }
+    }
+}
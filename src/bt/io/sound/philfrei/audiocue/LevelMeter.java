@@ -0,0 +1,322 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * A {@code LevelMeter} measures peak and RMS levels and counts
+ * clipped samples of the audio data that passes through a
+ * point of the mix, for example the output of an
+ * {@code AudioCue}, a bus of an {@code AudioMixer} or the
+ * master output.
+ * <p>
+ * The audio thread accumulates values over a window of a
+ * configurable number of frames. At the end of each window the
+ * results are published without locking, and can be read from
+ * any thread at any time. A reading obtained via
+ * {@code read} is always consistent, i.e. all values belong to
+ * the same window.
+ * <p>
+ * Levels are linear amplitudes, where 1 corresponds to full
+ * scale. A sample counts as clipped if its magnitude exceeds
+ * 1 before the output is limited.
+ *
+ * @author &#8904
+ */
+public class LevelMeter
+{
+    private final int channels;
+    private volatile int windowFrames;
+
+    // accumulators, only accessed by the audio thread
+    private final float[] peakAcc;
+    private final double[] squareAcc;
+    private int framesAcc;
+    private int clipsAcc;
+    // the length of the current window, latched when it starts
+    private int window;
+
+    // published values, guarded by the seqlock version
+    private volatile int version;
+    private final float[] peak;
+    private final float[] rms;
+    private int clips;
+    private long totalClips;
+    private long windows;
+
+    /**
+     * Constructor for a {@code LevelMeter}.
+     *
+     * @param channels the number of interleaved channels
+     * of the measured data
+     * @param windowFrames the number of frames that are
+     * measured before the values are published
+     */
+    public LevelMeter(int channels, int windowFrames)
+    {
+        this.channels = channels;
+        this.peakAcc = new float[channels];
+        this.squareAcc = new double[channels];
+        this.peak = new float[channels];
+        this.rms = new float[channels];
+        setWindowFrames(windowFrames);
+    }
+
+    /**
+     * Sets the number of frames over which peak, RMS and
+     * clip count are measured. The new value takes effect
+     * after the current window.
+     *
+     * @param windowFrames an {@code int} greater than 0
+     */
+    public void setWindowFrames(int windowFrames)
+    {
+        if (windowFrames <= 0)
+        {
+            throw new IllegalArgumentException(
+                    "Window must contain at least one frame.");
+        }
+        this.windowFrames = windowFrames;
+    }
+
+    /**
+     * Returns the number of frames over which the values
+     * are measured.
+     *
+     * @return the window length in frames
+     */
+    public int getWindowFrames()
+    {
+        return windowFrames;
+    }
+
+    /**
+     * Returns the number of interleaved channels measured.
+     *
+     * @return the channel count
+     */
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    /**
+     * AudioThread code. Measures a buffer of interleaved
+     * samples.
+     *
+     * @param buffer the samples
+     * @param length the number of samples (not frames) of
+     * the buffer to measure
+     */
+    public void process(float[] buffer, int length)
+    {
+        int i = 0;
+
+        while (i < length)
+        {
+            if (framesAcc == 0)
+            {
+                window = windowFrames;
+            }
+
+            int frames = Math.min(window - framesAcc,
+                                  (length - i) / channels);
+
+            for (int c = 0; c < channels; c++)
+            {
+                float p = peakAcc[c];
+                double sum = 0;
+                int clipped = 0;
+
+                for (int j = i + c, end = i + frames * channels;
+                     j < end; j += channels)
+                {
+                    float x = Math.abs(buffer[j]);
+                    if (x > p) p = x;
+                    if (x > 1) clipped++;
+                    sum += x * x;
+                }
+
+                peakAcc[c] = p;
+                squareAcc[c] += sum;
+                clipsAcc += clipped;
+            }
+
+            framesAcc += frames;
+            i += frames * channels;
+
+            if (framesAcc >= window)
+            {
+                publish();
+            }
+
+            if (frames == 0) break;
+        }
+    }
+
+    private void publish()
+    {
+        version++;
+        VarHandle.storeStoreFence();
+
+        for (int c = 0; c < channels; c++)
+        {
+            peak[c] = peakAcc[c];
+            rms[c] = (float)Math.sqrt(squareAcc[c] / framesAcc);
+            peakAcc[c] = 0;
+            squareAcc[c] = 0;
+        }
+        clips = clipsAcc;
+        totalClips += clipsAcc;
+        windows++;
+
+        version++;
+
+        clipsAcc = 0;
+        framesAcc = 0;
+    }
+
+    /**
+     * Copies a consistent reading of the last completed
+     * window into the given arrays. Each array must have at
+     * least one element per channel, or be {@code null} if
+     * the values are not needed.
+     *
+     * @param peaks receives the peak level per channel
+     * @param rmsLevels receives the RMS level per channel
+     * @return the number of clipped samples in the window
+     */
+    public int read(float[] peaks, float[] rmsLevels)
+    {
+        int v;
+        int clipCount;
+
+        do
+        {
+            v = version;
+            for (int c = 0; c < channels; c++)
+            {
+                if (peaks != null) peaks[c] = peak[c];
+                if (rmsLevels != null) rmsLevels[c] = rms[c];
+            }
+            clipCount = clips;
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != version);
+
+        return clipCount;
+    }
+
+    /**
+     * Returns the peak level of the given channel in the
+     * last completed window.
+     *
+     * @param channel the zero-based channel index
+     * @return the peak as a linear amplitude
+     */
+    public float getPeak(int channel)
+    {
+        float value;
+        int v;
+
+        do
+        {
+            v = version;
+            value = peak[channel];
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != version);
+
+        return value;
+    }
+
+    /**
+     * Returns the RMS level of the given channel in the
+     * last completed window.
+     *
+     * @param channel the zero-based channel index
+     * @return the RMS as a linear amplitude
+     */
+    public float getRms(int channel)
+    {
+        float value;
+        int v;
+
+        do
+        {
+            v = version;
+            value = rms[channel];
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != version);
+
+        return value;
+    }
+
+    /**
+     * Returns the number of clipped samples in the last
+     * completed window.
+     *
+     * @return the clip count
+     */
+    public int getClips()
+    {
+        return read(null, null);
+    }
+
+    /**
+     * Returns the number of clipped samples since the
+     * meter was created.
+     *
+     * @return the total clip count
+     */
+    public long getTotalClips()
+    {
+        long value;
+        int v;
+
+        do
+        {
+            v = version;
+            value = totalClips;
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != version);
+
+        return value;
+    }
+
+    /**
+     * Returns the number of windows that have been
+     * published, which allows observers to detect new
+     * readings.
+     *
+     * @return the window count
+     */
+    public long getWindowCount()
+    {
+        long value;
+        int v;
+
+        do
+        {
+            v = version;
+            value = windows;
+            VarHandle.acquireFence();
+        }
+        while ((v & 1) != 0 || v != version);
+
+        return value;
+    }
+
+    /**
+     * Converts a linear amplitude to decibels relative to
+     * full scale.
+     *
+     * @param level a linear amplitude
+     * @return the level in dBFS, negative infinity for 0
+     */
+    public static double toDecibels(float level)
+    {
+        return 20 * Math.log10(level);
+    }
+}
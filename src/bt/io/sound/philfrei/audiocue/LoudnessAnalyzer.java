@@ -0,0 +1,303 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * The {@code LoudnessAnalyzer} measures the integrated
+ * loudness of stereo audio data following ITU-R BS.1770 and
+ * EBU R128: both channels are K-weighted, the mean square is
+ * taken over blocks of 400 ms overlapping by 75%, and blocks
+ * below the absolute gate of -70 LUFS and the relative gate
+ * of 10 LU below the ungated loudness are discarded.
+ * <p>
+ * Data shorter than one block is measured as a single block,
+ * so that short sound effects still receive a value.
+ * <p>
+ * Long data is split into chunks that are filtered in
+ * parallel. Each chunk first runs its filters over the end of
+ * the preceding chunk, so the result matches a sequential
+ * measurement to well within 0.01 LU.
+ *
+ * @author &#8904
+ * @see AudioCue#measureLoudness()
+ */
+public class LoudnessAnalyzer
+{
+    /**
+     * The value reported for data without any signal above
+     * the absolute gate.
+     */
+    public static final double SILENCE = Double.NEGATIVE_INFINITY;
+
+    private static final double ABSOLUTE_GATE = -70;
+    private static final double RELATIVE_GATE = -10;
+    // segments of 100 ms, four of them make up a block
+    private static final int SEGMENTS_PER_BLOCK = 4;
+    private static final int SEGMENTS_PER_CHUNK = 300;
+    private static final int PREROLL_SEGMENTS = 10;
+
+    private LoudnessAnalyzer()
+    {
+    }
+
+    /**
+     * Measures the integrated loudness of interleaved stereo
+     * data.
+     *
+     * @param stereo interleaved stereo samples from the
+     * position to the limit of the buffer, which are not
+     * modified
+     * @param sampleRate the frame rate of the data
+     * @return the loudness in LUFS, or {@code SILENCE}
+     */
+    public static double integratedLoudness(FloatBuffer stereo,
+                                            float sampleRate)
+    {
+        FloatBuffer data = stereo.duplicate();
+        int base = data.position();
+        int frames = data.remaining() / 2;
+        int segmentFrames = Math.round(sampleRate / 10);
+        int segments = frames / segmentFrames;
+
+        if (segments < SEGMENTS_PER_BLOCK)
+        {
+            if (frames == 0)
+            {
+                return SILENCE;
+            }
+            double[] energy = new double[1];
+            filterSegments(data, base, 0, 0, frames, energy, 0, 1,
+                    sampleRate);
+            return gate(new double[] { energy[0] / frames });
+        }
+
+        double[] segmentEnergy = new double[segments];
+        int chunks = (segments + SEGMENTS_PER_CHUNK - 1)
+                / SEGMENTS_PER_CHUNK;
+
+        IntStream.range(0, chunks).parallel().forEach(chunk ->
+        {
+            int first = chunk * SEGMENTS_PER_CHUNK;
+            int last = Math.min(segments, first + SEGMENTS_PER_CHUNK);
+            int preroll = Math.min(first, PREROLL_SEGMENTS)
+                    * segmentFrames;
+            filterSegments(data, base, first * segmentFrames - preroll,
+                    preroll, segmentFrames, segmentEnergy, first, last,
+                    sampleRate);
+        });
+
+        int blocks = segments - SEGMENTS_PER_BLOCK + 1;
+        double[] blockPower = new double[blocks];
+        double sum = 0;
+        for (int s = 0; s < segments; s++)
+        {
+            sum += segmentEnergy[s];
+            if (s >= SEGMENTS_PER_BLOCK)
+            {
+                sum -= segmentEnergy[s - SEGMENTS_PER_BLOCK];
+            }
+            if (s >= SEGMENTS_PER_BLOCK - 1)
+            {
+                blockPower[s - SEGMENTS_PER_BLOCK + 1] = Math.max(0, sum)
+                        / (SEGMENTS_PER_BLOCK * segmentFrames);
+            }
+        }
+
+        return gate(blockPower);
+    }
+
+    /**
+     * Returns the gain which brings audio of the given loudness
+     * to the target loudness, limited to a maximum boost.
+     *
+     * @param loudness the measured loudness in LUFS
+     * @param target the wanted loudness in LUFS, e.g. -23
+     * @param maxGainDb the largest boost in dB that is applied
+     * @return a linear gain, or 1 for {@code SILENCE}
+     */
+    public static double normalizationGain(double loudness, double target,
+                                           double maxGainDb)
+    {
+        if (loudness == SILENCE || Double.isNaN(loudness))
+        {
+            return 1;
+        }
+        return Math.pow(10, Math.min(target - loudness, maxGainDb) / 20);
+    }
+
+    /**
+     * Computes a SHA-256 hash of the samples, as a hex
+     * {@code String}. Equal audio data gives an equal hash
+     * regardless of where it was loaded from.
+     *
+     * @param samples the samples from the position to the
+     * limit of the buffer, which are not modified
+     * @return the hash as 64 hex digits
+     */
+    public static String contentHash(FloatBuffer samples)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        FloatBuffer data = samples.duplicate();
+        ByteBuffer bytes = ByteBuffer.allocate(8192 * 4);
+        while (data.hasRemaining())
+        {
+            bytes.clear();
+            int n = Math.min(8192, data.remaining());
+            for (int i = 0; i < n; i++)
+            {
+                bytes.putInt(Float.floatToIntBits(data.get()));
+            }
+            bytes.flip();
+            digest.update(bytes);
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest())
+        {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /*
+     * Applies both gates to the mean squares of the blocks.
+     */
+    private static double gate(double[] blockPower)
+    {
+        double absolute = power(ABSOLUTE_GATE);
+        double sum = 0;
+        int count = 0;
+        for (double p : blockPower)
+        {
+            if (p > absolute)
+            {
+                sum += p;
+                count++;
+            }
+        }
+        if (count == 0)
+        {
+            return SILENCE;
+        }
+
+        double relative = power(loudness(sum / count) + RELATIVE_GATE);
+        sum = 0;
+        count = 0;
+        for (double p : blockPower)
+        {
+            if (p > absolute && p > relative)
+            {
+                sum += p;
+                count++;
+            }
+        }
+        return loudness(sum / count);
+    }
+
+    private static double loudness(double power)
+    {
+        return -0.691 + 10 * Math.log10(power);
+    }
+
+    private static double power(double loudness)
+    {
+        return Math.pow(10, (loudness + 0.691) / 10);
+    }
+
+    /*
+     * Filters from frame start, discarding the first preroll
+     * frames, and stores the K-weighted energy of the segments
+     * first to last.
+     */
+    private static void filterSegments(FloatBuffer data, int base,
+                                       int start, int preroll,
+                                       int segmentFrames, double[] energy,
+                                       int first, int last,
+                                       float sampleRate)
+    {
+        KWeighting left = new KWeighting(sampleRate);
+        KWeighting right = new KWeighting(sampleRate);
+
+        for (int f = start, end = start + preroll; f < end; f++)
+        {
+            left.filter(data.get(base + f * 2));
+            right.filter(data.get(base + f * 2 + 1));
+        }
+
+        int f = start + preroll;
+        for (int s = first; s < last; s++)
+        {
+            double sum = 0;
+            for (int end = f + segmentFrames; f < end; f++)
+            {
+                double l = left.filter(data.get(base + f * 2));
+                double r = right.filter(data.get(base + f * 2 + 1));
+                sum += l * l + r * r;
+            }
+            energy[s] = sum;
+        }
+    }
+
+    /*
+     * The two biquads of the K-weighting, a high shelf for the
+     * acoustic effect of the head followed by a high pass,
+     * with coefficients derived for any sample rate.
+     */
+    private static class KWeighting
+    {
+        private final double sb0, sb1, sb2, sa1, sa2;
+        private final double ha1, ha2;
+        private double s1, s2, h1, h2;
+
+        KWeighting(double rate)
+        {
+            double f0 = 1681.974450955533;
+            double gain = 3.999843853973347;
+            double q = 0.7071752369554196;
+            double k = Math.tan(Math.PI * f0 / rate);
+            double vh = Math.pow(10, gain / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            sb0 = (vh + vb * k / q + k * k) / a0;
+            sb1 = 2 * (k * k - vh) / a0;
+            sb2 = (vh - vb * k / q + k * k) / a0;
+            sa1 = 2 * (k * k - 1) / a0;
+            sa2 = (1 - k / q + k * k) / a0;
+
+            f0 = 38.13547087602444;
+            q = 0.5003270373238773;
+            k = Math.tan(Math.PI * f0 / rate);
+            a0 = 1 + k / q + k * k;
+            ha1 = 2 * (k * k - 1) / a0;
+            ha2 = (1 - k / q + k * k) / a0;
+        }
+
+        // transposed direct form II, both stages
+        double filter(double x)
+        {
+            double y = sb0 * x + s1;
+            s1 = sb1 * x - sa1 * y + s2;
+            s2 = sb2 * x - sa2 * y;
+
+            double z = y + h1;
+            h1 = -2 * y - ha1 * z + h2;
+            h2 = y - ha2 * z;
+            return z;
+        }
+    }
+}
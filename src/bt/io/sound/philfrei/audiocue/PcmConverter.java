@@ -0,0 +1,317 @@
+package bt.io.sound.philfrei.audiocue;
+
+/**
+ * A {@code PcmConverter} converts normalized float audio data
+ * to signed little-endian PCM bytes of 16 or 24 bits, as
+ * written to a {@code SourceDataLine}.
+ * <p>
+ * Samples are limited to the range -1 to 1 and rounded to
+ * the nearest step; {@code NaN} is written as 0. The source
+ * buffer is never modified. Optionally, triangular (TPDF)
+ * dither of one step peak amplitude is added before
+ * rounding, which turns the rounding error into a constant,
+ * signal independent noise floor. With
+ * {@code Dither.TPDF_SHAPED}, the rounding error of each
+ * channel is additionally fed back with a first-order
+ * filter, which moves the noise towards high frequencies
+ * where it is less audible.
+ * <p>
+ * The dither sequence is generated from a seed, so two
+ * converters with the same seed produce identical output for
+ * identical input.
+ * <p>
+ * A {@code PcmConverter} keeps state between calls and must
+ * only be used by one thread.
+ *
+ * @author &#8904
+ */
+public class PcmConverter
+{
+    /**
+     * The {@code enum Dither} lists the ways the rounding to
+     * PCM steps can be treated.
+     */
+    public static enum Dither
+    {
+        /**
+         * Plain rounding to the nearest step.
+         */
+        NONE,
+        /**
+         * Triangular dither of one step peak amplitude.
+         */
+        TPDF,
+        /**
+         * Triangular dither with first-order noise shaping.
+         */
+        TPDF_SHAPED
+    }
+
+    private final int bits;
+    private final int channels;
+    private final float scale;
+    private final int offset;
+    private volatile Dither dither;
+    private int random;
+    private final float[] error;
+    private float[] scratch = new float[0];
+
+    /**
+     * Constructor for a {@code PcmConverter}.
+     *
+     * @param bits 16 or 24 bits per sample
+     * @param channels the number of interleaved channels
+     * @param dither the treatment of rounding errors
+     */
+    public PcmConverter(int bits, int channels, Dither dither)
+    {
+        if (bits != 16 && bits != 24)
+        {
+            throw new IllegalArgumentException(
+                    "Only 16 and 24 bit output is supported.");
+        }
+
+        this.bits = bits;
+        this.channels = channels;
+        this.scale = (1 << (bits - 1)) - 1;
+        // offset that makes all scaled values positive, so that
+        // truncating the sum is the same as rounding down
+        this.offset = 1 << (bits - 1);
+        this.dither = dither;
+        this.error = new float[channels];
+        setSeed(0x2545F491);
+    }
+
+    /**
+     * Restarts the dither sequence from the given seed.
+     *
+     * @param seed any {@code long}
+     */
+    public void setSeed(long seed)
+    {
+        int r = (int)(seed ^ (seed >>> 32));
+        this.random = r == 0 ? 0x2545F491 : r;
+
+        for (int c = 0; c < channels; c++)
+        {
+            error[c] = 0;
+        }
+    }
+
+    /**
+     * Sets the treatment of rounding errors.
+     *
+     * @param dither a member of {@code enum Dither}
+     */
+    public void setDither(Dither dither)
+    {
+        this.dither = dither;
+    }
+
+    /**
+     * Returns the treatment of rounding errors.
+     *
+     * @return a member of {@code enum Dither}
+     */
+    public Dither getDither()
+    {
+        return dither;
+    }
+
+    /**
+     * Returns the number of bits per sample of the output.
+     *
+     * @return 16 or 24
+     */
+    public int getBits()
+    {
+        return bits;
+    }
+
+    /**
+     * Returns the number of bytes the output of one sample
+     * takes up.
+     *
+     * @return 2 or 3
+     */
+    public int getBytesPerSample()
+    {
+        return bits >> 3;
+    }
+
+    /**
+     * AudioThread code. Converts {@code length} samples of the
+     * buffer to PCM bytes.
+     *
+     * @param buffer normalized samples, interleaved by channel
+     * @param length the number of samples to convert, a
+     * multiple of the channel count
+     * @param audioBytes receives
+     * {@code length * getBytesPerSample()} bytes
+     * @return the byte array that was passed in
+     */
+    public byte[] convert(float[] buffer, int length, byte[] audioBytes)
+    {
+        Dither d = dither;
+        if (d == Dither.NONE && bits == 16)
+        {
+            convert16(buffer, length, audioBytes);
+            return audioBytes;
+        }
+
+        if (scratch.length < length)
+        {
+            scratch = new float[length];
+        }
+
+        float[] scaled = scratch;
+        float s = scale;
+
+        // scale and limit, written with selects instead of
+        // branches so the loop can be vectorized
+        for (int i = 0; i < length; i++)
+        {
+            float x = buffer[i];
+            x = x == x ? x : 0;
+            x = x > -1 ? x : -1;
+            x = x < 1 ? x : 1;
+            scaled[i] = x * s;
+        }
+
+        switch (d)
+        {
+            case TPDF:
+                addDither(scaled, length);
+                break;
+            case TPDF_SHAPED:
+                addShapedDither(scaled, length);
+                break;
+            default:
+                break;
+        }
+
+        if (bits == 16)
+        {
+            pack16(scaled, length, audioBytes);
+        }
+        else
+        {
+            pack24(scaled, length, audioBytes);
+        }
+
+        return audioBytes;
+    }
+
+    /**
+     * AudioThread code. Replaces {@code NaN} and values too
+     * small to be audible, including denormal numbers, with 0.
+     * Denormal numbers are processed much slower by most
+     * processors, and would slow down every later stage that
+     * keeps feeding them through.
+     *
+     * @param buffer the samples to clean up in place
+     * @param length the number of samples
+     */
+    public static void flushDenormals(float[] buffer, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            float x = buffer[i];
+            buffer[i] = Math.abs(x) >= 1e-15f ? x : 0;
+        }
+    }
+
+    /*
+     * Triangular noise in [-1, 1) steps, from the sum of the
+     * two 16-bit halves of one xorshift value.
+     */
+    private float nextTriangular()
+    {
+        int r = random;
+        r ^= r << 13;
+        r ^= r >>> 17;
+        r ^= r << 5;
+        random = r;
+
+        return ((r & 0xFFFF) + (r >>> 16)) * (1f / 65536) - 1;
+    }
+
+    private void addDither(float[] scaled, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            scaled[i] += nextTriangular();
+        }
+    }
+
+    private void addShapedDither(float[] scaled, int length)
+    {
+        double o = offset + 0.5;
+
+        for (int i = 0; i < length; )
+        {
+            for (int c = 0; c < channels; c++, i++)
+            {
+                float wanted = scaled[i] - error[c];
+                // rounded with the same offset trick as the packing
+                int q = (int)(wanted + nextTriangular() + o) - offset;
+                float out = q < -offset ? -offset
+                        : q > offset - 1 ? offset - 1 : q;
+                // the error is at most a few steps, tiny values
+                // are flushed so they can not become denormal
+                float e = out - wanted;
+                error[c] = Math.abs(e) < 1e-20f ? 0 : e;
+                scaled[i] = out;
+            }
+        }
+    }
+
+    /*
+     * Single pass for the common case of 16 bits without
+     * dither.
+     */
+    private static void convert16(float[] buffer, int length,
+                                  byte[] audioBytes)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            float x = buffer[i];
+            x = x == x ? x : 0;
+            x = x > -1 ? x : -1;
+            x = x < 1 ? x : 1;
+            int v = (int)(x * 32767 + 32768.5f) - 32768;
+            audioBytes[i * 2] = (byte)v;
+            audioBytes[i * 2 + 1] = (byte)(v >> 8);
+        }
+    }
+
+    private void pack16(float[] scaled, int length, byte[] audioBytes)
+    {
+        float o = offset + 0.5f;
+        int max = offset * 2 - 1;
+
+        for (int i = 0; i < length; i++)
+        {
+            int v = Math.min(max, Math.max(0, (int)(scaled[i] + o)))
+                    - offset;
+            audioBytes[i * 2] = (byte)v;
+            audioBytes[i * 2 + 1] = (byte)(v >> 8);
+        }
+    }
+
+    private void pack24(float[] scaled, int length, byte[] audioBytes)
+    {
+        // a float can not hold the offset sum with a fraction
+        double o = offset + 0.5;
+        int max = offset * 2 - 1;
+
+        for (int i = 0; i < length; i++)
+        {
+            int v = Math.min(max, Math.max(0, (int)(scaled[i] + o)))
+                    - offset;
+            audioBytes[i * 3] = (byte)v;
+            audioBytes[i * 3 + 1] = (byte)(v >> 8);
+            audioBytes[i * 3 + 2] = (byte)(v >> 16);
+        }
+    }
+}
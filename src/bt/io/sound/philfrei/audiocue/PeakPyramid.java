@@ -0,0 +1,395 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+
+/**
+ * A {@code PeakPyramid} holds the minimum and maximum sample
+ * values of audio data at several resolutions, for drawing
+ * waveforms at any zoom level.
+ * <p>
+ * The finest level holds one minimum and maximum per channel
+ * for every {@code BLOCK_FRAMES} frames, and every further
+ * level combines two blocks of the level below, up to a single
+ * block for the whole data. A query for a number of pixels
+ * uses the coarsest level whose blocks are not wider than a
+ * pixel, so it reads at most a few blocks per pixel, no matter
+ * how long the data is. Below the finest level, the samples
+ * themselves are read, which also takes a bounded number of
+ * reads per pixel.
+ * <p>
+ * The pyramid takes about {@code 4 / BLOCK_FRAMES} of the
+ * memory of the audio data. It can be written to a file and
+ * loaded again without the audio data, in which case queries
+ * finer than {@code BLOCK_FRAMES} return the values of the
+ * finest level.
+ * <p>
+ * A {@code PeakPyramid} is immutable and can be queried from
+ * any thread.
+ *
+ * @author &#8904
+ * @see AudioCue#getPeakPyramid()
+ */
+public class PeakPyramid
+{
+    /**
+     * The number of frames covered by a block of the finest
+     * level.
+     */
+    public static final int BLOCK_FRAMES = 64;
+
+    private static final int MAGIC = 0x42545050; // 'BTPP'
+    private static final int VERSION = 1;
+    private static final int BLOCKS_PER_TASK = 4096;
+
+    private final int frames;
+    private final int channels;
+    // per level, minimum and maximum interleaved by channel
+    private final float[][] mins;
+    private final float[][] maxs;
+    // the audio data, null if loaded from a file
+    private final FloatBuffer data;
+    private final int dataOffset;
+
+    private PeakPyramid(int frames, int channels, float[][] mins,
+                        float[][] maxs, FloatBuffer data, int dataOffset)
+    {
+        this.frames = frames;
+        this.channels = channels;
+        this.mins = mins;
+        this.maxs = maxs;
+        this.data = data;
+        this.dataOffset = dataOffset;
+    }
+
+    /**
+     * Builds a {@code PeakPyramid} from interleaved audio data.
+     * The finest level of long data is computed on several
+     * threads. The pyramid keeps a reference to the data to
+     * answer queries below the finest level, the data must
+     * therefore not be changed afterwards.
+     *
+     * @param data interleaved samples, starting at index 0 of
+     * the buffer
+     * @param channels the number of interleaved channels
+     * @param dataOffset the frame at which the data starts,
+     * frames before it are regarded as silent
+     * @param frames the total number of frames, frames beyond
+     * the data are regarded as silent
+     * @return the {@code PeakPyramid}
+     */
+    public static PeakPyramid build(FloatBuffer data, int channels,
+                                    int dataOffset, int frames)
+    {
+        FloatBuffer source = data.duplicate();
+        int heldFrames = source.limit() / channels;
+
+        int levels = 1;
+        for (long b = BLOCK_FRAMES; b < frames; b <<= 1)
+        {
+            levels++;
+        }
+
+        float[][] mins = new float[levels][];
+        float[][] maxs = new float[levels][];
+
+        int blocks = Math.max(1, (frames + BLOCK_FRAMES - 1) / BLOCK_FRAMES);
+        float[] finestMin = new float[blocks * channels];
+        float[] finestMax = new float[blocks * channels];
+        int tasks = (blocks + BLOCKS_PER_TASK - 1) / BLOCKS_PER_TASK;
+
+        IntStream.range(0, tasks).parallel().forEach(task ->
+        {
+            int last = Math.min(blocks, (task + 1) * BLOCKS_PER_TASK);
+            for (int b = task * BLOCKS_PER_TASK; b < last; b++)
+            {
+                int from = b * BLOCK_FRAMES;
+                int to = Math.min(frames, from + BLOCK_FRAMES);
+                scan(source, channels, heldFrames, from - dataOffset,
+                        to - dataOffset, finestMin, finestMax, b * channels);
+            }
+        });
+        mins[0] = finestMin;
+        maxs[0] = finestMax;
+
+        for (int level = 1; level < levels; level++)
+        {
+            float[] lowerMin = mins[level - 1];
+            float[] lowerMax = maxs[level - 1];
+            int lowerBlocks = lowerMin.length / channels;
+            int levelBlocks = (lowerBlocks + 1) / 2;
+            float[] min = new float[levelBlocks * channels];
+            float[] max = new float[levelBlocks * channels];
+
+            for (int b = 0; b < levelBlocks; b++)
+            {
+                int first = b * 2 * channels;
+                int second = Math.min(b * 2 + 1, lowerBlocks - 1) * channels;
+                for (int c = 0; c < channels; c++)
+                {
+                    min[b * channels + c] = Math.min(lowerMin[first + c],
+                            lowerMin[second + c]);
+                    max[b * channels + c] = Math.max(lowerMax[first + c],
+                            lowerMax[second + c]);
+                }
+            }
+            mins[level] = min;
+            maxs[level] = max;
+        }
+
+        return new PeakPyramid(frames, channels, mins, maxs, source,
+                dataOffset);
+    }
+
+    /*
+     * Minimum and maximum of the held frames from..to, which
+     * may lie partly or completely outside of the data.
+     */
+    private static void scan(FloatBuffer source, int channels,
+                             int heldFrames, int from, int to,
+                             float[] min, float[] max, int index)
+    {
+        boolean silent = from < 0 || to > heldFrames || from >= to;
+        from = Math.max(0, from);
+        to = Math.min(heldFrames, to);
+
+        for (int c = 0; c < channels; c++)
+        {
+            float lo = silent ? 0 : Float.MAX_VALUE;
+            float hi = silent ? 0 : -Float.MAX_VALUE;
+            for (int f = from; f < to; f++)
+            {
+                float v = source.get(f * channels + c);
+                lo = Math.min(lo, v);
+                hi = Math.max(hi, v);
+            }
+            min[index + c] = lo;
+            max[index + c] = hi;
+        }
+    }
+
+    /**
+     * Reads the minimum and maximum of one channel for a row of
+     * pixels, each covering {@code framesPerPixel} frames,
+     * starting at {@code startFrame}. Pixels beyond the end
+     * of the data are 0. The time taken is proportional to the
+     * number of pixels.
+     *
+     * @param channel the channel to read
+     * @param startFrame the frame at the left edge of the first
+     * pixel
+     * @param framesPerPixel the number of frames per pixel,
+     * greater than 0
+     * @param min receives the minimum of every pixel
+     * @param max receives the maximum of every pixel
+     * @param pixels the number of pixels to read
+     */
+    public void read(int channel, double startFrame, double framesPerPixel,
+                     float[] min, float[] max, int pixels)
+    {
+        if (!(framesPerPixel > 0))
+        {
+            throw new IllegalArgumentException(
+                    "Frames per pixel must be greater than 0.");
+        }
+
+        int level = 0;
+        while (level + 1 < mins.length
+                && blockFrames(level + 1) <= framesPerPixel)
+        {
+            level++;
+        }
+        boolean raw = framesPerPixel < BLOCK_FRAMES && data != null;
+        int size = blockFrames(level);
+        float[] levelMin = mins[level];
+        float[] levelMax = maxs[level];
+        int heldFrames = data == null ? 0 : data.limit() / channels;
+
+        for (int p = 0; p < pixels; p++)
+        {
+            long from = (long)Math.floor(startFrame + p * framesPerPixel);
+            long to = Math.max(from + 1,
+                    (long)Math.floor(startFrame + (p + 1) * framesPerPixel));
+            from = Math.max(0, from);
+            to = Math.min(frames, to);
+
+            if (from >= to)
+            {
+                min[p] = 0;
+                max[p] = 0;
+            }
+            else if (raw)
+            {
+                min[p] = rawMin(from, to, channel, heldFrames);
+                max[p] = rawMax(from, to, channel, heldFrames);
+            }
+            else
+            {
+                int first = (int)(from / size);
+                int last = (int)((to - 1) / size);
+                float lo = Float.MAX_VALUE;
+                float hi = -Float.MAX_VALUE;
+                for (int b = first; b <= last; b++)
+                {
+                    lo = Math.min(lo, levelMin[b * channels + channel]);
+                    hi = Math.max(hi, levelMax[b * channels + channel]);
+                }
+                min[p] = lo;
+                max[p] = hi;
+            }
+        }
+    }
+
+    private float rawMin(long from, long to, int channel, int heldFrames)
+    {
+        float lo = Float.MAX_VALUE;
+        for (long f = from; f < to; f++)
+        {
+            long held = f - dataOffset;
+            lo = Math.min(lo, held < 0 || held >= heldFrames ? 0
+                    : data.get((int)held * channels + channel));
+        }
+        return lo;
+    }
+
+    private float rawMax(long from, long to, int channel, int heldFrames)
+    {
+        float hi = -Float.MAX_VALUE;
+        for (long f = from; f < to; f++)
+        {
+            long held = f - dataOffset;
+            hi = Math.max(hi, held < 0 || held >= heldFrames ? 0
+                    : data.get((int)held * channels + channel));
+        }
+        return hi;
+    }
+
+    /**
+     * Returns the number of frames covered by one block of
+     * the given level.
+     *
+     * @param level a level from 0, the finest, to
+     * {@code getLevels() - 1}
+     * @return the frames per block
+     */
+    public int blockFrames(int level)
+    {
+        return BLOCK_FRAMES << level;
+    }
+
+    /**
+     * Returns the number of levels.
+     *
+     * @return the level count
+     */
+    public int getLevels()
+    {
+        return mins.length;
+    }
+
+    /**
+     * Returns the number of frames of the analysed data.
+     *
+     * @return the frame count
+     */
+    public int getFrames()
+    {
+        return frames;
+    }
+
+    /**
+     * Returns the number of channels.
+     *
+     * @return the channel count
+     */
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    /**
+     * Writes all levels to a file, so the waveform can be drawn
+     * later without decoding the audio data.
+     *
+     * @param path the file to write
+     * @throws IOException if the file can not be written
+     */
+    public void save(Path path) throws IOException
+    {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path))))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(frames);
+            out.writeInt(channels);
+            out.writeInt(BLOCK_FRAMES);
+            out.writeInt(mins.length);
+            for (int level = 0; level < mins.length; level++)
+            {
+                out.writeInt(mins[level].length);
+                for (int i = 0; i < mins[level].length; i++)
+                {
+                    out.writeFloat(mins[level][i]);
+                    out.writeFloat(maxs[level][i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a {@code PeakPyramid} written by {@code save}. The
+     * result holds no audio data, queries finer than
+     * {@code BLOCK_FRAMES} frames per pixel return the values
+     * of the finest level.
+     *
+     * @param path the file to read
+     * @return the {@code PeakPyramid}
+     * @throws IOException if the file can not be read or was
+     * not written by {@code save}
+     */
+    public static PeakPyramid load(Path path) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                throw new IOException(path
+                        + " is not a supported peak file.");
+            }
+
+            int frames = in.readInt();
+            int channels = in.readInt();
+            if (in.readInt() != BLOCK_FRAMES)
+            {
+                throw new IOException(path
+                        + " uses a different block size.");
+            }
+
+            int levels = in.readInt();
+            float[][] mins = new float[levels][];
+            float[][] maxs = new float[levels][];
+            for (int level = 0; level < levels; level++)
+            {
+                int length = in.readInt();
+                mins[level] = new float[length];
+                maxs[level] = new float[length];
+                for (int i = 0; i < length; i++)
+                {
+                    mins[level][i] = in.readFloat();
+                    maxs[level][i] = in.readFloat();
+                }
+            }
+
+            return new PeakPyramid(frames, channels, mins, maxs, null, 0);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/*
+ * Changes the tempo of an AudioCue instance without changing
+ * its pitch, using WSOLA (waveform similarity overlap-add).
+ *
+ * The output is built from Hann windowed grains of GRAIN
+ * frames, overlapping by half. Every HOP output frames a new
+ * grain is started near the nominal read position of the
+ * instance, which advances at tempo times the play speed.
+ * Within SEEK frames of the nominal position, the start is
+ * chosen whose waveform best matches the natural continuation
+ * of the previous grain, so the grains add up without phase
+ * cancellation. Within a grain the data is read at the play
+ * speed, which therefore sets the pitch as usual.
+ *
+ * All buffers are allocated on construction. The work per
+ * grain is fixed: one grain read plus a coarse and a fine
+ * similarity search over a decimated mono copy of the search
+ * region.
+ *
+ * AudioThread code, except for the constructor.
+ */
+final class TimeStretcher
+{
+    static final int GRAIN = 1024;
+    static final int HOP = GRAIN / 2;
+    static final int SEEK = 256;
+    // frames compared by the similarity search, and their spacing
+    private static final int CORR_TAPS = 64;
+    private static final int CORR_STRIDE = 4;
+    private static final int COARSE_STEP = 4;
+    // larger steps compare taps at this spacing
+    private static final float MAX_TAP_STEP = 16;
+    private static final int REGION = 2 * SEEK + 1
+            + (int)Math.ceil((CORR_TAPS - 1) * CORR_STRIDE * MAX_TAP_STEP) + 1;
+
+    private static final float[] WINDOW = new float[GRAIN];
+
+    static
+    {
+        // periodic Hann, overlapping halves sum to exactly 1
+        for (int i = 0; i < GRAIN; i++)
+        {
+            WINDOW[i] = (float)(0.5 - 0.5 * Math.cos(2 * Math.PI * i / GRAIN));
+        }
+    }
+
+    // overlap-add accumulator, interleaved stereo
+    private final float[] out = new float[GRAIN * 2];
+    // mono natural continuation of the previous grain
+    private final float[] reference = new float[CORR_TAPS];
+    // mono data around the nominal position, and tap offsets
+    private final float[] region = new float[REGION];
+    private final int[] taps = new int[CORR_TAPS];
+    private int outPos;
+    private float lastStart;
+    private float lastStep;
+    private boolean primed;
+
+    void reset()
+    {
+        primed = false;
+        outPos = 0;
+    }
+
+    /*
+     * Returns the next output frame. The nominal position is
+     * the read position of the instance, step the number of
+     * source frames per output frame at the current speed.
+     */
+    float[] next(float[] audioVals, FloatBuffer cue, int cueOffset,
+                 float nominal, float step)
+    {
+        if (!primed || outPos == HOP)
+        {
+            nextGrain(cue, cueOffset, nominal, step);
+        }
+
+        audioVals[0] = out[outPos * 2];
+        audioVals[1] = out[outPos * 2 + 1];
+        outPos++;
+        return audioVals;
+    }
+
+    private void nextGrain(FloatBuffer cue, int cueOffset, float nominal,
+                           float step)
+    {
+        int held = cue.limit() >> 1;
+        float start = nominal;
+        boolean first = !primed;
+
+        if (first)
+        {
+            Arrays.fill(out, 0);
+        }
+        else
+        {
+            // drop the emitted half, the other half is completed
+            // by the new grain
+            System.arraycopy(out, HOP * 2, out, 0, HOP * 2);
+            Arrays.fill(out, HOP * 2, GRAIN * 2, 0);
+
+            float tapStep = Math.min(step, MAX_TAP_STEP);
+            float natural = lastStart + HOP * lastStep;
+            for (int t = 0; t < CORR_TAPS; t++)
+            {
+                taps[t] = Math.round(t * CORR_STRIDE * tapStep);
+                reference[t] = mono(cue, cueOffset, held, natural + taps[t]);
+            }
+
+            int regionStart = Math.round(nominal) - SEEK;
+            int regionLength = 2 * SEEK + 1 + taps[CORR_TAPS - 1];
+            for (int i = 0; i < regionLength; i++)
+            {
+                region[i] = mono(cue, cueOffset, held, regionStart + i);
+            }
+            start = Math.round(nominal) + bestOffset();
+        }
+
+        for (int i = 0; i < GRAIN; i++)
+        {
+            // the first grain starts at full level, so the
+            // attack of the sound is kept
+            float w = first && i < HOP ? 1 : WINDOW[i];
+            float pos = start + i * step - cueOffset;
+            int index = (int)Math.floor(pos);
+
+            if (index >= 0 && index < held - 1)
+            {
+                float frac = pos - index;
+                int flat = index * 2;
+                out[i * 2] += w * (cue.get(flat)
+                        + (cue.get(flat + 2) - cue.get(flat)) * frac);
+                out[i * 2 + 1] += w * (cue.get(flat + 1)
+                        + (cue.get(flat + 3) - cue.get(flat + 1)) * frac);
+            }
+        }
+
+        lastStart = start;
+        lastStep = step;
+        outPos = 0;
+        primed = true;
+    }
+
+    /*
+     * Offset from the nominal position, within SEEK frames,
+     * where the data is most similar to the reference. A
+     * coarse search is refined around its best candidate.
+     */
+    private int bestOffset()
+    {
+        int best = 0;
+        float bestScore = -Float.MAX_VALUE;
+
+        for (int d = -SEEK; d <= SEEK; d += COARSE_STEP)
+        {
+            float score = similarity(d + SEEK);
+            if (score > bestScore)
+            {
+                bestScore = score;
+                best = d;
+            }
+        }
+
+        int coarse = best;
+        for (int d = coarse - COARSE_STEP + 1; d < coarse + COARSE_STEP; d++)
+        {
+            if (d == coarse || d < -SEEK || d > SEEK) continue;
+
+            float score = similarity(d + SEEK);
+            if (score > bestScore)
+            {
+                bestScore = score;
+                best = d;
+            }
+        }
+
+        return best;
+    }
+
+    /*
+     * Normalized cross-correlation with the reference, without
+     * dividing by the constant energy of the reference.
+     */
+    private float similarity(int offset)
+    {
+        float dot = 0;
+        float energy = 1e-9f;
+
+        for (int t = 0; t < CORR_TAPS; t++)
+        {
+            float v = region[offset + taps[t]];
+            dot += v * reference[t];
+            energy += v * v;
+        }
+
+        return dot / (float)Math.sqrt(energy);
+    }
+
+    private static float mono(FloatBuffer cue, int cueOffset, int held,
+                              float pos)
+    {
+        int index = (int)(pos + 0.5f) - cueOffset;
+        if (index < 0 || index >= held)
+        {
+            return 0;
+        }
+        return cue.get(index * 2) + cue.get(index * 2 + 1);
+    }
+}
@@ -0,0 +1,329 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * A {@code VoiceSnapshot} holds the state of all instances of
+ * an {@code AudioCue} at the end of one buffer, for observers
+ * such as a user interface that shows many voices every frame.
+ * <p>
+ * Once the states of a cue have been read for the first time,
+ * the audio thread publishes them after every buffer,
+ * alternating between two internal snapshots, so the one that
+ * is read is not written at the same time. Cues that are never
+ * read cost nothing. The values are
+ * stored as one array per property, indexed by instance hook,
+ * and copied as a whole by {@code AudioCue.readVoices}. All
+ * values of a copy belong to the same buffer, unlike values
+ * read one by one via the getters of {@code AudioCue}, and
+ * the getters of a copy neither lock nor check the state of
+ * the instance.
+ * <p>
+ * A copy can be reused for every read, it only allocates if
+ * the number of instances grew.
+ *
+ * @author &#8904
+ * @see AudioCue#readVoices(VoiceSnapshot)
+ */
+public class VoiceSnapshot
+{
+    private static final int ACTIVE = 1;
+    private static final int PLAYING = 2;
+    private static final int VIRTUAL = 4;
+
+    // seqlock version, only used by the published snapshots
+    volatile int version;
+
+    private int count;
+    private long buffer = -1;
+    private byte[] flags = new byte[0];
+    private int[] generation = new int[0];
+    private float[] position = new float[0];
+    private float[] volume = new float[0];
+    private float[] pan = new float[0];
+    private float[] speed = new float[0];
+    private float[] tempo = new float[0];
+    private float[] gain = new float[0];
+    private int[] loop = new int[0];
+
+    /**
+     * Creates an empty snapshot to copy voice states into.
+     */
+    public VoiceSnapshot()
+    {
+    }
+
+    /*
+     * A snapshot to publish, its arrays are never replaced.
+     */
+    VoiceSnapshot(int capacity)
+    {
+        ensureCapacity(capacity);
+    }
+
+    int capacity()
+    {
+        return flags.length;
+    }
+
+    private void ensureCapacity(int instances)
+    {
+        if (flags.length >= instances)
+        {
+            return;
+        }
+
+        flags = Arrays.copyOf(flags, instances);
+        generation = Arrays.copyOf(generation, instances);
+        position = Arrays.copyOf(position, instances);
+        volume = Arrays.copyOf(volume, instances);
+        pan = Arrays.copyOf(pan, instances);
+        speed = Arrays.copyOf(speed, instances);
+        tempo = Arrays.copyOf(tempo, instances);
+        gain = Arrays.copyOf(gain, instances);
+        loop = Arrays.copyOf(loop, instances);
+    }
+
+    /*
+     * AudioThread code. Starts writing the states of a buffer.
+     */
+    void begin(int instances, long bufferNumber)
+    {
+        version++;
+        VarHandle.storeStoreFence();
+
+        count = instances;
+        buffer = bufferNumber;
+    }
+
+    /*
+     * AudioThread code. Writes the state of one instance.
+     */
+    void set(int hook, boolean active, boolean playing, boolean virtual,
+             int generation, float position, float volume, float pan,
+             float speed, float tempo, float gain, int loop)
+    {
+        flags[hook] = (byte)((active ? ACTIVE : 0) | (playing ? PLAYING : 0)
+                | (virtual ? VIRTUAL : 0));
+        this.generation[hook] = generation;
+        this.position[hook] = position;
+        this.volume[hook] = volume;
+        this.pan[hook] = pan;
+        this.speed[hook] = speed;
+        this.tempo[hook] = tempo;
+        this.gain[hook] = playing ? gain : 0;
+        this.loop[hook] = loop;
+    }
+
+    /*
+     * AudioThread code. Makes the written states readable.
+     */
+    void end()
+    {
+        version++;
+    }
+
+    /*
+     * Copies a published snapshot. Returns false if it was
+     * written meanwhile, in which case the copy has to be
+     * repeated.
+     */
+    boolean copy(VoiceSnapshot source)
+    {
+        int v = source.version;
+        if ((v & 1) != 0)
+        {
+            return false;
+        }
+        VarHandle.loadLoadFence();
+
+        int n = source.count;
+        ensureCapacity(n);
+
+        System.arraycopy(source.flags, 0, flags, 0, n);
+        System.arraycopy(source.generation, 0, generation, 0, n);
+        System.arraycopy(source.position, 0, position, 0, n);
+        System.arraycopy(source.volume, 0, volume, 0, n);
+        System.arraycopy(source.pan, 0, pan, 0, n);
+        System.arraycopy(source.speed, 0, speed, 0, n);
+        System.arraycopy(source.tempo, 0, tempo, 0, n);
+        System.arraycopy(source.gain, 0, gain, 0, n);
+        System.arraycopy(source.loop, 0, loop, 0, n);
+        count = n;
+        buffer = source.buffer;
+
+        VarHandle.acquireFence();
+        return v == source.version;
+    }
+
+    /*
+     * Resets the copy to no instances.
+     */
+    void clear()
+    {
+        count = 0;
+        buffer = -1;
+    }
+
+    /**
+     * Returns the number of instances held, valid hooks range
+     * from 0 to {@code getInstanceCount() - 1}.
+     *
+     * @return the number of allocated instances
+     */
+    public int getInstanceCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the number of the buffer after which the states
+     * were taken, counted from the first buffer the cue
+     * rendered, or -1 if none was rendered yet. Reads that
+     * return the same number hold the same states.
+     *
+     * @return the buffer number
+     */
+    public long getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Returns {@code true} if the instance was active.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return {@code true} if the instance was active
+     */
+    public boolean isActive(int instanceHook)
+    {
+        return (flags[instanceHook] & ACTIVE) != 0;
+    }
+
+    /**
+     * Returns {@code true} if the instance was playing.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return {@code true} if the instance was playing
+     */
+    public boolean isPlaying(int instanceHook)
+    {
+        return (flags[instanceHook] & PLAYING) != 0;
+    }
+
+    /**
+     * Returns {@code true} if the instance was playing but
+     * virtual, i.e. inaudible and not mixed.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return {@code true} if the instance was virtual
+     */
+    public boolean isVirtual(int instanceHook)
+    {
+        return (flags[instanceHook] & VIRTUAL) != 0;
+    }
+
+    /**
+     * Returns the generation of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the generation
+     * @see AudioCue#getGeneration(int)
+     */
+    public int getGeneration(int instanceHook)
+    {
+        return generation[instanceHook];
+    }
+
+    /**
+     * Returns the play position of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the sample frame position
+     */
+    public float getFramePosition(int instanceHook)
+    {
+        return position[instanceHook];
+    }
+
+    /**
+     * Returns the volume of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the volume
+     */
+    public float getVolume(int instanceHook)
+    {
+        return volume[instanceHook];
+    }
+
+    /**
+     * Returns the pan of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the pan
+     */
+    public float getPan(int instanceHook)
+    {
+        return pan[instanceHook];
+    }
+
+    /**
+     * Returns the speed of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the speed
+     */
+    public float getSpeed(int instanceHook)
+    {
+        return speed[instanceHook];
+    }
+
+    /**
+     * Returns the tempo of the instance.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the tempo
+     */
+    public float getTempo(int instanceHook)
+    {
+        return tempo[instanceHook];
+    }
+
+    /**
+     * Returns the gain with which the instance was heard,
+     * including volume, pan, spatialization and the volume of
+     * the cue, or 0 if it was not playing.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the gain as a linear amplitude
+     */
+    public float getGain(int instanceHook)
+    {
+        return gain[instanceHook];
+    }
+
+    /**
+     * Returns the number of remaining repetitions of the
+     * instance, -1 if it loops endlessly.
+     *
+     * @param instanceHook an {@code int} used to identify an
+     * {@code AudioCue} instance
+     * @return the loop count
+     */
+    public int getLooping(int instanceHook)
+    {
+        return loop[instanceHook];
+    }
+}
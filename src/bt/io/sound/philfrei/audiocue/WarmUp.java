@@ -0,0 +1,215 @@
+package bt.io.sound.philfrei.audiocue;
+
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/*
+ * Runs the mixing code before the first audible buffer, so it
+ * is rendered by compiled code instead of the interpreter.
+ *
+ * A throwaway AudioMixer in the output format of the caller
+ * renders buffers offline from a throwaway AudioCue. Its
+ * instances are restarted with changing settings, so plain,
+ * resampled, looping, stretched, spatialized, virtual and
+ * stolen instances, the buses with ducking, and the PCM
+ * conversion are all run. The JIT compiles per method, not per
+ * object, so the real mixers and cues profit from it. Nothing
+ * reaches an output line.
+ *
+ * Rendering stops once the JIT has not compiled anything for
+ * QUIET_BATCHES batches of buffers, within MIN_BUFFERS and
+ * MAX_BUFFERS. Where compilation time is not available, it
+ * stops after MIN_BUFFERS.
+ *
+ * The sample data of a cue can be touched beforehand as well,
+ * which faults in the pages of memory-mapped data.
+ */
+final class WarmUp
+{
+    // small buffers, the compiled code does not depend on
+    // the buffer size
+    private static final int BUFFER_FRAMES = 256;
+    private static final int BATCH = 64;
+    private static final int MIN_BUFFERS = 2048;
+    private static final int MAX_BUFFERS = 8192;
+    // batches without compilation before the JIT counts as done
+    private static final int QUIET_BATCHES = 2;
+    // fewer instances than are started, so some are stolen
+    private static final int POLYPHONY = 4;
+    // finds the gap of the signal, but no frames of its noise
+    private static final float SILENCE_THRESHOLD = 0.0001f;
+    private static final int SILENCE_FRAMES = 1024;
+    // one read per page of 4 KB
+    private static final int PAGE_FLOATS = 1024;
+
+    // keeps the reads of touch from being removed
+    private static volatile float sink;
+
+    private WarmUp()
+    {
+    }
+
+    /*
+     * Renders buffers in the given output format until the JIT
+     * is idle. Returns the time taken in nanoseconds.
+     */
+    static synchronized long run(float sampleRate, ChannelLayout layout,
+                                 int bits, PcmConverter.Dither dither)
+    {
+        long start = System.nanoTime();
+
+        AudioMixer mixer = new AudioMixer(null, BUFFER_FRAMES,
+                Thread.NORM_PRIORITY, sampleRate, layout, bits);
+        mixer.setDither(dither);
+
+        AudioCue cue = AudioCue.makeStereoCue(signal(), "warm-up", POLYPHONY);
+        cue.setVoiceStealing(AudioCue.VoiceStealing.OLDEST);
+        cue.setMaxRealVoices(POLYPHONY - 1);
+        // the gap of the signal is skipped while mixing
+        cue.analyzeSilence(SILENCE_THRESHOLD, SILENCE_FRAMES);
+        AudioCue sidechain = AudioCue.makeStereoCue(signal(), "warm-up sidechain", 2);
+
+        cue.open(mixer);
+        sidechain.open(mixer);
+        mixer.setTrackBus(cue, "music");
+        mixer.setTrackBus(sidechain, "effects");
+        mixer.getBus("music").setDucking(mixer.getBus("effects"), -40, 4, 1, 50);
+        mixer.updateTracks();
+
+        CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+        boolean timed = compiler != null
+                && compiler.isCompilationTimeMonitoringSupported();
+        long compileTime = timed ? compiler.getTotalCompilationTime() : 0;
+
+        byte[] audioBytes = new byte[mixer.sdlByteBufferSize];
+        float[] samples = new float[BUFFER_FRAMES * 2];
+        byte[] pcm = new byte[BUFFER_FRAMES * 4];
+        Random random = new Random(0x5EED);
+        int rendered = 0;
+        int quiet = 0;
+
+        while (rendered < MAX_BUFFERS)
+        {
+            for (int b = 0; b < BATCH; b++)
+            {
+                vary(cue, sidechain, random, rendered + b);
+                mixer.renderOffline(audioBytes);
+
+                samples[b] = random.nextFloat() * 2.2f - 1.1f;
+                AudioCue.fromBufferToAudioBytes(pcm, samples);
+            }
+            rendered += BATCH;
+
+            if (rendered >= MIN_BUFFERS)
+            {
+                if (!timed)
+                {
+                    break;
+                }
+
+                long time = compiler.getTotalCompilationTime();
+                quiet = time == compileTime ? quiet + 1 : 0;
+                if (quiet == QUIET_BATCHES)
+                {
+                    break;
+                }
+                compileTime = time;
+            }
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /*
+     * Restarts finished instances and changes playing ones, so
+     * every code path of the mixer is taken now and then.
+     */
+    private static void vary(AudioCue cue, AudioCue sidechain, Random random,
+                             int buffer)
+    {
+        switch (buffer % 8)
+        {
+            case 0:
+                cue.play(0.5, random.nextDouble() * 2 - 1,
+                        0.5 + random.nextDouble(), random.nextInt(2), 0);
+                break;
+            case 1:
+                int hook = cue.play(0.4, 0, 1, 0, 0);
+                if (hook >= 0)
+                {
+                    cue.setTempo(hook, 0.6 + random.nextDouble() * 0.8);
+                }
+                break;
+            case 2:
+                hook = cue.play(0.4, 0, 1, 0, 0);
+                if (hook >= 0)
+                {
+                    float pan = random.nextFloat() * 2 - 1;
+                    cue.setSpatializer(hook, gainPan ->
+                    {
+                        gainPan[0] = 0.7f;
+                        gainPan[1] = pan;
+                    });
+                }
+                break;
+            case 3:
+                // inaudible, becomes virtual
+                cue.play(0.00001);
+                break;
+            case 4:
+                sidechain.play(0.8, 0, 1, 0, 0);
+                break;
+            default:
+                for (int h = 0; h < cue.getAllocatedInstances(); h++)
+                {
+                    if (cue.getIsActive(h) && cue.getIsPlaying(h))
+                    {
+                        cue.setVolume(h, 0.2 + random.nextDouble() * 0.5);
+                        cue.setPan(h, random.nextDouble() * 2 - 1);
+                        cue.setSpeed(h, 0.5 + random.nextDouble());
+                    }
+                }
+                break;
+        }
+    }
+
+    /*
+     * Half a second of noise with a silent gap, which the
+     * analysis of run marks as silence, so the skipping of
+     * silent regions is run as well.
+     */
+    private static float[] signal()
+    {
+        int frames = 22050;
+        float[] data = new float[frames * 2];
+        Random random = new Random(frames);
+
+        for (int i = 0; i < frames; i++)
+        {
+            boolean gap = i > frames / 3 && i < frames / 2;
+            float value = gap ? 0 : random.nextFloat() * 0.5f - 0.25f;
+            data[i * 2] = value;
+            data[i * 2 + 1] = value;
+        }
+
+        return data;
+    }
+
+    /*
+     * Reads one sample per page of the data, so it is in
+     * memory when it is first played.
+     */
+    static void touch(FloatBuffer data)
+    {
+        float sum = 0;
+
+        for (int i = 0, n = data.limit(); i < n; i += PAGE_FLOATS)
+        {
+            sum += data.get(i);
+        }
+
+        sink = sum;
+    }
+}